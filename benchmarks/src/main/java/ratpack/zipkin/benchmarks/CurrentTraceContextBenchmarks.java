@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.benchmarks;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ratpack.registry.MutableRegistry;
+import ratpack.registry.Registry;
+import ratpack.zipkin.internal.RatpackCurrentTraceContext;
+
+/**
+ * Compares {@link RatpackCurrentTraceContext} with the previous implementation, which
+ * added a registry entry on every scope change.
+ *
+ * Each operation stands in for one execution: it starts from an empty registry, opens
+ * and closes {@code scopes} scopes (e.g. one per client call or local span) and reads the
+ * current context inside each, as instrumentation does. Compare {@code gc.alloc.rate.norm}
+ * to see how the registry grows with the number of scopes.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class CurrentTraceContextBenchmarks {
+
+  static final TraceContext CONTEXT = TraceContext.newBuilder()
+      .traceId(1L).spanId(2L).sampled(true).build();
+
+  @Param({"1", "10", "100"})
+  int scopes;
+
+  @Benchmark
+  public TraceContext slot_newScope_get() {
+    MutableRegistry registry = Registry.mutable();
+    return newScopesAndGet(new RatpackCurrentTraceContext(() -> registry), scopes);
+  }
+
+  @Benchmark
+  public TraceContext legacy_newScope_get() {
+    MutableRegistry registry = Registry.mutable();
+    return newScopesAndGet(new LegacyRatpackCurrentTraceContext(() -> registry), scopes);
+  }
+
+  static TraceContext newScopesAndGet(final CurrentTraceContext currentTraceContext, final int scopes) {
+    TraceContext result = null;
+    for (int i = 0; i < scopes; i++) {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.newScope(CONTEXT)) {
+        result = currentTraceContext.get();
+      }
+    }
+    return result;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + CurrentTraceContextBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.benchmarks;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.1 client that replays pre-encoded requests over a single
+ * keep-alive connection.
+ *
+ * Requests are encoded once up front and responses are read into a reused
+ * buffer, so the client side of a benchmark contributes (close to) nothing
+ * to the measured allocation rate - what's left is the server.
+ */
+final class KeepAliveHttpClient implements Closeable {
+
+  private static final byte[] CONTENT_LENGTH =
+      "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+  private final Socket socket;
+  private final OutputStream out;
+  private final InputStream in;
+  private final byte[] buffer = new byte[8192];
+
+  KeepAliveHttpClient(final int port) throws IOException {
+    this.socket = new Socket("127.0.0.1", port);
+    this.socket.setTcpNoDelay(true);
+    this.out = socket.getOutputStream();
+    this.in = socket.getInputStream();
+  }
+
+  /**
+   * Encode a GET request for the given path and headers.
+   *
+   * @param path the request path, including the leading slash
+   * @param headers alternating header names and values
+   * @return the encoded request
+   */
+  static byte[] get(final String path, final String... headers) {
+    StringBuilder request = new StringBuilder()
+        .append("GET ").append(path).append(" HTTP/1.1\r\n")
+        .append("Host: 127.0.0.1\r\n");
+    for (int i = 0; i < headers.length; i += 2) {
+      request.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+    }
+    return request.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Send a pre-encoded request and block until the whole response has been read.
+   *
+   * @param request the encoded request
+   * @return the HTTP status code of the response
+   * @throws IOException if the connection fails
+   */
+  int exchange(final byte[] request) throws IOException {
+    out.write(request);
+    out.flush();
+
+    int read = 0;
+    int headerEnd = -1;
+    while (headerEnd < 0) {
+      int n = in.read(buffer, read, buffer.length - read);
+      if (n < 0) throw new EOFException("connection closed while reading headers");
+      read += n;
+      headerEnd = indexOfHeaderEnd(read);
+    }
+    int remaining = contentLength(headerEnd) - (read - headerEnd);
+    while (remaining > 0) {
+      int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+      if (n < 0) throw new EOFException("connection closed while reading body");
+      remaining -= n;
+    }
+    // "HTTP/1.1 200 OK"
+    return (buffer[9] - '0') * 100 + (buffer[10] - '0') * 10 + (buffer[11] - '0');
+  }
+
+  private int indexOfHeaderEnd(final int limit) {
+    for (int i = 3; i < limit; i++) {
+      if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private int contentLength(final int headerEnd) {
+    outer:
+    for (int i = 0; i < headerEnd - CONTENT_LENGTH.length; i++) {
+      for (int j = 0; j < CONTENT_LENGTH.length; j++) {
+        if ((buffer[i + j] | 0x20) != CONTENT_LENGTH[j]) continue outer;
+      }
+      int value = 0;
+      for (int k = i + CONTENT_LENGTH.length; k < headerEnd; k++) {
+        byte b = buffer[k];
+        if (b >= '0' && b <= '9') {
+          value = value * 10 + (b - '0');
+        } else if (b != ' ') {
+          break;
+        }
+      }
+      return value;
+    }
+    return 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.benchmarks;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.function.Supplier;
+import org.slf4j.MDC;
+import ratpack.registry.MutableRegistry;
+
+/**
+ * Copy of the previous {@link ratpack.zipkin.internal.RatpackCurrentTraceContext}, which
+ * adds a new holder to the registry every time a scope is opened or closed. Kept as a
+ * baseline for {@link CurrentTraceContextBenchmarks}.
+ */
+final class LegacyRatpackCurrentTraceContext extends CurrentTraceContext {
+
+  private static final String TRACE_ID_KEY = "TraceId";
+
+  private final Supplier<MutableRegistry> registrySupplier;
+
+  LegacyRatpackCurrentTraceContext(Supplier<MutableRegistry> registrySupplier) {
+    this.registrySupplier = registrySupplier;
+  }
+
+  @Override
+  public TraceContext get() {
+    return registrySupplier.get()
+        .maybeGet(TraceContextHolder.class)
+        .map(h -> h.context)
+        .orElse(null);
+  }
+
+  @Override
+  public Scope newScope(TraceContext current) {
+    final TraceContextHolder previous = registrySupplier.get()
+        .maybeGet(TraceContextHolder.class)
+        .orElse(TraceContextHolder.EMPTY);
+
+    if (current != null) {
+      registrySupplier.get().add(new TraceContextHolder(current));
+      MDC.put(TRACE_ID_KEY, current.traceIdString());
+    } else {
+      registrySupplier.get().add(TraceContextHolder.EMPTY);
+      MDC.remove(TRACE_ID_KEY);
+    }
+
+    return () -> {
+      registrySupplier.get().add(previous);
+      if (previous.context != null) {
+        MDC.put(TRACE_ID_KEY, previous.context.traceIdString());
+      } else {
+        MDC.remove(TRACE_ID_KEY);
+      }
+    };
+  }
+
+  private static final class TraceContextHolder {
+
+    private static final TraceContextHolder EMPTY = new TraceContextHolder(null);
+
+    private final TraceContext context;
+
+    private TraceContextHolder(final TraceContext context) {
+      this.context = context;
+    }
+  }
+}
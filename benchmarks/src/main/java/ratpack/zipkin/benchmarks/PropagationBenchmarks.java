@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.benchmarks;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ratpack.http.Headers;
+import ratpack.http.MutableHeaders;
+import ratpack.http.internal.NettyHeadersBackedHeaders;
+import ratpack.http.internal.NettyHeadersBackedMutableHeaders;
+import ratpack.zipkin.internal.HeaderPropagation;
+
+/**
+ * Compares extracting and injecting B3 headers with {@link HeaderPropagation} directly on
+ * Netty headers against Brave's {@link B3Propagation} through Ratpack's {@link Headers}, as
+ * the server handler and HTTP client did before. Run with {@code -prof gc} to compare
+ * {@code gc.alloc.rate.norm}.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class PropagationBenchmarks {
+
+  static final Propagation<String> B3 = B3Propagation.FACTORY.create(Propagation.KeyFactory.STRING);
+  static final TraceContext.Extractor<Headers> B3_EXTRACTOR = B3.extractor(Headers::get);
+  static final TraceContext.Injector<MutableHeaders> B3_INJECTOR = B3.injector(MutableHeaders::set);
+  static final HeaderPropagation HEADER_PROPAGATION = HeaderPropagation.b3(false);
+
+  static final TraceContext CONTEXT = TraceContext.newBuilder()
+      .traceIdHigh(0x463ac35c9f6413adL).traceId(0x48485a3953bb6124L)
+      .parentId(0x20000000000001L).spanId(0xa2fb4a1d1a96d312L).sampled(true)
+      .build();
+
+  final HttpHeaders requestHeaders = new DefaultHttpHeaders()
+      .set("Host", "localhost:5050")
+      .set("User-Agent", "okhttp/3.9.0")
+      .set("Accept", "application/json")
+      .set("X-B3-TraceId", CONTEXT.traceIdString())
+      .set("X-B3-ParentSpanId", "0020000000000001")
+      .set("X-B3-SpanId", "a2fb4a1d1a96d312")
+      .set("X-B3-Sampled", "1");
+  final HttpHeaders clientHeaders = new DefaultHttpHeaders();
+
+  @Benchmark
+  public TraceContextOrSamplingFlags extract_brave() {
+    return B3_EXTRACTOR.extract(new NettyHeadersBackedHeaders(requestHeaders));
+  }
+
+  @Benchmark
+  public TraceContextOrSamplingFlags extract_headerPropagation() {
+    return HEADER_PROPAGATION.extract(requestHeaders);
+  }
+
+  @Benchmark
+  public HttpHeaders inject_brave() {
+    B3_INJECTOR.inject(CONTEXT, new NettyHeadersBackedMutableHeaders(clientHeaders));
+    return clientHeaders;
+  }
+
+  @Benchmark
+  public HttpHeaders inject_headerPropagation() {
+    HEADER_PROPAGATION.inject(CONTEXT, clientHeaders);
+    return clientHeaders;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + PropagationBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
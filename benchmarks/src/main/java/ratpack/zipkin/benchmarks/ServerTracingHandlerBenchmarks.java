@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.benchmarks;
+
+import brave.sampler.Sampler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ratpack.func.Action;
+import ratpack.guice.BindingsSpec;
+import ratpack.guice.Guice;
+import ratpack.server.RatpackServer;
+import ratpack.zipkin.ServerTracingModule;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Measures the cost of {@link ratpack.zipkin.internal.DefaultServerTracingHandler} on the
+ * request path of an embedded Ratpack app.
+ *
+ * Every benchmark sends a GET over a keep-alive loopback connection, so absolute numbers
+ * include Netty and the Ratpack handler chain. Compare against {@link #server_untraced}
+ * to get the cost of tracing itself. Run {@link #main} (or the uber jar with
+ * {@code -prof gc}) to get bytes allocated per request ({@code gc.alloc.rate.norm}).
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class ServerTracingHandlerBenchmarks {
+
+  static final byte[] NO_HEADERS = KeepAliveHttpClient.get("/ok");
+  static final byte[] SAMPLED = KeepAliveHttpClient.get("/ok",
+      "X-B3-TraceId", "463ac35c9f6413ad",
+      "X-B3-SpanId", "463ac35c9f6413ad",
+      "X-B3-Sampled", "1");
+  static final byte[] UNSAMPLED = KeepAliveHttpClient.get("/ok",
+      "X-B3-TraceId", "463ac35c9f6413ad",
+      "X-B3-SpanId", "463ac35c9f6413ad",
+      "X-B3-Sampled", "0");
+
+  RatpackServer untracedServer;
+  RatpackServer tracedServer;
+  KeepAliveHttpClient untracedClient;
+  KeepAliveHttpClient tracedClient;
+
+  @Setup
+  public void start() throws Exception {
+    untracedServer = server(bindings -> { });
+    tracedServer = server(bindings -> bindings.module(ServerTracingModule.class, config -> config
+        .serviceName("benchmark")
+        .sampler(Sampler.ALWAYS_SAMPLE)
+        .spanReporterV2(Reporter.NOOP)));
+    untracedClient = new KeepAliveHttpClient(untracedServer.getBindPort());
+    tracedClient = new KeepAliveHttpClient(tracedServer.getBindPort());
+  }
+
+  @TearDown
+  public void stop() throws Exception {
+    untracedClient.close();
+    tracedClient.close();
+    untracedServer.stop();
+    tracedServer.stop();
+  }
+
+  @Benchmark
+  public int server_untraced() throws Exception {
+    return untracedClient.exchange(NO_HEADERS);
+  }
+
+  @Benchmark
+  public int server_noIncomingHeaders() throws Exception {
+    return tracedClient.exchange(NO_HEADERS);
+  }
+
+  @Benchmark
+  public int server_sampled() throws Exception {
+    return tracedClient.exchange(SAMPLED);
+  }
+
+  @Benchmark
+  public int server_unsampled() throws Exception {
+    return tracedClient.exchange(UNSAMPLED);
+  }
+
+  static RatpackServer server(final Action<? super BindingsSpec> bindings) throws Exception {
+    return RatpackServer.start(server -> server
+        .serverConfig(config -> config.port(0).development(false))
+        .registry(Guice.registry(bindings))
+        .handlers(chain -> chain.get("ok", ctx -> ctx.render("ok"))));
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + ServerTracingHandlerBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
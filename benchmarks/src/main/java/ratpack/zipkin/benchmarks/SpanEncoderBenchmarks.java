@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ratpack.zipkin.internal.ByteBufSpanEncoder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Compares encoding a message of spans into a pooled {@link ByteBuf} with
+ * {@link ByteBufSpanEncoder} against the zipkin2 {@code byte[]} encoders.
+ *
+ * The {@code bytes_*} benchmarks copy the encoded {@code byte[]} into a pooled buffer, as
+ * the HTTP client does for a {@code byte[]} request body, so all benchmarks end with the
+ * same buffer to send. Run with {@code -prof gc} to compare {@code gc.alloc.rate.norm}.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class SpanEncoderBenchmarks {
+
+  @Param({"1", "100"})
+  int spanCount;
+
+  final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+  List<Span> spans;
+
+  @Setup
+  public void setup() {
+    Endpoint endpoint = Endpoint.newBuilder().serviceName("benchmark").ip("10.0.0.1").port(5050).build();
+    spans = new ArrayList<>(spanCount);
+    for (int i = 1; i <= spanCount; i++) {
+      spans.add(Span.newBuilder()
+          .traceId(0x463ac35c9f6413adL, i).parentId(i).id(i + 1)
+          .name("get /users/:id")
+          .kind(Span.Kind.SERVER)
+          .localEndpoint(endpoint)
+          .timestamp(1472470996199000L).duration(207000L)
+          .putTag("http.method", "GET")
+          .putTag("http.path", "/users/" + i)
+          .putTag("http.status_code", "200")
+          .build());
+    }
+  }
+
+  @Benchmark
+  public int bytes_json() {
+    return copyAndRelease(SpanBytesEncoder.JSON_V2.encodeList(spans));
+  }
+
+  @Benchmark
+  public int byteBuf_json() {
+    return release(ByteBufSpanEncoder.JSON_V2.encodeList(spans, allocator));
+  }
+
+  @Benchmark
+  public int bytes_proto3() {
+    return copyAndRelease(SpanBytesEncoder.PROTO3.encodeList(spans));
+  }
+
+  @Benchmark
+  public int byteBuf_proto3() {
+    return release(ByteBufSpanEncoder.PROTO3.encodeList(spans, allocator));
+  }
+
+  int copyAndRelease(final byte[] message) {
+    return release(allocator.heapBuffer(message.length).writeBytes(message));
+  }
+
+  static int release(final ByteBuf buffer) {
+    int size = buffer.readableBytes();
+    buffer.release();
+    return size;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanEncoderBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.benchmarks;
+
+import brave.Tracing;
+import brave.http.HttpTracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ratpack.exec.Promise;
+import ratpack.func.Factory;
+import ratpack.http.client.HttpClient;
+import ratpack.http.client.ReceivedResponse;
+import ratpack.http.client.StreamedResponse;
+import ratpack.server.RatpackServer;
+import ratpack.server.ServerConfig;
+import ratpack.test.exec.ExecHarness;
+import ratpack.zipkin.internal.RatpackCurrentTraceContext;
+import ratpack.zipkin.internal.ZipkinHttpClientImpl;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Measures the cost of {@link ZipkinHttpClientImpl} per downstream call.
+ *
+ * Calls go to an in-process Ratpack stub server over pooled loopback connections, and each
+ * operation is one call made from a fresh execution. Compare against the
+ * {@code client_untraced_*} benchmarks to get the cost of client tracing itself.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class ZipkinHttpClientBenchmarks {
+
+  static final TraceContext SAMPLED_PARENT = TraceContext.newBuilder()
+      .traceId(1L).spanId(2L).sampled(true).build();
+  static final TraceContext UNSAMPLED_PARENT = TraceContext.newBuilder()
+      .traceId(1L).spanId(2L).sampled(false).build();
+
+  RatpackServer stubServer;
+  ExecHarness harness;
+  Tracing tracing;
+  CurrentTraceContext currentTraceContext;
+  HttpClient untraced;
+  HttpClient traced;
+  URI ok;
+  URI redirect;
+
+  @Setup
+  public void start() throws Exception {
+    stubServer = RatpackServer.start(server -> server
+        .serverConfig(config -> config.port(0).development(false))
+        .handlers(chain -> chain
+            .get("ok", ctx -> ctx.render("ok"))
+            .get("redirect", ctx -> ctx.redirect(302, "/ok"))));
+    ok = URI.create("http://127.0.0.1:" + stubServer.getBindPort() + "/ok");
+    redirect = URI.create("http://127.0.0.1:" + stubServer.getBindPort() + "/redirect");
+
+    harness = ExecHarness.harness();
+    currentTraceContext = new RatpackCurrentTraceContext();
+    tracing = Tracing.newBuilder()
+        .localServiceName("benchmark")
+        .currentTraceContext(currentTraceContext)
+        .sampler(Sampler.ALWAYS_SAMPLE)
+        .spanReporter(Reporter.NOOP)
+        .build();
+    untraced = HttpClient.of(spec -> spec
+        .poolSize(8)
+        .byteBufAllocator(PooledByteBufAllocator.DEFAULT)
+        .maxContentLength(ServerConfig.DEFAULT_MAX_CONTENT_LENGTH));
+    traced = new ZipkinHttpClientImpl(untraced, HttpTracing.create(tracing));
+  }
+
+  @TearDown
+  public void stop() throws Exception {
+    untraced.close();
+    tracing.close();
+    harness.close();
+    stubServer.stop();
+  }
+
+  @Benchmark
+  public int client_untraced_get() throws Exception {
+    return status(() -> untraced.get(ok));
+  }
+
+  @Benchmark
+  public int client_get_noParent() throws Exception {
+    return status(() -> traced.get(ok));
+  }
+
+  @Benchmark
+  public int client_get_withParent() throws Exception {
+    return statusInScope(SAMPLED_PARENT, () -> traced.get(ok));
+  }
+
+  @Benchmark
+  public int client_get_unsampledParent() throws Exception {
+    return statusInScope(UNSAMPLED_PARENT, () -> traced.get(ok));
+  }
+
+  @Benchmark
+  public int client_untraced_get_redirect() throws Exception {
+    return status(() -> untraced.get(redirect));
+  }
+
+  @Benchmark
+  public int client_get_redirect_withParent() throws Exception {
+    return statusInScope(SAMPLED_PARENT, () -> traced.get(redirect));
+  }
+
+  @Benchmark
+  public int client_untraced_requestStream() throws Exception {
+    return streamedStatus(() -> untraced.requestStream(ok, spec -> spec.get()));
+  }
+
+  @Benchmark
+  public int client_requestStream_noParent() throws Exception {
+    return streamedStatus(() -> traced.requestStream(ok, spec -> spec.get()));
+  }
+
+  @Benchmark
+  public int client_requestStream_withParent() throws Exception {
+    return streamedStatusInScope(SAMPLED_PARENT,
+        () -> traced.requestStream(ok, spec -> spec.get()));
+  }
+
+  @Benchmark
+  public int client_requestStream_unsampledParent() throws Exception {
+    return streamedStatusInScope(UNSAMPLED_PARENT,
+        () -> traced.requestStream(ok, spec -> spec.get()));
+  }
+
+  int status(final Factory<Promise<ReceivedResponse>> call) throws Exception {
+    return harness.yield(e -> call.create().map(ReceivedResponse::getStatusCode))
+        .getValueOrThrow();
+  }
+
+  int statusInScope(final TraceContext parent,
+                    final Factory<Promise<ReceivedResponse>> call) throws Exception {
+    return harness.yield(e -> {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.newScope(parent)) {
+        return call.create().map(ReceivedResponse::getStatusCode);
+      }
+    }).getValueOrThrow();
+  }
+
+  int streamedStatus(final Factory<Promise<StreamedResponse>> call) throws Exception {
+    return harness.yield(e -> call.create().flatMap(ZipkinHttpClientBenchmarks::drain))
+        .getValueOrThrow();
+  }
+
+  int streamedStatusInScope(final TraceContext parent,
+                            final Factory<Promise<StreamedResponse>> call) throws Exception {
+    return harness.yield(e -> {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.newScope(parent)) {
+        return call.create().flatMap(ZipkinHttpClientBenchmarks::drain);
+      }
+    }).getValueOrThrow();
+  }
+
+  /** Consumes and releases the body so that the pooled connection is returned. */
+  static Promise<Integer> drain(final StreamedResponse response) {
+    return response.getBody()
+        .reduce(response.getStatusCode(), (status, buffer) -> {
+          buffer.release();
+          return status;
+        });
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + ZipkinHttpClientBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
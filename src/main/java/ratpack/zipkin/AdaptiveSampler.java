@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import brave.sampler.Sampler;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import ratpack.zipkin.internal.RateLimiter;
+
+/**
+ * {@link Sampler} that targets a number of traces per second, however much traffic there is.
+ *
+ * Every interval, the sampling probability is set to the target rate divided by the rate of
+ * traces seen in the previous interval, and traces are sampled by trace ID with that
+ * probability. A token bucket holding up to one second of traces caps the rate while the
+ * probability catches up with a sudden rise in traffic. Both are updated without locks.
+ */
+public final class AdaptiveSampler extends Sampler {
+
+  static final long DEFAULT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final int tracesPerSecond;
+  private final long intervalNanos;
+  private final LongSupplier nanoTime;
+  private final RateLimiter rateLimiter;
+  private final LongAdder traces = new LongAdder();
+  private final AtomicLong intervalStart;
+  private volatile float probability = 1f;
+  private volatile long boundary = Long.MAX_VALUE;
+
+  AdaptiveSampler(final int tracesPerSecond, final long intervalNanos,
+                  final LongSupplier nanoTime) {
+    if (tracesPerSecond <= 0) {
+      throw new IllegalArgumentException("tracesPerSecond must be positive: " + tracesPerSecond);
+    }
+    this.tracesPerSecond = tracesPerSecond;
+    this.intervalNanos = intervalNanos;
+    this.nanoTime = nanoTime;
+    this.rateLimiter = new RateLimiter(tracesPerSecond, nanoTime);
+    this.intervalStart = new AtomicLong(nanoTime.getAsLong());
+  }
+
+  /**
+   * @param tracesPerSecond the number of traces to sample per second
+   * @return the sampler
+   */
+  public static AdaptiveSampler create(final int tracesPerSecond) {
+    return new AdaptiveSampler(tracesPerSecond, DEFAULT_INTERVAL_NANOS, System::nanoTime);
+  }
+
+  @Override
+  public boolean isSampled(final long traceId) {
+    long now = nanoTime.getAsLong();
+    traces.increment();
+    long start = intervalStart.get();
+    if (now - start >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+      adjust(now - start);
+    }
+    // decided by trace ID, so traces are sampled the same way as by BoundarySampler
+    if (Math.abs(traceId == Long.MIN_VALUE ? Long.MAX_VALUE : traceId) > boundary) {
+      return false;
+    }
+    return rateLimiter.tryAcquire(now);
+  }
+
+  /**
+   * @return the target number of traces per second
+   */
+  public int getTracesPerSecond() {
+    return tracesPerSecond;
+  }
+
+  /**
+   * @return the current sampling probability, before the rate cap
+   */
+  public float getProbability() {
+    return probability;
+  }
+
+  private void adjust(final long elapsedNanos) {
+    double seenPerSecond = traces.sumThenReset() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    float newProbability = seenPerSecond <= tracesPerSecond ? 1f : (float) (tracesPerSecond / seenPerSecond);
+    probability = newProbability;
+    boundary = newProbability >= 1f ? Long.MAX_VALUE : (long) (Long.MAX_VALUE * (double) newProbability);
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveSampler{tracesPerSecond=" + tracesPerSecond + ", probability=" + probability + "}";
+  }
+}
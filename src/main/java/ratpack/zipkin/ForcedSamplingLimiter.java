@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.TraceIdContext;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import ratpack.zipkin.internal.RateLimiter;
+
+/**
+ * Limits how many requests per second callers can force to be sampled, with a sampled or
+ * debug flag, set with {@link ServerTracingModule.Config#forcedSamplingLimit(int, int)}.
+ *
+ * Requests over the limit, overall or for their caller, have their sampled and debug flags
+ * cleared, so they are sampled like requests without them. Callers are identified by their
+ * client address, resolved from the forwarding headers as for the server span's client
+ * address (see {@link ServerTracingModule.Config#trustedProxies(int)}). Once {@link #MAX_CALLERS} callers are being limited, further callers share
+ * one limit.
+ */
+public final class ForcedSamplingLimiter {
+
+  static final int MAX_CALLERS = 10000;
+
+  private static final ForcedSamplingLimiter UNLIMITED = new ForcedSamplingLimiter(0, 0);
+
+  private final RateLimiter overall;
+  private final int perCallerPerSecond;
+  private final ConcurrentMap<String, RateLimiter> callers = new ConcurrentHashMap<>();
+  private final RateLimiter otherCallers;
+  private final AtomicLong overridden = new AtomicLong();
+
+  private ForcedSamplingLimiter(final int perSecond, final int perCallerPerSecond) {
+    this.overall = perSecond > 0 ? RateLimiter.create(perSecond) : null;
+    this.perCallerPerSecond = perCallerPerSecond;
+    this.otherCallers = perCallerPerSecond > 0 ? RateLimiter.create(perCallerPerSecond) : null;
+  }
+
+  /**
+   * @param perSecond the maximum number of forced requests per second, or 0 for no limit
+   * @param perCallerPerSecond the maximum number of forced requests per second from one
+   *     caller, or 0 for no limit
+   * @return the limiter
+   */
+  public static ForcedSamplingLimiter of(final int perSecond, final int perCallerPerSecond) {
+    if (perSecond < 0 || perCallerPerSecond < 0) {
+      throw new IllegalArgumentException("limits must not be negative");
+    }
+    return perSecond == 0 && perCallerPerSecond == 0 ? UNLIMITED
+        : new ForcedSamplingLimiter(perSecond, perCallerPerSecond);
+  }
+
+  public static ForcedSamplingLimiter unlimited() {
+    return UNLIMITED;
+  }
+
+  public boolean isEnabled() {
+    return overall != null || otherCallers != null;
+  }
+
+  /**
+   * @return the number of forced sampling decisions that were cleared
+   */
+  public long getOverridden() {
+    return overridden.get();
+  }
+
+  /**
+   * @param extracted the extracted context or flags of a request
+   * @param caller the caller's address
+   * @return the extracted context or flags, without sampled or debug flags if the request
+   *     was forced over the limit
+   */
+  public TraceContextOrSamplingFlags limit(final TraceContextOrSamplingFlags extracted,
+                                           final String caller) {
+    if (!Boolean.TRUE.equals(extracted.sampled()) || tryAcquire(caller)) {
+      return extracted;
+    }
+    overridden.incrementAndGet();
+    TraceContextOrSamplingFlags.Builder builder = extracted.toBuilder();
+    TraceContext context = extracted.context();
+    TraceIdContext traceIdContext = extracted.traceIdContext();
+    if (context != null) {
+      builder.context(context.toBuilder().debug(false).sampled((Boolean) null).build());
+    } else if (traceIdContext != null) {
+      builder.traceIdContext(traceIdContext.toBuilder().debug(false).sampled((Boolean) null).build());
+    } else {
+      builder.samplingFlags(SamplingFlags.EMPTY);
+    }
+    return builder.build();
+  }
+
+  private boolean tryAcquire(final String caller) {
+    if (otherCallers != null) {
+      RateLimiter limiter = callers.get(caller);
+      if (limiter == null) {
+        limiter = callers.size() < MAX_CALLERS
+            ? callers.computeIfAbsent(caller, c -> RateLimiter.create(perCallerPerSecond))
+            : otherCallers;
+      }
+      if (!limiter.tryAcquire()) {
+        return false;
+      }
+    }
+    // a caller's permit is spent even if the overall limit is reached
+    return overall == null || overall.tryAcquire();
+  }
+}
@@ -0,0 +1,22 @@
+package ratpack.zipkin;
+
+/**
+ * How the current trace context is written to the SLF4J MDC.
+ */
+public enum MdcMode {
+  /**
+   * Don't write to the MDC, for services that don't log per request.
+   */
+  DISABLED,
+  /**
+   * Update the MDC whenever a scope is opened or closed (the default).
+   */
+  SCOPE,
+  /**
+   * As {@link #SCOPE}, and also set the MDC from the current context when each execution
+   * segment starts and clear it when the segment ends. This keeps the MDC correct when
+   * Ratpack resumes an execution on another thread, and stops values leaking to
+   * unrelated work on the same thread.
+   */
+  EXECUTION_SEGMENT
+}
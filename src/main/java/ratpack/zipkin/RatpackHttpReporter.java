@@ -0,0 +1,563 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import ratpack.exec.ExecController;
+import ratpack.exec.Operation;
+import ratpack.exec.Promise;
+import ratpack.func.Factory;
+import ratpack.http.Status;
+import ratpack.http.client.HttpClient;
+import ratpack.http.client.ReceivedResponse;
+import ratpack.zipkin.internal.ByteBufSpanEncoder;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Reporter;
+
+/**
+ * A {@link Reporter} that sends spans to a Zipkin collector with Ratpack's own
+ * {@link HttpClient}, on Ratpack's event loop.
+ *
+ * Spans are sized once, when reported, and queued with their size in a bounded, lock-free
+ * queue. The queue is flushed when it holds a full message, or every
+ * {@link Builder#messageTimeout}. Each flush runs in a forked execution, encodes messages of
+ * at most {@link Builder#messageMaxBytes} into buffers from the HTTP client's allocator and
+ * POSTs them one at a time, so reporting never blocks and no threads are added to the
+ * application.
+ * Spans that do not fit in the queue are dropped and counted.
+ */
+public final class RatpackHttpReporter implements Reporter<Span>, AutoCloseable {
+
+  private final URI endpoint;
+  private final ByteBufSpanEncoder encoder;
+  private final int queuedMaxSpans;
+  private final int messageMaxBytes;
+  private final boolean compressionEnabled;
+  private final ExecController execController;
+  private final HttpClient httpClient;
+  private final SpanSpool spool;
+
+  private final Queue<QueuedSpan> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queuedSpans = new AtomicInteger();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicBoolean flushing = new AtomicBoolean();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  // resumed when the flush in progress completes
+  private final Queue<Runnable> flushWaiters = new ConcurrentLinkedQueue<>();
+  private final AtomicLong spansDropped = new AtomicLong();
+  private final AtomicLong messagesSent = new AtomicLong();
+  private final AtomicLong messagesFailed = new AtomicLong();
+  private final ScheduledFuture<?> scheduledFlush;
+  private volatile boolean closed;
+  // set once the spool is closed, after which nothing is sent
+  private volatile boolean terminated;
+
+  private RatpackHttpReporter(final Builder builder, final ExecController execController,
+                              final HttpClient httpClient) {
+    this.endpoint = builder.endpoint;
+    this.encoder = ByteBufSpanEncoder.forEncoding(builder.encoding);
+    this.queuedMaxSpans = builder.queuedMaxSpans;
+    this.messageMaxBytes = builder.messageMaxBytes;
+    this.compressionEnabled = builder.compressionEnabled;
+    this.execController = execController;
+    this.httpClient = httpClient;
+    this.spool = builder.spool;
+    long timeout = builder.messageTimeout.toNanos();
+    this.scheduledFlush = timeout > 0
+        ? execController.getExecutor()
+            .scheduleWithFixedDelay(this::flush, timeout, timeout, TimeUnit.NANOSECONDS)
+        : null;
+  }
+
+  /**
+   * Create a builder for a reporter that POSTs to the given collector endpoint, e.g.
+   * {@code http://localhost:9411/api/v2/spans}.
+   *
+   * @param endpoint the collector endpoint
+   * @return the builder
+   */
+  public static Builder builder(final URI endpoint) {
+    return new Builder(endpoint);
+  }
+
+  @Override
+  public void report(final Span span) {
+    if (closed) {
+      spansDropped.incrementAndGet();
+      return;
+    }
+    int spanBytes = encoder.sizeInBytes(span);
+    if (encoder.listSizeInBytes(1, spanBytes) > messageMaxBytes) {
+      spansDropped.incrementAndGet();
+      return;
+    }
+    if (queuedSpans.incrementAndGet() > queuedMaxSpans) {
+      queuedSpans.decrementAndGet();
+      spansDropped.incrementAndGet();
+      return;
+    }
+    queue.add(new QueuedSpan(span, spanBytes));
+    if (queuedBytes.addAndGet(spanBytes) >= messageMaxBytes) {
+      flush();
+    }
+  }
+
+  /**
+   * Send all spooled and queued spans in a forked execution. If a flush is already in
+   * progress, another one follows it.
+   */
+  public void flush() {
+    flushRequested.set(true);
+    if (terminated || queuedSpans.get() == 0 && (spool == null || spool.isEmpty())
+        || !flushing.compareAndSet(false, true)) {
+      return;
+    }
+    flushRequested.set(false);
+    execController.fork()
+        .onComplete(e -> {
+          endFlush();
+          // spans that were flushed, or filled a message, while the last one was being sent.
+          // Spooled spans wait for the next flush, so a failing collector isn't retried at once.
+          if (flushRequested.get() && queuedSpans.get() > 0 || queuedBytes.get() >= messageMaxBytes) {
+            flush();
+          }
+        })
+        .start(e -> sendQueued().operation().then());
+  }
+
+  /**
+   * Stop the periodic flush, send the remaining spans, then close the spool, in a forked
+   * execution. Use {@link #closeOperation()} to wait for it.
+   *
+   * Spans reported after this are dropped.
+   */
+  @Override
+  public void close() {
+    execController.fork().start(e -> closeOperation().then());
+  }
+
+  /**
+   * Returns an operation that stops the periodic flush, sends the remaining spans once any
+   * flush in progress has completed, then closes the spool.
+   *
+   * Spans reported after the operation starts are dropped.
+   *
+   * @return the operation
+   */
+  public Operation closeOperation() {
+    return Operation.of(() -> {
+      closed = true;
+      if (scheduledFlush != null) {
+        scheduledFlush.cancel(false);
+      }
+    })
+        // the last flush keeps the flushing flag, so no other send can use the spool
+        .next(flushAfterInFlight(false).operation())
+        .next(() -> {
+          if (!terminated) {
+            terminated = true;
+            if (spool != null) {
+              spool.close();
+            }
+          }
+          runFlushWaiters();
+        });
+  }
+
+  /**
+   * Returns an operation that sends all queued spans from the current execution. If a flush
+   * is already in progress, the operation waits for it, then sends whatever is still queued.
+   *
+   * @return the operation
+   */
+  public Operation flushOperation() {
+    return flushAfterInFlight(true).operation();
+  }
+
+  /**
+   * @param release whether to let other flushes run after this one
+   */
+  private Promise<Integer> flushAfterInFlight(final boolean release) {
+    // decided when the promise is subscribed to, not when it's created
+    return Promise.sync(() -> terminated ? Boolean.FALSE : flushing.compareAndSet(false, true))
+        .flatMap(acquired -> {
+          if (terminated) {
+            return Promise.value(0);
+          }
+          if (!acquired) {
+            return inFlightFlush().flatMap(v -> flushAfterInFlight(release));
+          }
+          flushRequested.set(false);
+          return release ? sendQueued().wiretap(result -> endFlush()) : sendQueued();
+        });
+  }
+
+  /**
+   * @return a promise for the completion of the flush in progress, if any
+   */
+  private Promise<Void> inFlightFlush() {
+    return Promise.async(downstream -> {
+      flushWaiters.add(() -> downstream.success(null));
+      // the flush may have completed before the waiter was added
+      if (!flushing.get() || terminated) {
+        runFlushWaiters();
+      }
+    });
+  }
+
+  private void endFlush() {
+    flushing.set(false);
+    runFlushWaiters();
+  }
+
+  private void runFlushWaiters() {
+    for (Runnable waiter = flushWaiters.poll(); waiter != null; waiter = flushWaiters.poll()) {
+      waiter.run();
+    }
+  }
+
+  /**
+   * @return the number of spans dropped because the queue or spool was full, the span was
+   * larger than a message, the reporter was closed, or the message containing them could not
+   * be sent or was rejected by the collector
+   */
+  public long getSpansDropped() {
+    return spansDropped.get();
+  }
+
+  /**
+   * @return the number of messages accepted by the collector
+   */
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  /**
+   * @return the number of messages that failed or were rejected by the collector
+   */
+  public long getMessagesFailed() {
+    return messagesFailed.get();
+  }
+
+  /**
+   * @return the number of spans waiting to be sent
+   */
+  public int getQueuedSpans() {
+    return queuedSpans.get();
+  }
+
+  /**
+   * @return the maximum number of spans waiting to be sent
+   */
+  public int getQueuedMaxSpans() {
+    return queuedMaxSpans;
+  }
+
+  /**
+   * Sends spooled messages, then queued spans. When a message can't be sent, the rest are
+   * spooled so that they are replayed in order once the collector is back. Messages the
+   * collector rejects are dropped, as sending them again would fail again.
+   */
+  private Promise<Integer> sendQueued() {
+    if (spool != null && !spool.isEmpty()) {
+      SpanSpool.Record record = spool.peek();
+      ByteBufSpanEncoder recordEncoder = ByteBufSpanEncoder.forEncoding(record.encoding);
+      return post(() -> compress(record.message), recordEncoder.contentType())
+          .flatMap(outcome -> {
+            if (outcome == Outcome.FAILED) {
+              spoolQueued();
+              return Promise.value(0);
+            }
+            spool.commit(record);
+            if (outcome == Outcome.REJECTED) {
+              spansDropped.addAndGet(record.spanCount);
+              return sendQueued();
+            }
+            return sendQueued().map(more -> record.spanCount + more);
+          });
+    }
+    List<Span> spans = new ArrayList<>();
+    int messageBytes = nextMessage(spans);
+    if (spans.isEmpty()) {
+      return Promise.value(0);
+    }
+    return post(() -> compress(encoder.encodeList(spans, messageBytes, allocator())),
+        encoder.contentType())
+        .flatMap(outcome -> {
+          if (outcome == Outcome.ACCEPTED) {
+            return sendQueued().map(more -> spans.size() + more);
+          }
+          if (outcome == Outcome.FAILED && spool != null) {
+            spool(spans, messageBytes);
+            spoolQueued();
+            return Promise.value(0);
+          }
+          spansDropped.addAndGet(spans.size());
+          return sendQueued();
+        });
+  }
+
+  private void spoolQueued() {
+    for (List<Span> spans = new ArrayList<>(); ; spans.clear()) {
+      int messageBytes = nextMessage(spans);
+      if (spans.isEmpty()) {
+        return;
+      }
+      spool(spans, messageBytes);
+    }
+  }
+
+  private void spool(final List<Span> spans, final int messageBytes) {
+    ByteBuf message = encoder.encodeList(spans, messageBytes, allocator());
+    try {
+      if (!spool.append(message, spans.size(), encoder.encoding())) {
+        spansDropped.addAndGet(spans.size());
+      }
+    } finally {
+      message.release();
+    }
+  }
+
+  /**
+   * Takes as many queued spans as fit in one message. Only called by the flushing execution,
+   * so the head of the queue cannot be taken between peeking at it and polling it.
+   *
+   * @return the encoded size of the message
+   */
+  private int nextMessage(final List<Span> spans) {
+    int spanBytes = 0;
+    for (QueuedSpan next = queue.peek(); next != null; next = queue.peek()) {
+      int nextBytes = next.bytes;
+      if (!spans.isEmpty()
+          && encoder.listSizeInBytes(spans.size() + 1, spanBytes + nextBytes) > messageMaxBytes) {
+        break;
+      }
+      queue.poll();
+      spans.add(next.span);
+      spanBytes += nextBytes;
+    }
+    queuedSpans.addAndGet(-spans.size());
+    queuedBytes.addAndGet(-spanBytes);
+    return encoder.listSizeInBytes(spans.size(), spanBytes);
+  }
+
+  /**
+   * POST a message, which is created when the request is made.
+   *
+   * @return whether the collector accepted the message, rejected it, or may accept it later
+   */
+  private Promise<Outcome> post(final Factory<ByteBuf> message, final String contentType) {
+    return httpClient.post(endpoint, spec -> {
+          spec.headers(headers -> {
+            headers.set("Content-Type", contentType);
+            if (compressionEnabled) {
+              headers.set("Content-Encoding", "gzip");
+            }
+          });
+          // the client releases the body once it's written
+          spec.body(body -> body.buffer(message.create()));
+        })
+        .map(ReceivedResponse::getStatus)
+        .map(Outcome::of)
+        .mapError(error -> Outcome.FAILED)
+        .wiretap(result -> {
+          if (result.getValue() == Outcome.ACCEPTED) {
+            messagesSent.incrementAndGet();
+          } else {
+            messagesFailed.incrementAndGet();
+          }
+        });
+  }
+
+  /** A span with its encoded size, which is only computed once. */
+  private static final class QueuedSpan {
+    final Span span;
+    final int bytes;
+
+    QueuedSpan(final Span span, final int bytes) {
+      this.span = span;
+      this.bytes = bytes;
+    }
+  }
+
+  private enum Outcome {
+    ACCEPTED,
+    // a bad or oversized message, which would be rejected again
+    REJECTED,
+    // the collector is down or overloaded, so the message can be retried
+    FAILED;
+
+    static Outcome of(final Status status) {
+      int code = status.getCode();
+      if (status.is2xx()) {
+        return ACCEPTED;
+      }
+      return code >= 500 || code == 408 || code == 429 ? FAILED : REJECTED;
+    }
+  }
+
+  private ByteBuf compress(final ByteBuf message) {
+    return compressionEnabled ? ByteBufSpanEncoder.gzip(message, allocator()) : message;
+  }
+
+  private ByteBufAllocator allocator() {
+    return httpClient.getByteBufAllocator();
+  }
+
+  /**
+   * Builder for {@link RatpackHttpReporter}.
+   */
+  public static final class Builder {
+    private final URI endpoint;
+    private Encoding encoding = Encoding.JSON;
+    private int queuedMaxSpans = 10000;
+    private int messageMaxBytes = 512 * 1024;
+    private Duration messageTimeout = Duration.ofSeconds(1);
+    private boolean compressionEnabled = true;
+    private SpanSpool spool;
+
+    private Builder(final URI endpoint) {
+      if (endpoint == null) {
+        throw new NullPointerException("endpoint == null");
+      }
+      this.endpoint = endpoint;
+    }
+
+    /**
+     * Set the span encoding, {@link Encoding#JSON} (v2) or {@link Encoding#PROTO3}.
+     *
+     * If not set, defaults to {@link Encoding#JSON}.
+     *
+     * @param encoding the encoding
+     * @return the builder
+     */
+    public Builder encoding(final Encoding encoding) {
+      if (encoding != Encoding.JSON && encoding != Encoding.PROTO3) {
+        throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+      }
+      this.encoding = encoding;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of spans waiting to be sent. Spans reported beyond this are
+     * dropped.
+     *
+     * If not set, defaults to 10000.
+     *
+     * @param queuedMaxSpans the maximum number of queued spans
+     * @return the builder
+     */
+    public Builder queuedMaxSpans(final int queuedMaxSpans) {
+      if (queuedMaxSpans <= 0) {
+        throw new IllegalArgumentException("queuedMaxSpans must be positive: " + queuedMaxSpans);
+      }
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /**
+     * Set the maximum size of a message before compression. A flush is started as soon
+     * as the queued spans fill a message.
+     *
+     * If not set, defaults to 512KiB.
+     *
+     * @param messageMaxBytes the maximum message size in bytes
+     * @return the builder
+     */
+    public Builder messageMaxBytes(final int messageMaxBytes) {
+      if (messageMaxBytes <= 0) {
+        throw new IllegalArgumentException("messageMaxBytes must be positive: " + messageMaxBytes);
+      }
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /**
+     * Set how often queued spans are flushed, regardless of how many there are.
+     * {@link Duration#ZERO} disables the periodic flush.
+     *
+     * If not set, defaults to 1 second.
+     *
+     * @param messageTimeout the flush interval
+     * @return the builder
+     */
+    public Builder messageTimeout(final Duration messageTimeout) {
+      if (messageTimeout.isNegative()) {
+        throw new IllegalArgumentException("messageTimeout must not be negative: " + messageTimeout);
+      }
+      this.messageTimeout = messageTimeout;
+      return this;
+    }
+
+    /**
+     * Set whether messages are gzipped.
+     *
+     * If not set, defaults to true.
+     *
+     * @param compressionEnabled whether to gzip messages
+     * @return the builder
+     */
+    public Builder compressionEnabled(final boolean compressionEnabled) {
+      this.compressionEnabled = compressionEnabled;
+      return this;
+    }
+
+    /**
+     * Set a spool for messages that can't be sent. While the collector is unavailable,
+     * queued spans are written to the spool instead of being dropped or kept on the heap,
+     * and they are replayed in order before new spans once it accepts messages again.
+     * The collector is considered unavailable when it can't be reached, or answers with a
+     * 5xx, 408 or 429 status. Messages rejected with any other status are dropped.
+     *
+     * If not set, spans in messages that can't be sent are dropped.
+     *
+     * @param spool the spool
+     * @return the builder
+     */
+    public Builder spool(final SpanSpool spool) {
+      this.spool = spool;
+      return this;
+    }
+
+    /**
+     * Build the reporter and start its periodic flush.
+     *
+     * The HTTP client should not be traced, or sending spans would create more spans.
+     *
+     * @param execController the controller whose event loop sends the spans
+     * @param httpClient the client used to POST spans
+     * @return the reporter
+     */
+    public RatpackHttpReporter build(final ExecController execController,
+                                     final HttpClient httpClient) {
+      return new RatpackHttpReporter(this, execController, httpClient);
+    }
+  }
+}
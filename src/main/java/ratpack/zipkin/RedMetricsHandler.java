@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import javax.inject.Inject;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.jackson.Jackson;
+import ratpack.zipkin.internal.RedMetrics;
+
+/**
+ * {@link Handler} that renders the metrics enabled by
+ * {@link ServerTracingModule.Config#redMetrics(int)} as JSON.
+ *
+ * For each server route and method, and each client host, it renders the number of
+ * requests and errors, the error rate, and the mean, percentiles, maximum and buckets of
+ * the latency in microseconds. Buckets with a sampled request have its trace ID as an
+ * exemplar.
+ */
+public final class RedMetricsHandler implements Handler {
+
+  private final RedMetrics metrics;
+
+  @Inject
+  public RedMetricsHandler(final RedMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void handle(final Context ctx) throws Exception {
+    ctx.render(Jackson.json(metrics.snapshot()));
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import brave.http.HttpAdapter;
+import brave.http.HttpSampler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import ratpack.http.HttpMethod;
+
+/**
+ * {@link HttpSampler} with a sampling rate per route and method, set with
+ * {@link ServerTracingModule.Config#routeSampler(RouteSampler)}.
+ *
+ * Routes are request paths made of segments separated by "/". A segment is either literal,
+ * a parameter (":id" or "*") matching any one segment, or "**" at the end, matching any
+ * remaining segments. When several routes match, a literal segment wins over a parameter,
+ * and a parameter over "**". Requests that match no route are left to the server sampler.
+ *
+ * The routes are compiled into a trie when the sampler is built, and requests are matched
+ * against it without copying their path. Requests are sampled by trace ID, like Brave's
+ * {@code BoundarySampler}, so services with the same rate for a route keep the same traces.
+ * Any rate can be set, and deciding takes no lock.
+ */
+public final class RouteSampler extends HttpSampler {
+
+  private static final RouteSampler NONE = newBuilder().build();
+
+  private final Node root;
+
+  private RouteSampler(final Node root) {
+    this.root = root;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * @return a sampler without routes, which leaves every request to the server sampler
+   */
+  public static RouteSampler none() {
+    return NONE;
+  }
+
+  /**
+   * @return whether the sampler has any routes
+   */
+  public boolean isEmpty() {
+    return root.isEmpty();
+  }
+
+  @Override
+  public <Req> Boolean trySample(final HttpAdapter<Req, ?> adapter, final Req request) {
+    String method = adapter.method(request);
+    String path = adapter.path(request);
+    return method == null || path == null ? null : trySample(method, path);
+  }
+
+  /**
+   * Decides for a request that doesn't have a trace ID yet, using a random one.
+   *
+   * @param method the request method, e.g. "GET"
+   * @param path the request path, with or without a leading "/"
+   * @return whether to sample the request, or null if no route matches it
+   */
+  public Boolean trySample(final String method, final String path) {
+    Rate rate = match(root, path, 0, method);
+    return rate == null ? null : rate.isSampled(ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * @param method the request method, e.g. "GET"
+   * @param path the request path, with or without a leading "/"
+   * @param traceId the lower 64 bits of the request's trace ID
+   * @return whether to sample the request, or null if no route matches it
+   */
+  public Boolean trySample(final String method, final String path, final long traceId) {
+    Rate rate = match(root, path, 0, method);
+    return rate == null ? null : rate.isSampled(traceId);
+  }
+
+  private static Rate match(final Node node, final String path, final int start,
+                               final String method) {
+    if (start >= path.length()) {
+      Rate rate = node.exact.get(method);
+      return rate != null ? rate : node.rest.get(method);
+    }
+    int end = path.indexOf('/', start);
+    if (end < 0) {
+      end = path.length();
+    }
+    if (end == start) {
+      // a leading, trailing or repeated "/"
+      return match(node, path, end + 1, method);
+    }
+    Node literal = node.literal(path, start, end);
+    if (literal != null) {
+      Rate rate = match(literal, path, end + 1, method);
+      if (rate != null) {
+        return rate;
+      }
+    }
+    if (node.parameter != null) {
+      Rate rate = match(node.parameter, path, end + 1, method);
+      if (rate != null) {
+        return rate;
+      }
+    }
+    return node.rest.get(method);
+  }
+
+  /**
+   * A sampling rate, as the largest absolute trace ID that is sampled.
+   */
+  private static final class Rate {
+    private final long boundary;
+
+    Rate(final float rate) {
+      this.boundary = rate <= 0f ? -1L
+          : rate >= 1f ? Long.MAX_VALUE : (long) (Long.MAX_VALUE * (double) rate);
+    }
+
+    boolean isSampled(final long traceId) {
+      return Math.abs(traceId == Long.MIN_VALUE ? Long.MAX_VALUE : traceId) <= boundary;
+    }
+  }
+
+  /**
+   * The rates for each method of a route, and for any method.
+   */
+  private static final class Rule {
+    private final Map<String, Rate> byMethod = new HashMap<>();
+    private Rate anyMethod;
+
+    Rate get(final String method) {
+      if (!byMethod.isEmpty()) {
+        Rate rate = byMethod.get(method);
+        if (rate != null) {
+          return rate;
+        }
+      }
+      return anyMethod;
+    }
+
+    void put(final HttpMethod method, final Rate rate) {
+      if (method == null) {
+        anyMethod = rate;
+      } else {
+        byMethod.put(method.getName(), rate);
+      }
+    }
+
+    boolean isEmpty() {
+      return anyMethod == null && byMethod.isEmpty();
+    }
+  }
+
+  private static final class Node {
+    private final Map<String, Node> literals = new LinkedHashMap<>();
+    private final Rule exact = new Rule();
+    private final Rule rest = new Rule();
+    private Node parameter;
+    private String[] literalSegments = new String[0];
+    private Node[] literalNodes = new Node[0];
+
+    Node literal(final String path, final int start, final int end) {
+      int length = end - start;
+      for (int i = 0; i < literalSegments.length; i++) {
+        String segment = literalSegments[i];
+        if (segment.length() == length && path.regionMatches(start, segment, 0, length)) {
+          return literalNodes[i];
+        }
+      }
+      return null;
+    }
+
+    /** Freezes the literal children into arrays, which are scanned without allocating. */
+    void compile() {
+      literalSegments = literals.keySet().toArray(new String[0]);
+      literalNodes = literals.values().toArray(new Node[0]);
+      literals.values().forEach(Node::compile);
+      if (parameter != null) {
+        parameter.compile();
+      }
+    }
+
+    boolean isEmpty() {
+      return exact.isEmpty() && rest.isEmpty() && literals.isEmpty() && parameter == null;
+    }
+  }
+
+  /**
+   * Builder for {@link RouteSampler}.
+   */
+  public static final class Builder {
+    private final Node root = new Node();
+
+    private Builder() {
+    }
+
+    /**
+     * Sample requests to a route at a rate, whatever their method.
+     *
+     * @param route the route, e.g. {@code "checkout/**"}
+     * @param rate the rate, from 0 (never) to 1 (always)
+     * @return the builder
+     */
+    public Builder route(final String route, final float rate) {
+      return route(null, route, rate);
+    }
+
+    /**
+     * Sample requests with a method to a route at a rate. This takes precedence over a rate
+     * for any method on the same route.
+     *
+     * @param method the request method, or null for any method
+     * @param route the route, e.g. {@code "orders/:id"}
+     * @param rate the rate, from 0 (never) to 1 (always)
+     * @return the builder
+     */
+    public Builder route(final HttpMethod method, final String route, final float rate) {
+      if (rate < 0 || rate > 1) {
+        throw new IllegalArgumentException("rate must be between 0 and 1: " + rate);
+      }
+      Rate routeRate = new Rate(rate);
+      Node node = root;
+      List<String> segments = segments(route);
+      for (int i = 0; i < segments.size(); i++) {
+        String segment = segments.get(i);
+        if (segment.equals("**")) {
+          if (i != segments.size() - 1) {
+            throw new IllegalArgumentException("** must be the last segment: " + route);
+          }
+          node.rest.put(method, routeRate);
+          return this;
+        }
+        if (segment.equals("*") || segment.startsWith(":")) {
+          if (node.parameter == null) {
+            node.parameter = new Node();
+          }
+          node = node.parameter;
+        } else {
+          node = node.literals.computeIfAbsent(segment, s -> new Node());
+        }
+      }
+      node.exact.put(method, routeRate);
+      return this;
+    }
+
+    /**
+     * Never sample requests to a route, e.g. health checks and static assets.
+     *
+     * @param route the route, e.g. {@code "health"}
+     * @return the builder
+     */
+    public Builder never(final String route) {
+      return route(route, 0f);
+    }
+
+    public RouteSampler build() {
+      root.compile();
+      return new RouteSampler(root);
+    }
+
+    private static List<String> segments(final String route) {
+      List<String> segments = new ArrayList<>();
+      for (String segment : route.split("/")) {
+        if (!segment.isEmpty()) {
+          segments.add(segment);
+        }
+      }
+      return segments;
+    }
+  }
+}
@@ -31,26 +31,74 @@ import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.multibindings.Multibinder;
 import ratpack.api.Nullable;
+import ratpack.exec.ExecController;
+import ratpack.func.Action;
 import ratpack.guice.ConfigurableModule;
 import ratpack.handling.HandlerDecorator;
 import ratpack.http.client.HttpClient;
 import ratpack.server.ServerConfig;
+import ratpack.util.Exceptions;
+import ratpack.zipkin.internal.BackoffSampler;
+import ratpack.zipkin.internal.ClientAddressResolver;
 import ratpack.zipkin.internal.DefaultServerTracingHandler;
+import ratpack.zipkin.internal.HeaderPropagation;
+import ratpack.zipkin.internal.MdcExecInterceptor;
+import ratpack.zipkin.internal.OverheadBudget;
+import ratpack.zipkin.internal.Pressure;
 import ratpack.zipkin.internal.RatpackCurrentTraceContext;
 import ratpack.zipkin.internal.RatpackHttpServerParser;
+import ratpack.zipkin.internal.RedMetrics;
+import ratpack.zipkin.internal.ReporterBacklog;
+import ratpack.zipkin.internal.ResponseBodyTracking;
+import ratpack.zipkin.internal.RouteCache;
+import ratpack.zipkin.internal.SpanReporterService;
+import ratpack.zipkin.internal.TailSamplingReporter;
+import ratpack.zipkin.internal.UnsampledPropagation;
+import ratpack.zipkin.internal.TraceContextExecInitializer;
+import ratpack.zipkin.internal.TraceContextMdc;
+import ratpack.zipkin.internal.TracingOptions;
 import ratpack.zipkin.internal.ZipkinHttpClientImpl;
 import zipkin2.Endpoint;
 import zipkin2.Span;
 import zipkin2.reporter.Reporter;
 import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Module for Zipkin distributed tracing.
  */
 public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.Config> {
 
+  private Config initialConfig;
+  private Action<? super Config> configurer = Action.noop();
+
+  @Override
+  public void setConfig(final Config config) {
+    this.initialConfig = config;
+  }
+
+  /**
+   * The configuration is applied when the module is configured, rather than when the config
+   * is first provided, so that optional execution interceptors and initializers are only
+   * bound when enabled.
+   */
+  @Override
+  public void configure(final Action<? super Config> configurer) {
+    this.configurer = configurer;
+  }
+
   @Override
   protected void configure() {
+    Config config = initialConfig != null ? initialConfig : new Config();
+    try {
+      configurer.execute(config);
+    } catch (Exception e) {
+      throw Exceptions.uncheck(e);
+    }
+    super.setConfig(config);
+
     bind(ServerTracingHandler.class)
         .to(DefaultServerTracingHandler.class)
         .in(Singleton.class);
@@ -61,6 +109,20 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
 
     bind(ZipkinHttpClientImpl.class);
 
+    if (config.mdcMode == MdcMode.EXECUTION_SEGMENT) {
+      bind(MdcExecInterceptor.class).in(Singleton.class);
+    }
+
+    if (config.overheadBudget > 0) {
+      bind(OverheadBudget.SegmentInterceptor.class).in(Singleton.class);
+    }
+
+    if (config.inheritThreadContext) {
+      bind(TraceContextExecInitializer.class).in(Singleton.class);
+    }
+
+    bind(RedMetricsHandler.class).in(Singleton.class);
+
     Provider<ServerTracingHandler> serverTracingHandlerProvider =
         getProvider(ServerTracingHandler.class);
 
@@ -85,18 +147,142 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
   }
 
   @Provides @Singleton
-  public HttpTracing getHttpTracing(final Config config, final ServerConfig serverConfig) {
+  public TraceContextMdc getTraceContextMdc(final Config config) {
+    if (config.mdcMode == MdcMode.DISABLED) {
+      return TraceContextMdc.disabled();
+    }
+    return TraceContextMdc.of(config.mdcTraceIdKey, config.mdcSpanIdKey,
+        config.mdcParentIdKey, config.mdcSampledKey);
+  }
+
+  @Provides @Singleton
+  public RouteCache getRouteCache(final Config config) {
+    return RouteCache.of(config.routeCacheSize);
+  }
+
+  @Provides @Singleton
+  public ClientAddressResolver getClientAddressResolver(final Config config) {
+    return ClientAddressResolver.of(config.trustedProxies, config.clientAddressCacheSize);
+  }
+
+  @Provides @Singleton
+  public ResponseBodyTracking getResponseBodyTracking(final Config config) {
+    return ResponseBodyTracking.of(config.finishAfterResponseBody);
+  }
+
+  @Provides @Singleton
+  public RedMetrics getRedMetrics(final Config config) {
+    return RedMetrics.of(config.redMetricsMaxEndpoints);
+  }
+
+  @Provides @Singleton
+  public RouteSampler getRouteSampler(final Config config) {
+    return config.routeSampler;
+  }
+
+  @Provides @Singleton
+  public ForcedSamplingLimiter getForcedSamplingLimiter(final Config config) {
+    return ForcedSamplingLimiter.of(config.forcedPerSecond, config.forcedPerCallerPerSecond);
+  }
+
+  @Provides @Singleton
+  public TracingOptions getTracingOptions(final RouteCache routeCache, final RedMetrics metrics,
+                                          final RouteSampler routeSampler,
+                                          final ForcedSamplingLimiter forcedSamplingLimiter,
+                                          final OverheadBudget overheadBudget,
+                                          final HeaderPropagation headerPropagation,
+                                          final ClientAddressResolver clientAddressResolver,
+                                          final ResponseBodyTracking responseBodyTracking) {
+    return TracingOptions.newBuilder()
+        .routeCache(routeCache)
+        .metrics(metrics)
+        .routeSampler(routeSampler)
+        .forcedSamplingLimiter(forcedSamplingLimiter)
+        .overheadBudget(overheadBudget)
+        .headerPropagation(headerPropagation)
+        .clientAddressResolver(clientAddressResolver)
+        .responseBodyTracking(responseBodyTracking)
+        .build();
+  }
+
+  @Provides @Singleton
+  public SpanReporterService getSpanReporterService(final Config config,
+                                                    final ExecController execController,
+                                                    final HttpClient httpClient) {
+    if (config.httpReporterEndpoint == null) {
+      return new SpanReporterService(config.spanReporter);
+    }
+    RatpackHttpReporter.Builder builder = RatpackHttpReporter.builder(config.httpReporterEndpoint);
+    try {
+      config.httpReporterConfigurer.execute(builder);
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not configure the HTTP span reporter", e);
+    }
+    // the untraced client, so that sending spans doesn't create more spans
+    return new SpanReporterService(builder.build(execController, httpClient));
+  }
+
+  @Provides @Singleton
+  public HeaderPropagation getHeaderPropagation(final Config config) {
+    // other propagation formats, or extra fields, are left to the propagation factory, and
+    // W3C headers are only handled here
+    if (config.propagationFactory != B3Propagation.FACTORY
+        || !config.directHeaderPropagation && !config.w3cTraceContext) {
+      return HeaderPropagation.disabled();
+    }
+    // with tail sampling, every request is sampled here, but not necessarily downstream
+    return HeaderPropagation.b3(config.w3cTraceContext, config.tailSamplingPolicy == null);
+  }
+
+  @Provides @Singleton
+  public OverheadBudget getOverheadBudget(final Config config) {
+    return OverheadBudget.of(config.overheadBudget);
+  }
+
+  @Provides @Singleton
+  public HttpTracing getHttpTracing(final Config config, final ServerConfig serverConfig,
+                                    final RouteCache routeCache, final TraceContextMdc mdc,
+                                    final SpanReporterService reporterService,
+                                    final OverheadBudget overheadBudget) {
+    Reporter<Span> reporter = reporterService.getReporter();
+    Sampler sampler = config.sampler;
+    Propagation.Factory propagationFactory = config.propagationFactory;
+    if (config.tailSamplingPolicy != null) {
+      // record everything, and leave the decision to the policy
+      reporter = new TailSamplingReporter(config.tailSamplingPolicy, reporter);
+      sampler = Sampler.ALWAYS_SAMPLE;
+      propagationFactory = UnsampledPropagation.create(propagationFactory);
+    }
+    List<Pressure> pressures = new ArrayList<>();
+    if (config.backoffHighWatermark > 0 && reporterService.getReporter() instanceof RatpackHttpReporter) {
+      pressures.add(ReporterBacklog.of((RatpackHttpReporter) reporterService.getReporter(),
+          config.backoffHighWatermark, config.backoffLowWatermark));
+    }
+    if (overheadBudget.isEnabled()) {
+      pressures.add(overheadBudget);
+    }
+    if (!pressures.isEmpty()) {
+      sampler = BackoffSampler.create(sampler, Pressure.any(pressures));
+    }
     Tracing tracing = Tracing.newBuilder()
-                             .sampler(config.sampler)
-                             .currentTraceContext(new RatpackCurrentTraceContext())
+                             .sampler(sampler)
+                             .currentTraceContext(new RatpackCurrentTraceContext(mdc))
                              .endpoint(buildEndpoint(config.serviceName, serverConfig.getPort(),
                                  serverConfig.getAddress()))
-                             .spanReporter(config.spanReporter)
-                             .propagationFactory(config.propagationFactory)
+                             .spanReporter(reporter)
+                             .propagationFactory(propagationFactory)
                              .build();
+    HttpClientParser clientParser = config.clientParser;
+    HttpServerParser serverParser = config.spanNameProvider != null
+        ? new RatpackHttpServerParser(config.spanNameProvider, routeCache)
+        : config.serverParser;
+    if (config.tagPolicy != null) {
+      clientParser = config.tagPolicy.clientParser(clientParser);
+      serverParser = config.tagPolicy.serverParser(serverParser);
+    }
     return HttpTracing.newBuilder(tracing)
-                      .clientParser(config.clientParser)
-                      .serverParser(config.serverParser)
+                      .clientParser(overheadBudget.clientParser(clientParser))
+                      .serverParser(overheadBudget.serverParser(serverParser))
                       .serverSampler(config.serverSampler)
                       .clientSampler(config.clientSampler)
                       .build();
@@ -117,6 +303,8 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
   public static class Config {
     private String serviceName = "unknown";
     private Reporter<Span> spanReporter = Reporter.NOOP;
+    private URI httpReporterEndpoint;
+    private Action<? super RatpackHttpReporter.Builder> httpReporterConfigurer = Action.noop();
     private Sampler sampler = Sampler.NEVER_SAMPLE;
     private HttpSampler serverSampler = HttpSampler.TRACE_ID;
     private HttpSampler clientSampler = HttpSampler.TRACE_ID;
@@ -124,6 +312,28 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
     private HttpClientParser clientParser = new HttpClientParser();
     private HttpServerParser serverParser = new HttpServerParser();
     private Propagation.Factory propagationFactory = B3Propagation.FACTORY;
+    private SpanNameProvider spanNameProvider;
+    private TailSamplingPolicy tailSamplingPolicy;
+    private TagPolicy tagPolicy;
+    private RouteSampler routeSampler = RouteSampler.none();
+    private int forcedPerSecond = 0;
+    private float backoffHighWatermark = 0;
+    private float backoffLowWatermark = 0;
+    private float overheadBudget = 0;
+    private boolean directHeaderPropagation = false;
+    private boolean w3cTraceContext = false;
+    private int forcedPerCallerPerSecond = 0;
+    private long routeCacheSize = 0;
+    private int trustedProxies = 0;
+    private long clientAddressCacheSize = 0;
+    private boolean finishAfterResponseBody = false;
+    private boolean inheritThreadContext = false;
+    private int redMetricsMaxEndpoints = 0;
+    private MdcMode mdcMode = MdcMode.SCOPE;
+    private String mdcTraceIdKey = TraceContextMdc.DEFAULT_TRACE_ID_KEY;
+    private String mdcSpanIdKey;
+    private String mdcParentIdKey;
+    private String mdcSampledKey;
 
     /**
      * Set the service name.
@@ -147,6 +357,37 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
      */
     public Config spanReporterV2(final Reporter<Span> reporter) {
       this.spanReporter = reporter;
+      this.httpReporterEndpoint = null;
+      return this;
+    }
+
+    /**
+     * Report spans to a Zipkin collector with a {@link RatpackHttpReporter}, which sends them
+     * from the server's own event loop and HTTP client.
+     *
+     * If set, this overrides any reporter set with {@link #spanReporterV2(Reporter)}.
+     *
+     * @param endpoint the collector endpoint, e.g. {@code http://localhost:9411/api/v2/spans}
+     * @return the config
+     */
+    public Config httpReporter(final URI endpoint) {
+      return httpReporter(endpoint, Action.noop());
+    }
+
+    /**
+     * Report spans to a Zipkin collector with a {@link RatpackHttpReporter}, which sends them
+     * from the server's own event loop and HTTP client.
+     *
+     * If set, this overrides any reporter set with {@link #spanReporterV2(Reporter)}.
+     *
+     * @param endpoint the collector endpoint, e.g. {@code http://localhost:9411/api/v2/spans}
+     * @param configurer configures the reporter's queue and messages
+     * @return the config
+     */
+    public Config httpReporter(final URI endpoint,
+                               final Action<? super RatpackHttpReporter.Builder> configurer) {
+      this.httpReporterEndpoint = endpoint;
+      this.httpReporterConfigurer = configurer;
       return this;
     }
 
@@ -164,6 +405,139 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
       return this;
     }
 
+    /**
+     * Sample up to a number of traces per second with an {@link AdaptiveSampler}, which
+     * adjusts its sampling probability to the traffic. This replaces the
+     * {@link #sampler(Sampler) sampler}.
+     *
+     * @param tracesPerSecond the number of traces to sample per second
+     * @return the config
+     */
+    public Config tracesPerSecond(final int tracesPerSecond) {
+      return sampler(AdaptiveSampler.create(tracesPerSecond));
+    }
+
+    /**
+     * Sample less while the {@link #httpReporter(URI) HTTP reporter} is backed up, so spans
+     * aren't built only to be dropped.
+     *
+     * Every second, if the reporter's queue is at least the high watermark or it dropped
+     * spans, the fraction of sampled traces that are kept is halved. It recovers gradually
+     * once the queue is under the low watermark. Requests sampled by their caller, or by a
+     * server or route sampler, are not affected.
+     *
+     * If not set, sampling doesn't depend on the reporter.
+     *
+     * @param highWatermark the fraction of the reporter's queue at which to sample less
+     * @param lowWatermark the fraction of the reporter's queue under which to sample more
+     * @return the config
+     */
+    public Config samplingBackoff(final float highWatermark, final float lowWatermark) {
+      if (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > 1) {
+        throw new IllegalArgumentException(
+            "watermarks must satisfy 0 <= lowWatermark < highWatermark <= 1");
+      }
+      this.backoffHighWatermark = highWatermark;
+      this.backoffLowWatermark = lowWatermark;
+      return this;
+    }
+
+    /**
+     * Limit the time spent in tracing code to a fraction of the time spent running the
+     * server's compute execution segments.
+     *
+     * The server and client handlers are timed, including their parsers. Every second, if
+     * tracing took more than the budget, the fraction of sampled traces that are kept is
+     * halved and request tags are skipped, until tracing takes less than half the budget.
+     * Requests sampled by their caller, or by a server or route sampler, are still traced.
+     *
+     * If not set, tracing isn't timed.
+     *
+     * @param maxFraction the fraction of execution time, e.g. 0.02 for 2%
+     * @return the config
+     */
+    public Config overheadBudget(final float maxFraction) {
+      if (maxFraction < 0 || maxFraction >= 1) {
+        throw new IllegalArgumentException("maxFraction must be at least 0 and less than 1: " + maxFraction);
+      }
+      this.overheadBudget = maxFraction;
+      return this;
+    }
+
+    /**
+     * Limit the tags that the server and client parsers add to spans, and their length.
+     *
+     * The policy applies to the configured parsers, including custom ones. Tail sampling
+     * reads the "http.status_code" tag, so keep it when using both.
+     *
+     * If not set, spans get every tag the parsers add.
+     *
+     * @param tagPolicy the tag policy
+     * @return the config
+     */
+    public Config tagPolicy(final TagPolicy tagPolicy) {
+      this.tagPolicy = tagPolicy;
+      return this;
+    }
+
+    /**
+     * Sample traces after the local root span finishes, instead of when the request starts.
+     *
+     * Every request is then recorded, and its spans are buffered until the policy decides
+     * whether to export them, so slow and failing requests can be kept. The
+     * {@link #sampler(Sampler) sampler} is not used. Requests whose caller has already
+     * decided not to sample them are still not recorded.
+     *
+     * Recording every request costs more than sampling a few, so enable this deliberately,
+     * and size the buffers with {@link TailSamplingPolicy.Builder#maxBufferedBytes(long)}.
+     * Client requests are sent without a sampled flag, except for debug requests, so
+     * downstream services still make their own decision instead of sampling everything this
+     * service calls. The W3C "traceparent" header, if enabled, is sent unsampled.
+     *
+     * @param policy the tail sampling policy
+     * @return the config
+     */
+    public Config tailSampling(final TailSamplingPolicy policy) {
+      this.tailSamplingPolicy = policy;
+      return this;
+    }
+
+    /**
+     * Set sampling rates for server routes, e.g. to never sample health checks.
+     *
+     * Requests are matched when they're received, before the
+     * {@link #serverSampler(HttpSampler) server sampler} and before a span is created.
+     * Requests that match no route, or whose caller already decided, are sampled as usual.
+     *
+     * @param routeSampler the route sampler
+     * @return the config
+     */
+    public Config routeSampler(final RouteSampler routeSampler) {
+      this.routeSampler = routeSampler;
+      return this;
+    }
+
+    /**
+     * Limit how many requests per second callers can force to be sampled, with a sampled or
+     * debug flag. Requests over the limit are sampled as if they had no flag, and counted by
+     * {@link ForcedSamplingLimiter#getOverridden()}.
+     *
+     * Upstream services that sample themselves also send the sampled flag, so the limits
+     * should allow for the traces they sample.
+     *
+     * If not set, forced sampling is not limited.
+     *
+     * @param perSecond the maximum number of forced requests per second, or 0 for no limit
+     * @param perCallerPerSecond the maximum number of forced requests per second from one
+     *     client address, resolved as for the server span, or 0 for no limit
+     * @return the config
+     */
+    public Config forcedSamplingLimit(final int perSecond, final int perCallerPerSecond) {
+      this.forcedPerSecond = perSecond;
+      this.forcedPerCallerPerSecond = perCallerPerSecond;
+      return this;
+    }
+
     /**
      * Set the {@link HttpSampler} for client requests.
      *
@@ -221,6 +595,7 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
      */
     public Config serverParser(final HttpServerParser serverParser) {
       this.serverParser = serverParser;
+      this.spanNameProvider = null;
       return this;
     }
 
@@ -231,7 +606,79 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
      * @return the Span name
      */
     public Config spanNameProvider(final SpanNameProvider spanNameProvider) {
-      this.serverParser = new RatpackHttpServerParser(spanNameProvider);
+      this.spanNameProvider = spanNameProvider;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of routes for which the {@code http.route} tag and the
+     * span names are cached.
+     *
+     * Routes are keyed by {@link ratpack.path.PathBinding} description, so requests to
+     * "users/1" and "users/2" on the route "users/:id" share one entry. When enabled, a
+     * {@link SpanNameProvider} is called at most once per method and route, and must
+     * only depend on those. If not set, defaults to 0 (no caching).
+     *
+     * @param routeCacheSize the maximum number of cached routes, or 0 to disable the cache
+     * @return the config
+     */
+    public Config routeCacheSize(final long routeCacheSize) {
+      if (routeCacheSize < 0) {
+        throw new IllegalArgumentException("routeCacheSize must not be negative: " + routeCacheSize);
+      }
+      this.routeCacheSize = routeCacheSize;
+      return this;
+    }
+
+    /**
+     * Keep request rate, error and latency metrics for every server request (by method and
+     * route) and client call (by host), whether it's sampled or not. Latency buckets link
+     * to sampled traces as exemplars. Serve the metrics with {@link RedMetricsHandler}.
+     *
+     * If not set, defaults to 0 (no metrics).
+     *
+     * @param maxEndpoints the maximum number of routes and hosts to keep metrics for, after
+     * which further ones are grouped together, or 0 to disable the metrics
+     * @return the config
+     */
+    public Config redMetrics(final int maxEndpoints) {
+      if (maxEndpoints < 0) {
+        throw new IllegalArgumentException("maxEndpoints must not be negative: " + maxEndpoints);
+      }
+      this.redMetricsMaxEndpoints = maxEndpoints;
+      return this;
+    }
+
+    /**
+     * Set how the current trace context is written to the SLF4J MDC.
+     *
+     * If not set, defaults to {@link MdcMode#SCOPE}.
+     *
+     * @param mdcMode the MDC mode
+     * @return the config
+     */
+    public Config mdc(final MdcMode mdcMode) {
+      this.mdcMode = mdcMode;
+      return this;
+    }
+
+    /**
+     * Set the MDC keys for the trace context. A null key is not written.
+     *
+     * If not set, only the trace ID is written, under "TraceId".
+     *
+     * @param traceIdKey the key for the trace ID
+     * @param spanIdKey the key for the span ID
+     * @param parentIdKey the key for the parent span ID
+     * @param sampledKey the key for the sampling decision ("true" or "false")
+     * @return the config
+     */
+    public Config mdcKeys(@Nullable final String traceIdKey, @Nullable final String spanIdKey,
+                          @Nullable final String parentIdKey, @Nullable final String sampledKey) {
+      this.mdcTraceIdKey = traceIdKey;
+      this.mdcSpanIdKey = spanIdKey;
+      this.mdcParentIdKey = parentIdKey;
+      this.mdcSampledKey = sampledKey;
       return this;
     }
 
@@ -247,5 +694,116 @@ public class ServerTracingModule extends ConfigurableModule<ServerTracingModule.
       this.propagationFactory = propagationFactory;
       return this;
     }
+
+    /**
+     * Extract and inject B3 headers directly on Netty's headers, parsing the IDs in place,
+     * rather than through {@link B3Propagation}. This allocates less per request, but is
+     * more lenient than Brave: for example, a 128-bit trace ID whose high half is all zeros
+     * is accepted.
+     *
+     * Only used with the default {@link B3Propagation#FACTORY}.
+     *
+     * If not set, defaults to false.
+     *
+     * @param directHeaderPropagation whether to handle B3 headers directly
+     * @return the config
+     */
+    public Config directHeaderPropagation(final boolean directHeaderPropagation) {
+      this.directHeaderPropagation = directHeaderPropagation;
+      return this;
+    }
+
+    /**
+     * Also extract W3C "traceparent" and "tracestate" headers from requests without B3
+     * headers, and inject them, alongside B3 headers, into client requests. As Brave doesn't
+     * support them, this enables {@link #directHeaderPropagation(boolean)}.
+     *
+     * Only used with the default {@link B3Propagation#FACTORY}.
+     *
+     * If not set, defaults to false.
+     *
+     * @param w3cTraceContext whether to propagate W3C trace context headers
+     * @return the config
+     */
+    public Config w3cTraceContext(final boolean w3cTraceContext) {
+      this.w3cTraceContext = w3cTraceContext;
+      return this;
+    }
+
+    /**
+     * Set the number of proxies in front of the server that add the address they received a
+     * request from to the "Forwarded" or "X-Forwarded-For" header. The client address of a
+     * server span is the one added by the outermost of these proxies, which the client can't
+     * spoof.
+     *
+     * If not set, defaults to 0, which uses the left-most address of the header.
+     *
+     * @param trustedProxies the number of trusted proxies
+     * @return the config
+     */
+    public Config trustedProxies(final int trustedProxies) {
+      if (trustedProxies < 0) {
+        throw new IllegalArgumentException("trustedProxies must not be negative: " + trustedProxies);
+      }
+      this.trustedProxies = trustedProxies;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of client addresses for which the parsed IP is cached. Worth
+     * enabling when most requests come from a bounded set of clients or proxies.
+     *
+     * If not set, defaults to 0 (no caching).
+     *
+     * @param clientAddressCacheSize the maximum number of cached addresses, or 0 to disable the cache
+     * @return the config
+     */
+    public Config clientAddressCacheSize(final long clientAddressCacheSize) {
+      if (clientAddressCacheSize < 0) {
+        throw new IllegalArgumentException("clientAddressCacheSize must not be negative: " + clientAddressCacheSize);
+      }
+      this.clientAddressCacheSize = clientAddressCacheSize;
+      return this;
+    }
+
+    /**
+     * Finish server spans once the response body has been written, or the connection has
+     * closed, instead of when the response headers are sent. Streamed, chunked and file
+     * responses are then timed until their last byte.
+     *
+     * Spans are annotated with "ttfb" when the headers are sent, and tagged with the number
+     * of body bytes, before compression, as "http.response.size".
+     *
+     * Client spans of {@link HttpClient#requestStream} are likewise finished once the body
+     * has been read, errored or been cancelled. They are annotated with "ttfb" when the
+     * headers arrive, and tagged with "http.response.size" and the time the reader had no
+     * outstanding demand, in microseconds, as "http.response.stall_us".
+     *
+     * If not set, defaults to false.
+     *
+     * @param finishAfterResponseBody whether to finish spans after the response body
+     * @return the config
+     */
+    public Config finishAfterResponseBody(final boolean finishAfterResponseBody) {
+      this.finishAfterResponseBody = finishAfterResponseBody;
+      return this;
+    }
+
+    /**
+     * Copy the trace context in scope on an event loop thread, outside of any execution,
+     * into executions started from that thread (e.g. from Netty callbacks).
+     *
+     * Executions forked from within another execution don't see its context this way: use
+     * {@link TracedExecution} for those.
+     *
+     * If not set, defaults to false.
+     *
+     * @param inheritThreadContext whether executions inherit the starting thread's context
+     * @return the config
+     */
+    public Config inheritThreadContext(final boolean inheritThreadContext) {
+      this.inheritThreadContext = inheritThreadContext;
+      return this;
+    }
   }
 }
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.codec.Encoding;
+
+/**
+ * A bounded, on-disk queue of encoded span messages, used by {@link RatpackHttpReporter} to
+ * keep spans while the collector is unavailable.
+ *
+ * Messages are appended to fixed-size, memory-mapped segment files in a directory, and
+ * replayed oldest first. Each segment records its sequence and how far it has been replayed,
+ * so a spool reopened on the same directory after a restart resumes where it stopped. Once
+ * the spool holds its maximum number of bytes, new messages are dropped and counted.
+ *
+ * Replayed segment files are kept and reused for new messages rather than deleted, as a file
+ * can't be deleted on every platform while it's mapped, and the mapping is only released when
+ * the buffer is collected.
+ */
+public final class SpanSpool implements AutoCloseable {
+
+  static final String SEGMENT_SUFFIX = ".spool";
+  // "ZSP2"
+  static final int MAGIC = 0x5a535032;
+  // magic, replayed offset, sequence
+  static final int SEGMENT_HEADER_BYTES = 16;
+  // length, span count, encoding code
+  static final int RECORD_HEADER_BYTES = 9;
+  // written rather than Encoding.ordinal(), so that files outlive changes to the enum
+  static final byte JSON_CODE = 1;
+  static final byte PROTO3_CODE = 2;
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  // replayed segments, reused before new files are created
+  private final Deque<Segment> free = new ArrayDeque<>();
+  private final AtomicLong spansSpooled = new AtomicLong();
+  private final AtomicLong spansReplayed = new AtomicLong();
+  private final AtomicLong spansDropped = new AtomicLong();
+  private long nextSequence;
+  private int pendingSpans;
+
+  private SpanSpool(final Path directory, final int segmentBytes, final int maxSegments) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+  }
+
+  /**
+   * Open a spool on a directory, recovering any messages spooled by a previous process.
+   *
+   * @param directory the directory for segment files, created if missing
+   * @param segmentBytes the size of each segment file, which is also the maximum message size
+   * @param maxBytes the maximum size of all segment files
+   * @return the spool
+   * @throws IOException if the directory or its segments can't be read
+   */
+  public static SpanSpool open(final Path directory, final int segmentBytes, final long maxBytes)
+      throws IOException {
+    if (segmentBytes <= SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES) {
+      throw new IllegalArgumentException("segmentBytes is too small: " + segmentBytes);
+    }
+    if (maxBytes < segmentBytes) {
+      throw new IllegalArgumentException("maxBytes must be at least segmentBytes: " + maxBytes);
+    }
+    Files.createDirectories(directory);
+    SpanSpool spool = new SpanSpool(directory, segmentBytes,
+        (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+    spool.recover();
+    return spool;
+  }
+
+  /**
+   * @return the number of spans written to the spool
+   */
+  public long getSpansSpooled() {
+    return spansSpooled.get();
+  }
+
+  /**
+   * @return the number of spooled spans that were sent
+   */
+  public long getSpansReplayed() {
+    return spansReplayed.get();
+  }
+
+  /**
+   * @return the number of spans dropped because the spool was full
+   */
+  public long getSpansDropped() {
+    return spansDropped.get();
+  }
+
+  /**
+   * @return the number of spans waiting to be replayed
+   */
+  public synchronized int getPendingSpans() {
+    return pendingSpans;
+  }
+
+  /**
+   * Write the spooled messages to disk.
+   */
+  @Override
+  public synchronized void close() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+    for (Segment segment : free) {
+      segment.buffer.force();
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return pendingSpans == 0;
+  }
+
+  /**
+   * Append an encoded message. The message buffer is not released.
+   *
+   * @return false if the message was dropped because the spool is full
+   */
+  synchronized boolean append(final ByteBuf message, final int spanCount, final Encoding encoding) {
+    byte code = encodingCode(encoding);
+    int length = message.readableBytes();
+    int recordBytes = RECORD_HEADER_BYTES + length;
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.writeOffset + recordBytes > segmentBytes) {
+      tail = SEGMENT_HEADER_BYTES + recordBytes > segmentBytes ? null : nextSegment();
+      if (tail == null) {
+        spansDropped.addAndGet(spanCount);
+        return false;
+      }
+    }
+    MappedByteBuffer buffer = tail.buffer;
+    int offset = tail.writeOffset;
+    int end = offset + recordBytes;
+    if (end + 4 <= segmentBytes) {
+      // ends the records, as a reused segment may still hold older ones after this
+      buffer.putInt(end, 0);
+    }
+    message.getBytes(message.readerIndex(), slice(buffer, offset + RECORD_HEADER_BYTES, length));
+    buffer.putInt(offset + 4, spanCount);
+    buffer.put(offset + 8, code);
+    // written last, so that a partly written record is never read
+    buffer.putInt(offset, length);
+    tail.writeOffset += recordBytes;
+    tail.pendingSpans += spanCount;
+    pendingSpans += spanCount;
+    spansSpooled.addAndGet(spanCount);
+    return true;
+  }
+
+  /**
+   * @return the oldest record that hasn't been replayed, or null if there is none
+   */
+  synchronized Record peek() {
+    for (Segment segment : segments) {
+      if (segment.readOffset < segment.writeOffset) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = segment.readOffset;
+        int length = buffer.getInt(offset);
+        return new Record(segment, offset,
+            Unpooled.wrappedBuffer(slice(buffer, offset + RECORD_HEADER_BYTES, length)),
+            buffer.getInt(offset + 4), encoding(buffer.get(offset + 8)));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Mark a record returned by {@link #peek()} as replayed.
+   */
+  synchronized void commit(final Record record) {
+    Segment segment = record.segment;
+    if (segment.readOffset != record.offset) {
+      throw new IllegalStateException("Records must be committed in order");
+    }
+    segment.readOffset += RECORD_HEADER_BYTES + segment.buffer.getInt(record.offset);
+    segment.buffer.putInt(4, segment.readOffset);
+    segment.pendingSpans -= record.spanCount;
+    pendingSpans -= record.spanCount;
+    spansReplayed.addAndGet(record.spanCount);
+    // the tail is kept, as it's still being written
+    boolean removed = true;
+    while (removed && segments.size() > 1) {
+      removed = removeReplayedHead();
+    }
+  }
+
+  /** Moves the head segment to the free list if it has been replayed. */
+  private boolean removeReplayedHead() {
+    Segment head = segments.peekFirst();
+    if (head == null || head.readOffset < head.writeOffset) {
+      return false;
+    }
+    free.addLast(segments.removeFirst());
+    return true;
+  }
+
+  /**
+   * @return an empty segment appended to the spool, or null if the spool is full
+   */
+  private Segment nextSegment() {
+    Segment segment = free.pollFirst();
+    if (segment == null && segments.size() < maxSegments) {
+      segment = newSegment();
+    }
+    if (segment == null && removeReplayedHead()) {
+      segment = free.pollFirst();
+    }
+    if (segment == null) {
+      return null;
+    }
+    segment.reset(nextSequence++);
+    segments.addLast(segment);
+    return segment;
+  }
+
+  private Segment newSegment() {
+    Path path = directory.resolve(String.format("%020d%s", nextSequence, SEGMENT_SUFFIX));
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      buffer.putInt(0, MAGIC);
+      return new Segment(buffer, SEGMENT_HEADER_BYTES);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void recover() throws IOException {
+    List<Segment> recovered = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        Segment segment = openSegment(path);
+        if (segment == null) {
+          // not a segment of this spool, and never mapped, so it can be deleted
+          Files.deleteIfExists(path);
+        } else {
+          recovered.add(segment);
+        }
+      }
+    }
+    // reused files keep their names, so segments are ordered by the sequence they hold
+    recovered.sort(Comparator.comparingLong(segment -> segment.sequence));
+    for (Segment segment : recovered) {
+      nextSequence = Math.max(nextSequence, segment.sequence + 1);
+      if (segment.readOffset == segment.writeOffset) {
+        free.addLast(segment);
+      } else {
+        segments.addLast(segment);
+        pendingSpans += segment.pendingSpans;
+      }
+    }
+  }
+
+  private Segment openSegment(final Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      if (channel.size() != segmentBytes) {
+        return null;
+      }
+      // checked before mapping, so that invalid files can be deleted
+      ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+      while (header.hasRemaining()) {
+        if (channel.read(header, header.position()) < 0) {
+          return null;
+        }
+      }
+      int readOffset = header.getInt(4);
+      if (header.getInt(0) != MAGIC || readOffset < SEGMENT_HEADER_BYTES
+          || readOffset > segmentBytes) {
+        return null;
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      Segment segment = new Segment(buffer, readOffset);
+      segment.sequence = header.getLong(8);
+      // find the end of the complete records that haven't been replayed
+      int offset = readOffset;
+      while (offset + RECORD_HEADER_BYTES <= segmentBytes) {
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + RECORD_HEADER_BYTES + length > segmentBytes
+            || encoding(buffer.get(offset + 8)) == null) {
+          break;
+        }
+        segment.pendingSpans += buffer.getInt(offset + 4);
+        offset += RECORD_HEADER_BYTES + length;
+      }
+      segment.writeOffset = offset;
+      return segment;
+    }
+  }
+
+  private static byte encodingCode(final Encoding encoding) {
+    switch (encoding) {
+      case JSON:
+        return JSON_CODE;
+      case PROTO3:
+        return PROTO3_CODE;
+      default:
+        throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+    }
+  }
+
+  /**
+   * @return the encoding with the given code, or null if the code is unknown
+   */
+  private static Encoding encoding(final byte code) {
+    switch (code) {
+      case JSON_CODE:
+        return Encoding.JSON;
+      case PROTO3_CODE:
+        return Encoding.PROTO3;
+      default:
+        return null;
+    }
+  }
+
+  private static ByteBuffer slice(final MappedByteBuffer buffer, final int offset,
+                                  final int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset);
+    slice.limit(offset + length);
+    return slice.slice();
+  }
+
+  private static final class Segment {
+    final MappedByteBuffer buffer;
+    long sequence;
+    int readOffset;
+    int writeOffset;
+    int pendingSpans;
+
+    Segment(final MappedByteBuffer buffer, final int readOffset) {
+      this.buffer = buffer;
+      this.readOffset = readOffset;
+      this.writeOffset = readOffset;
+    }
+
+    /** Empties the segment, so it's appended to as the newest. */
+    void reset(final long sequence) {
+      this.sequence = sequence;
+      readOffset = SEGMENT_HEADER_BYTES;
+      writeOffset = SEGMENT_HEADER_BYTES;
+      pendingSpans = 0;
+      buffer.putInt(SEGMENT_HEADER_BYTES, 0);
+      buffer.putLong(8, sequence);
+      buffer.putInt(4, SEGMENT_HEADER_BYTES);
+    }
+  }
+
+  /**
+   * A spooled message. The message wraps the mapped segment, so it's only valid until the
+   * record is committed.
+   */
+  static final class Record {
+    final Segment segment;
+    final int offset;
+    final ByteBuf message;
+    final int spanCount;
+    final Encoding encoding;
+
+    Record(final Segment segment, final int offset, final ByteBuf message, final int spanCount,
+           final Encoding encoding) {
+      this.segment = segment;
+      this.offset = offset;
+      this.message = message;
+      this.spanCount = spanCount;
+      this.encoding = encoding;
+    }
+  }
+}
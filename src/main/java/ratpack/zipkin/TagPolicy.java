@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import brave.SpanCustomizer;
+import brave.http.HttpAdapter;
+import brave.http.HttpClientParser;
+import brave.http.HttpServerAdapter;
+import brave.http.HttpServerParser;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Limits the tags that the server and client parsers add to spans, when set with
+ * {@link ServerTracingModule.Config#tagPolicy(TagPolicy)}.
+ *
+ * The policy wraps the configured parsers. Tags it doesn't list are dropped, and the rest
+ * are truncated to the maximum length. The parsers see a {@code null} path or URL when the
+ * "http.path" or "http.url" tag isn't listed, as Brave's parsers do for unknown values, so
+ * they are never computed. The "error" tag is always kept.
+ */
+public final class TagPolicy {
+
+  static final String ERROR = "error";
+  static final String HTTP_PATH = "http.path";
+  static final String HTTP_URL = "http.url";
+
+  private final Set<String> tags;
+  private final int maxValueLength;
+  private final boolean stripQueryString;
+  private final boolean tagPath;
+  private final boolean tagUrl;
+
+  private TagPolicy(final Builder builder) {
+    this.tags = new HashSet<>(builder.tags);
+    this.tags.add(ERROR);
+    this.maxValueLength = builder.maxValueLength;
+    this.stripQueryString = builder.stripQueryString;
+    this.tagPath = tags.contains(HTTP_PATH);
+    this.tagUrl = tags.contains(HTTP_URL);
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * @return a parser that only adds the tags of this policy
+   */
+  public HttpServerParser serverParser(final HttpServerParser delegate) {
+    return new HttpServerParser() {
+      @Override
+      public <Req> void request(final HttpAdapter<Req, ?> adapter, final Req req,
+                                final SpanCustomizer customizer) {
+        delegate.request(adapter(adapter), req, new Filtered(customizer));
+      }
+
+      @Override
+      public <Resp> void response(final HttpAdapter<?, Resp> adapter, final Resp res,
+                                  final Throwable error, final SpanCustomizer customizer) {
+        delegate.response(adapter(adapter), res, error, new Filtered(customizer));
+      }
+    };
+  }
+
+  /**
+   * @return a parser that only adds the tags of this policy
+   */
+  public HttpClientParser clientParser(final HttpClientParser delegate) {
+    return new HttpClientParser() {
+      @Override
+      public <Req> void request(final HttpAdapter<Req, ?> adapter, final Req req,
+                                final SpanCustomizer customizer) {
+        delegate.request(adapter(adapter), req, new Filtered(customizer));
+      }
+
+      @Override
+      public <Resp> void response(final HttpAdapter<?, Resp> adapter, final Resp res,
+                                  final Throwable error, final SpanCustomizer customizer) {
+        delegate.response(adapter(adapter), res, error, new Filtered(customizer));
+      }
+    };
+  }
+
+  private boolean isTagged(final String key) {
+    return tags.contains(key);
+  }
+
+  private String value(final String value) {
+    return value != null && value.length() > maxValueLength
+        ? value.substring(0, maxValueLength) : value;
+  }
+
+  private <Req, Resp> HttpAdapter<Req, Resp> adapter(final HttpAdapter<Req, Resp> adapter) {
+    // the path and URL are passed through as they are when they're tagged in full
+    return tagPath && tagUrl && !stripQueryString ? adapter : new PolicyAdapter<>(adapter);
+  }
+
+  private String withoutQueryString(final String value) {
+    if (value == null || !stripQueryString) {
+      return value;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '?' || c == '#') {
+        return value.substring(0, i);
+      }
+    }
+    return value;
+  }
+
+  /** Only lets through the tags of the policy. */
+  private final class Filtered implements SpanCustomizer {
+    private final SpanCustomizer delegate;
+
+    Filtered(final SpanCustomizer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public SpanCustomizer name(final String name) {
+      delegate.name(name);
+      return this;
+    }
+
+    @Override
+    public SpanCustomizer tag(final String key, final String value) {
+      if (isTagged(key)) {
+        delegate.tag(key, value(value));
+      }
+      return this;
+    }
+
+    @Override
+    public SpanCustomizer annotate(final String value) {
+      delegate.annotate(value);
+      return this;
+    }
+  }
+
+  /**
+   * Hides the path and URL unless they are tagged. {@link HttpAdapter} can't be extended
+   * outside of Brave, but parsers only use this as an {@link HttpAdapter}.
+   */
+  private final class PolicyAdapter<Req, Resp> extends HttpServerAdapter<Req, Resp> {
+    private final HttpAdapter<Req, Resp> delegate;
+
+    PolicyAdapter(final HttpAdapter<Req, Resp> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public String method(final Req request) {
+      return delegate.method(request);
+    }
+
+    @Override
+    public String path(final Req request) {
+      return tagPath ? withoutQueryString(delegate.path(request)) : null;
+    }
+
+    @Override
+    public String url(final Req request) {
+      return tagUrl ? withoutQueryString(delegate.url(request)) : null;
+    }
+
+    @Override
+    public String requestHeader(final Req request, final String name) {
+      return delegate.requestHeader(request, name);
+    }
+
+    @Override
+    public String methodFromResponse(final Resp response) {
+      return delegate.methodFromResponse(response);
+    }
+
+    @Override
+    public String route(final Resp response) {
+      return delegate.route(response);
+    }
+
+    @Override
+    public Integer statusCode(final Resp response) {
+      return delegate.statusCode(response);
+    }
+
+    @Override
+    public int statusCodeAsInt(final Resp response) {
+      return delegate.statusCodeAsInt(response);
+    }
+  }
+
+  /**
+   * Builder for {@link TagPolicy}.
+   */
+  public static final class Builder {
+    private final Set<String> tags = new HashSet<>(
+        Arrays.asList("http.method", HTTP_PATH, "http.status_code"));
+    private int maxValueLength = Integer.MAX_VALUE;
+    private boolean stripQueryString = false;
+
+    private Builder() {
+    }
+
+    /**
+     * Set the tags to keep, replacing the defaults. Tags added by custom parsers must be
+     * listed too. "error" is always kept.
+     *
+     * If not set, defaults to the tags of Brave's parsers: "http.method", "http.path" and
+     * "http.status_code".
+     *
+     * @param tags the names of the tags to keep
+     * @return the builder
+     */
+    public Builder tags(final String... tags) {
+      this.tags.clear();
+      this.tags.addAll(Arrays.asList(tags));
+      return this;
+    }
+
+    /**
+     * Set the maximum length of tag values. Longer values are truncated.
+     *
+     * If not set, values are not truncated.
+     *
+     * @param maxValueLength the maximum number of characters of a tag value
+     * @return the builder
+     */
+    public Builder maxValueLength(final int maxValueLength) {
+      if (maxValueLength <= 0) {
+        throw new IllegalArgumentException("maxValueLength must be positive: " + maxValueLength);
+      }
+      this.maxValueLength = maxValueLength;
+      return this;
+    }
+
+    /**
+     * Set whether the query string and fragment are removed from the path and URL.
+     *
+     * If not set, defaults to false.
+     *
+     * @param stripQueryString whether to remove query strings
+     * @return the builder
+     */
+    public Builder stripQueryString(final boolean stripQueryString) {
+      this.stripQueryString = stripQueryString;
+      return this;
+    }
+
+    public TagPolicy build() {
+      return new TagPolicy(this);
+    }
+  }
+}
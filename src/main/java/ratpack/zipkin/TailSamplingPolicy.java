@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin;
+
+import brave.internal.HexCodec;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import zipkin2.Span;
+
+/**
+ * Decides which traces to export when tail sampling is enabled with
+ * {@link ServerTracingModule.Config#tailSampling(TailSamplingPolicy)}.
+ *
+ * Every request is recorded, and the spans of a request are buffered until its local root
+ * span (usually the server span) finishes. They are then exported if any of them has an
+ * error, the root's status code is at least {@link Builder#minStatusCode}, the root took
+ * longer than its latency threshold, or its trace ID falls within the baseline rate.
+ * Otherwise they're dropped. Each request is decided on its own, even when a caller sends
+ * several in the same trace.
+ *
+ * The policy isn't consulted for debug requests, or for requests whose caller sent a sampled
+ * decision, as the rest of their trace is reported anyway: these are always exported.
+ */
+public final class TailSamplingPolicy {
+
+  private final boolean exportErrors;
+  private final int minStatusCode;
+  private final long latencyThresholdMicros;
+  private final Map<String, Long> latencyThresholdsMicros;
+  private final long baselineBoundary;
+  private final long maxBufferedBytes;
+  private final int maxSpansPerTrace;
+
+  private TailSamplingPolicy(final Builder builder) {
+    this.exportErrors = builder.exportErrors;
+    this.minStatusCode = builder.minStatusCode;
+    this.latencyThresholdMicros = toMicros(builder.latencyThreshold);
+    this.latencyThresholdsMicros = new HashMap<>();
+    builder.latencyThresholds.forEach((name, threshold) ->
+        latencyThresholdsMicros.put(name, toMicros(threshold)));
+    this.baselineBoundary = (long) (Long.MAX_VALUE * (double) builder.baselineRate);
+    this.maxBufferedBytes = builder.maxBufferedBytes;
+    this.maxSpansPerTrace = builder.maxSpansPerTrace;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * @param localRoot the local root span, which has just finished
+   * @param spans the buffered spans under the local root, including it
+   * @return whether to export the spans
+   */
+  public boolean shouldExport(final Span localRoot, final Collection<Span> spans) {
+    if (exportErrors) {
+      for (Span span : spans) {
+        if (span.tags().containsKey("error")) {
+          return true;
+        }
+      }
+    }
+    String statusCode = localRoot.tags().get("http.status_code");
+    if (statusCode != null && parseStatusCode(statusCode) >= minStatusCode) {
+      return true;
+    }
+    Long duration = localRoot.duration();
+    long threshold = latencyThresholdsMicros.getOrDefault(localRoot.name(), latencyThresholdMicros);
+    if (duration != null && threshold >= 0 && duration > threshold) {
+      return true;
+    }
+    // decided by trace ID, so services with the same rate keep the same traces
+    long traceId = HexCodec.lowerHexToUnsignedLong(localRoot.traceId());
+    return Math.abs(traceId == Long.MIN_VALUE ? Long.MAX_VALUE : traceId) < baselineBoundary;
+  }
+
+  /**
+   * @return the maximum size, in JSON-encoded bytes, of the spans buffered for all
+   *         undecided traces
+   */
+  public long getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  /**
+   * @return the maximum number of spans buffered for one trace
+   */
+  public int getMaxSpansPerTrace() {
+    return maxSpansPerTrace;
+  }
+
+  private static int parseStatusCode(final String statusCode) {
+    try {
+      return Integer.parseInt(statusCode);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static long toMicros(final Duration duration) {
+    return duration == null ? -1 : duration.toNanos() / 1000;
+  }
+
+  /**
+   * Builder for {@link TailSamplingPolicy}.
+   */
+  public static final class Builder {
+    private boolean exportErrors = true;
+    private int minStatusCode = 500;
+    private Duration latencyThreshold;
+    private final Map<String, Duration> latencyThresholds = new HashMap<>();
+    private float baselineRate = 0.01f;
+    private long maxBufferedBytes = 8 * 1024 * 1024;
+    private int maxSpansPerTrace = 100;
+
+    private Builder() {
+    }
+
+    /**
+     * Set whether traces with a span tagged "error" are exported.
+     *
+     * If not set, defaults to true.
+     *
+     * @param exportErrors whether to export traces with errors
+     * @return the builder
+     */
+    public Builder exportErrors(final boolean exportErrors) {
+      this.exportErrors = exportErrors;
+      return this;
+    }
+
+    /**
+     * Set the lowest "http.status_code" of the local root span for which traces are exported.
+     *
+     * If not set, defaults to 500.
+     *
+     * @param minStatusCode the lowest status code to export
+     * @return the builder
+     */
+    public Builder minStatusCode(final int minStatusCode) {
+      this.minStatusCode = minStatusCode;
+      return this;
+    }
+
+    /**
+     * Export traces whose local root span takes longer than this, unless a threshold is set
+     * for the span's name.
+     *
+     * If not set, latency alone doesn't export traces.
+     *
+     * @param latencyThreshold the latency threshold
+     * @return the builder
+     */
+    public Builder latencyThreshold(final Duration latencyThreshold) {
+      this.latencyThreshold = latencyThreshold;
+      return this;
+    }
+
+    /**
+     * Export traces whose local root span has the given name and takes longer than this.
+     * Server spans are named after the method and route, e.g. "get /users/:id".
+     *
+     * @param spanName the span name
+     * @param latencyThreshold the latency threshold for spans with that name
+     * @return the builder
+     */
+    public Builder latencyThreshold(final String spanName, final Duration latencyThreshold) {
+      this.latencyThresholds.put(spanName, latencyThreshold);
+      return this;
+    }
+
+    /**
+     * Set the rate at which traces are exported when no other rule applies.
+     *
+     * If not set, defaults to 0.01.
+     *
+     * @param baselineRate the rate, from 0 to 1
+     * @return the builder
+     */
+    public Builder baselineRate(final float baselineRate) {
+      if (baselineRate < 0 || baselineRate > 1) {
+        throw new IllegalArgumentException("baselineRate must be between 0 and 1: " + baselineRate);
+      }
+      this.baselineRate = baselineRate;
+      return this;
+    }
+
+    /**
+     * Set the maximum size of the spans buffered for traces whose root hasn't finished,
+     * counted as their JSON-encoded size. When it's reached, the oldest trace is evicted.
+     * Buffers are split by trace ID to avoid contention, and each gets an equal share.
+     *
+     * If not set, defaults to 8 MiB.
+     *
+     * @param maxBufferedBytes the maximum size of buffered spans, in bytes
+     * @return the builder
+     */
+    public Builder maxBufferedBytes(final long maxBufferedBytes) {
+      if (maxBufferedBytes <= 0) {
+        throw new IllegalArgumentException("maxBufferedBytes must be positive: " + maxBufferedBytes);
+      }
+      this.maxBufferedBytes = maxBufferedBytes;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of spans buffered for one trace. When it's reached, the trace's
+     * oldest span is evicted.
+     *
+     * If not set, defaults to 100.
+     *
+     * @param maxSpansPerTrace the maximum number of buffered spans per trace
+     * @return the builder
+     */
+    public Builder maxSpansPerTrace(final int maxSpansPerTrace) {
+      if (maxSpansPerTrace <= 0) {
+        throw new IllegalArgumentException("maxSpansPerTrace must be positive: " + maxSpansPerTrace);
+      }
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      return this;
+    }
+
+    public TailSamplingPolicy build() {
+      return new TailSamplingPolicy(this);
+    }
+  }
+}
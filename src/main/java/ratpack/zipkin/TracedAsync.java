@@ -0,0 +1,77 @@
+package ratpack.zipkin;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import ratpack.exec.Promise;
+import ratpack.func.Factory;
+import ratpack.util.Exceptions;
+
+/**
+ * Helpers for offloading work from a Ratpack execution to other threads, keeping the
+ * trace context of the caller.
+ *
+ * The work runs with the caller's context in scope, so spans created on the other thread
+ * (e.g. by instrumented JDBC or Kafka clients) are children of the caller's span. This
+ * requires a {@link CurrentTraceContext} that works off-execution, such as the one
+ * configured by {@link ServerTracingModule}.
+ */
+public final class TracedAsync {
+
+  private TracedAsync() {
+  }
+
+  /**
+   * Wrap an {@link ExecutorService} so that tasks run with the trace context that was
+   * current when they were submitted.
+   *
+   * @param currentTraceContext the current trace context
+   * @param delegate the executor service to wrap
+   * @return the wrapped executor service
+   */
+  public static ExecutorService executorService(final CurrentTraceContext currentTraceContext,
+                                                final ExecutorService delegate) {
+    return currentTraceContext.executorService(delegate);
+  }
+
+  /**
+   * Like {@link CompletableFuture#supplyAsync(Supplier, Executor)}, with the current trace
+   * context in scope while the supplier runs.
+   *
+   * @param currentTraceContext the current trace context
+   * @param supplier the work to run
+   * @param executor the executor to run it on
+   * @param <T> the type of the result
+   * @return a future for the result
+   */
+  public static <T> CompletableFuture<T> supplyAsync(final CurrentTraceContext currentTraceContext,
+                                                     final Supplier<T> supplier,
+                                                     final Executor executor) {
+    final TraceContext parent = currentTraceContext.get();
+    return CompletableFuture.supplyAsync(() -> {
+      try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(parent)) {
+        return supplier.get();
+      }
+    }, executor);
+  }
+
+  /**
+   * Run work on an executor, with the current trace context in scope, and resume the
+   * current execution with the result. The execution is not blocked while the work runs.
+   *
+   * @param currentTraceContext the current trace context
+   * @param executor the executor to run the work on
+   * @param factory the work to run
+   * @param <T> the type of the result
+   * @return a promise for the result
+   */
+  public static <T> Promise<T> promise(final CurrentTraceContext currentTraceContext,
+                                       final Executor executor,
+                                       final Factory<T> factory) {
+    return Promise.async(downstream ->
+        downstream.accept(supplyAsync(currentTraceContext, () -> Exceptions.uncheck(factory), executor)));
+  }
+}
@@ -0,0 +1,40 @@
+package ratpack.zipkin;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import ratpack.exec.ExecStarter;
+import ratpack.exec.Execution;
+import ratpack.zipkin.internal.RatpackCurrentTraceContext;
+
+/**
+ * Factory methods for forking executions with a trace context.
+ *
+ * Forked executions don't inherit the registry of the execution that forked them, and
+ * in Ratpack 1.4 the parent can't be seen when the fork is initialized, so the trace
+ * context has to be passed explicitly (as with {@link TracedParallelBatch}).
+ */
+public final class TracedExecution {
+
+  private TracedExecution() {
+  }
+
+  /**
+   * Fork an execution with the given trace context.
+   *
+   * @param context the trace context, may be null
+   * @return the exec starter for the fork
+   */
+  public static ExecStarter fork(final TraceContext context) {
+    return Execution.fork().register(registry -> registry.add(RatpackCurrentTraceContext.wrap(context)));
+  }
+
+  /**
+   * Fork an execution with the current trace context.
+   *
+   * @param currentTraceContext the current trace context
+   * @return the exec starter for the fork
+   */
+  public static ExecStarter fork(final CurrentTraceContext currentTraceContext) {
+    return fork(currentTraceContext.get());
+  }
+}
@@ -1,8 +1,14 @@
 package ratpack.zipkin;
 
+import brave.Span;
+import brave.Tracer;
 import brave.propagation.TraceContext;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import ratpack.exec.Promise;
+import ratpack.exec.Throttle;
 import ratpack.exec.util.ParallelBatch;
 import ratpack.zipkin.internal.RatpackCurrentTraceContext;
 
@@ -14,14 +20,39 @@ import ratpack.zipkin.internal.RatpackCurrentTraceContext;
  * which do not "inherit" registries from the calling execution. Consequently,
  * the trace context must be passed explicitly to the forked executions.
  *
+ * Optionally, each promise can be run in its own child span (see
+ * {@link #withChildSpans(Tracer, String)}), and the number of promises running at once can
+ * be limited (see {@link #maxConcurrency(int)}). Use {@link ParallelBatch#publisher()} on
+ * the resulting batch to receive values as they complete.
+ *
  * @param <T> the type of value produced by each promise in the batch.
  */
 public final class TracedParallelBatch<T> {
 
+  /**
+   * Tag for the position of the promise in the batch.
+   */
+  public static final String BATCH_INDEX_TAG = "batch.index";
+  /**
+   * Tag for the time, in microseconds, that the promise waited before it started.
+   */
+  public static final String BATCH_QUEUE_TIME_TAG = "batch.queue_time_us";
+
   private final Iterable<? extends Promise<T>> promises;
+  private final Tracer tracer;
+  private final String spanName;
+  private final Throttle throttle;
 
   private TracedParallelBatch(Iterable<? extends Promise<T>> promises) {
+    this(promises, null, null, null);
+  }
+
+  private TracedParallelBatch(Iterable<? extends Promise<T>> promises, Tracer tracer, String spanName,
+                              Throttle throttle) {
     this.promises = promises;
+    this.tracer = tracer;
+    this.spanName = spanName;
+    this.throttle = throttle;
   }
 
   /**
@@ -77,6 +108,29 @@ public final class TracedParallelBatch<T> {
     return of(context, Arrays.asList(promises));
   }
 
+  /**
+   * Run each promise in a child span of the batch's trace context, tagged with
+   * {@link #BATCH_INDEX_TAG} and {@link #BATCH_QUEUE_TIME_TAG}.
+   *
+   * @param tracer the tracer used to create the spans
+   * @param spanName the name of the spans
+   * @return a TracedParallelBatch with child spans
+   */
+  public TracedParallelBatch<T> withChildSpans(final Tracer tracer, final String spanName) {
+    return new TracedParallelBatch<>(promises, tracer, spanName, throttle);
+  }
+
+  /**
+   * Limit the number of promises of the batch that run at once. The other promises wait
+   * (without blocking a thread) until one completes.
+   *
+   * @param maxConcurrency the maximum number of promises running at once
+   * @return a TracedParallelBatch with a concurrency limit
+   */
+  public TracedParallelBatch<T> maxConcurrency(final int maxConcurrency) {
+    return new TracedParallelBatch<>(promises, tracer, spanName, Throttle.ofSize(maxConcurrency));
+  }
+
   /**
    * Set the trace context.
    *
@@ -84,7 +138,44 @@ public final class TracedParallelBatch<T> {
    * @return a ParallelBatch
    */
   public ParallelBatch<T> withContext(final TraceContext context) {
-    return of(context, promises);
+    if (tracer == null && throttle == null) {
+      return of(context, promises);
+    }
+    List<Promise<T>> legs = new ArrayList<>();
+    int index = 0;
+    for (Promise<T> promise : promises) {
+      legs.add(leg(index++, promise));
+    }
+    return of(context, legs);
+  }
+
+  private Promise<T> leg(final int index, final Promise<T> promise) {
+    if (tracer == null) {
+      return promise.throttled(throttle);
+    }
+    return Promise.sync(System::nanoTime).flatMap(queuedAt -> {
+      Promise<T> spanned = spanned(index, queuedAt, promise);
+      return throttle != null ? spanned.throttled(throttle) : spanned;
+    });
+  }
+
+  // the span starts when the promise does, i.e. once the throttle lets it through
+  private Promise<T> spanned(final int index, final long queuedAt, final Promise<T> promise) {
+    return Promise.sync(() -> tracer.nextSpan()
+        .name(spanName)
+        .tag(BATCH_INDEX_TAG, Integer.toString(index))
+        .tag(BATCH_QUEUE_TIME_TAG, Long.toString(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queuedAt)))
+        .start()
+    ).flatMap(span -> {
+      Tracer.SpanInScope scope = tracer.withSpanInScope(span);
+      return promise.wiretap(result -> {
+        scope.close();
+        if (result.isError()) {
+          span.error(result.getThrowable());
+        }
+        span.finish();
+      });
+    });
   }
 
 }
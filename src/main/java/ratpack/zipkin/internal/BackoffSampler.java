@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.sampler.Sampler;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link Sampler} that samples less under {@link Pressure}, e.g. while the span reporter is
+ * backed up.
+ *
+ * Once per interval, if the pressure is high, the fraction of the delegate's traces that are
+ * kept is halved. It only recovers, by a tenth per interval, once the pressure is low, so it
+ * doesn't oscillate around a single threshold.
+ */
+public final class BackoffSampler extends Sampler {
+
+  static final float MIN_FRACTION = 1f / 1024;
+  static final float RECOVERY_STEP = 0.1f;
+
+  private final Sampler delegate;
+  private final Pressure pressure;
+  private final long intervalNanos;
+  private final LongSupplier nanoTime;
+  private final AtomicLong intervalStart;
+  private volatile float fraction = 1f;
+
+  BackoffSampler(final Sampler delegate, final Pressure pressure, final long intervalNanos,
+                 final LongSupplier nanoTime) {
+    this.delegate = delegate;
+    this.pressure = pressure;
+    this.intervalNanos = intervalNanos;
+    this.nanoTime = nanoTime;
+    this.intervalStart = new AtomicLong(nanoTime.getAsLong());
+  }
+
+  /**
+   * @param delegate the sampler to back off from
+   * @param pressure the pressure, checked every second
+   * @return the sampler
+   */
+  public static BackoffSampler create(final Sampler delegate, final Pressure pressure) {
+    return new BackoffSampler(delegate, pressure, TimeUnit.SECONDS.toNanos(1), System::nanoTime);
+  }
+
+  @Override
+  public boolean isSampled(final long traceId) {
+    if (!delegate.isSampled(traceId)) {
+      return false;
+    }
+    long now = nanoTime.getAsLong();
+    long start = intervalStart.get();
+    if (now - start >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+      adjust();
+    }
+    float current = fraction;
+    // not by trace ID, as the delegate may already have sampled by it
+    return current >= 1f || ThreadLocalRandom.current().nextFloat() < current;
+  }
+
+  /**
+   * @return the fraction of the delegate's traces that are kept
+   */
+  public float getFraction() {
+    return fraction;
+  }
+
+  /** Only called by the thread that started the interval. */
+  private void adjust() {
+    switch (pressure.check()) {
+      case HIGH:
+        fraction = Math.max(MIN_FRACTION, fraction / 2);
+        break;
+      case LOW:
+        if (fraction < 1f) {
+          fraction = Math.min(1f, fraction + RECOVERY_STEP);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BackoffSampler{delegate=" + delegate + ", fraction=" + fraction + "}";
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Encodes spans into buffers from a Netty {@link ByteBufAllocator}, instead of into new
+ * {@code byte[]}s.
+ *
+ * Spans are sized first, then written by the zipkin2 encoders straight into the backing
+ * array of an exactly-sized (pooled, if the allocator pools) heap buffer, which can be
+ * handed to the HTTP client as a request body without further copies. Callers own the
+ * returned buffers and must release them, which sending them as a body does.
+ */
+public final class ByteBufSpanEncoder {
+
+  public static final ByteBufSpanEncoder JSON_V2 =
+      new ByteBufSpanEncoder(SpanBytesEncoder.JSON_V2, Encoding.JSON);
+  public static final ByteBufSpanEncoder PROTO3 =
+      new ByteBufSpanEncoder(SpanBytesEncoder.PROTO3, Encoding.PROTO3);
+
+  private final SpanBytesEncoder encoder;
+  private final Encoding encoding;
+
+  private ByteBufSpanEncoder(final SpanBytesEncoder encoder, final Encoding encoding) {
+    this.encoder = encoder;
+    this.encoding = encoding;
+  }
+
+  /**
+   * @param encoding {@link Encoding#JSON} (v2) or {@link Encoding#PROTO3}
+   * @return the encoder for the encoding
+   */
+  public static ByteBufSpanEncoder forEncoding(final Encoding encoding) {
+    switch (encoding) {
+      case JSON:
+        return JSON_V2;
+      case PROTO3:
+        return PROTO3;
+      default:
+        throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+    }
+  }
+
+  public Encoding encoding() {
+    return encoding;
+  }
+
+  /**
+   * @return the content type of encoded lists
+   */
+  public String contentType() {
+    return encoding == Encoding.PROTO3 ? "application/x-protobuf" : "application/json";
+  }
+
+  /**
+   * @return the size of the span when encoded on its own, or as an element of a list
+   */
+  public int sizeInBytes(final Span span) {
+    return encoder.sizeInBytes(span);
+  }
+
+  /**
+   * @param spanCount the number of spans in the list
+   * @param spanBytes the sum of the spans' {@link #sizeInBytes(Span) sizes}
+   * @return the size of the encoded list: a JSON array, or concatenated proto3 fields
+   */
+  public int listSizeInBytes(final int spanCount, final int spanBytes) {
+    if (encoding == Encoding.PROTO3) {
+      return spanBytes;
+    }
+    return spanCount == 0 ? 2 : spanBytes + spanCount + 1;
+  }
+
+  /**
+   * Encode a single span.
+   *
+   * @param span the span
+   * @param allocator the allocator for the returned buffer
+   * @return a buffer holding the encoded span
+   */
+  public ByteBuf encode(final Span span, final ByteBufAllocator allocator) {
+    int spanBytes = sizeInBytes(span);
+    ByteBuf buffer = encodeList(Collections.singletonList(span),
+        listSizeInBytes(1, spanBytes), allocator);
+    // a list of one JSON span is the span in brackets
+    return encoding == Encoding.JSON
+        ? buffer.setIndex(buffer.readerIndex() + 1, buffer.writerIndex() - 1)
+        : buffer;
+  }
+
+  /**
+   * Encode a list of spans.
+   *
+   * @param spans the spans
+   * @param allocator the allocator for the returned buffer
+   * @return a buffer holding the encoded list
+   */
+  public ByteBuf encodeList(final List<Span> spans, final ByteBufAllocator allocator) {
+    int spanBytes = 0;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      spanBytes += sizeInBytes(spans.get(i));
+    }
+    return encodeList(spans, listSizeInBytes(spans.size(), spanBytes), allocator);
+  }
+
+  /**
+   * Encode a list of spans whose encoded size is already known.
+   *
+   * @param spans the spans
+   * @param listSizeInBytes the {@link #listSizeInBytes(int, int) size} of the encoded list
+   * @param allocator the allocator for the returned buffer
+   * @return a buffer holding the encoded list
+   */
+  public ByteBuf encodeList(final List<Span> spans, final int listSizeInBytes,
+                            final ByteBufAllocator allocator) {
+    ByteBuf buffer = allocator.heapBuffer(listSizeInBytes, listSizeInBytes);
+    try {
+      int written = encoder.encodeList(spans, buffer.array(),
+          buffer.arrayOffset() + buffer.writerIndex());
+      return buffer.writerIndex(buffer.writerIndex() + written);
+    } catch (RuntimeException e) {
+      buffer.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Gzip the readable bytes of a buffer into a new buffer from the allocator. The input
+   * buffer is released.
+   *
+   * @param buffer the buffer to compress
+   * @param allocator the allocator for the returned buffer
+   * @return a buffer holding the compressed bytes
+   */
+  public static ByteBuf gzip(final ByteBuf buffer, final ByteBufAllocator allocator) {
+    ByteBuf compressed = allocator.heapBuffer(Math.max(64, buffer.readableBytes() / 4));
+    try (OutputStream out = new GZIPOutputStream(new ByteBufOutputStream(compressed))) {
+      buffer.readBytes(out, buffer.readableBytes());
+    } catch (IOException | RuntimeException e) {
+      compressed.release();
+      throw new IllegalStateException("Could not gzip spans", e);
+    } finally {
+      buffer.release();
+    }
+    return compressed;
+  }
+}
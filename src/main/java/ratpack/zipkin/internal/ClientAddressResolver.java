@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.net.HostAndPort;
+import com.google.common.net.HttpHeaders;
+import ratpack.http.Headers;
+import zipkin2.Endpoint;
+
+/**
+ * Resolves the address of the client from the {@code Forwarded} (RFC 7239) or
+ * {@code X-Forwarded-For} header, falling back to the remote address of the connection.
+ *
+ * Only the address that is used is located in the header, by scanning for commas rather
+ * than splitting the value. With no trusted proxies, that's the left-most address, as sent
+ * by the client or the first proxy. With {@code n} trusted proxies, it's the {@code n}th
+ * address from the right, which is the one the outermost trusted proxy added, and can't
+ * be spoofed by the client. Addresses are validated and normalized once, and kept in a
+ * bounded cache, since the same clients make most requests. When the cache is full, the
+ * least recently used addresses are evicted.
+ */
+public final class ClientAddressResolver {
+
+  static final String FORWARDED = "Forwarded";
+
+  private static final ClientAddressResolver DEFAULT = new ClientAddressResolver(0, null);
+  // cached for addresses that are not IPs, such as "unknown" or obfuscated identifiers
+  private static final String INVALID = "";
+
+  private final int trustedProxies;
+  private final Cache<String, String> addresses;
+
+  private ClientAddressResolver(final int trustedProxies, final Cache<String, String> addresses) {
+    this.trustedProxies = trustedProxies;
+    this.addresses = addresses;
+  }
+
+  /**
+   * @param trustedProxies the number of proxies in front of the server that add to the
+   *                       forwarding headers, or 0 to use the left-most address
+   * @param maximumSize the maximum number of cached addresses, or 0 to disable the cache
+   * @return the resolver
+   */
+  public static ClientAddressResolver of(final int trustedProxies, final long maximumSize) {
+    if (trustedProxies < 0) {
+      throw new IllegalArgumentException("trustedProxies must not be negative: " + trustedProxies);
+    }
+    if (maximumSize < 0) {
+      throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+    }
+    if (trustedProxies == 0 && maximumSize == 0) {
+      return DEFAULT;
+    }
+    // run maintenance on the calling thread instead of the common ForkJoinPool
+    return new ClientAddressResolver(trustedProxies, maximumSize == 0 ? null
+        : Caffeine.newBuilder()
+                  .maximumSize(maximumSize)
+                  .executor(Runnable::run)
+                  .<String, String>build());
+  }
+
+  /**
+   * @return a resolver that uses the left-most address and doesn't cache
+   */
+  public static ClientAddressResolver defaults() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param headers the request headers
+   * @param remoteAddress the remote address of the connection
+   * @return the client IP, or the remote host if the headers have no valid address
+   */
+  public String clientIp(final Headers headers, final HostAndPort remoteAddress) {
+    String ip = null;
+    String forwarded = headers.get(FORWARDED);
+    if (forwarded != null) {
+      ip = forwardedFor(forwarded);
+    } else {
+      String forwardedFor = headers.get(HttpHeaders.X_FORWARDED_FOR);
+      if (forwardedFor != null) {
+        ip = forwardedForElement(forwardedFor);
+      }
+    }
+    return ip != null ? ip : remoteAddress.getHostText();
+  }
+
+  /** Finds the "for" parameter of an element like {@code for="[2001:db8::1]:80";proto=http}. */
+  private String forwardedFor(final String forwarded) {
+    long element = element(forwarded);
+    int begin = (int) (element >>> 32);
+    int end = (int) element;
+    while (begin < end) {
+      int paramEnd = forwarded.indexOf(';', begin);
+      if (paramEnd < 0 || paramEnd > end) {
+        paramEnd = end;
+      }
+      int nameBegin = skipWhitespace(forwarded, begin, paramEnd);
+      if (forwarded.regionMatches(true, nameBegin, "for=", 0, 4)) {
+        int valueBegin = nameBegin + 4;
+        int valueEnd = trimWhitespace(forwarded, valueBegin, paramEnd);
+        if (valueEnd - valueBegin >= 2 && forwarded.charAt(valueBegin) == '"'
+            && forwarded.charAt(valueEnd - 1) == '"') {
+          valueBegin++;
+          valueEnd--;
+        }
+        return resolve(forwarded, valueBegin, valueEnd);
+      }
+      begin = paramEnd + 1;
+    }
+    return null;
+  }
+
+  private String forwardedForElement(final String forwardedFor) {
+    long element = element(forwardedFor);
+    int begin = skipWhitespace(forwardedFor, (int) (element >>> 32), (int) element);
+    return resolve(forwardedFor, begin, trimWhitespace(forwardedFor, begin, (int) element));
+  }
+
+  /**
+   * @return the begin and end index of the comma-separated element to use, packed in a long
+   */
+  private long element(final String value) {
+    int begin;
+    int end;
+    if (trustedProxies == 0) {
+      begin = 0;
+      end = value.indexOf(',');
+      if (end < 0) {
+        end = value.length();
+      }
+    } else {
+      end = value.length();
+      begin = value.lastIndexOf(',', end - 1) + 1;
+      for (int i = 1; i < trustedProxies && begin > 0; i++) {
+        end = begin - 1;
+        begin = value.lastIndexOf(',', end - 1) + 1;
+      }
+    }
+    return (long) begin << 32 | end;
+  }
+
+  private String resolve(final String value, final int begin, final int end) {
+    if (begin >= end) {
+      return null;
+    }
+    // the whole header is the key when it has a single address, which saves a substring
+    String node = begin == 0 && end == value.length() ? value : value.substring(begin, end);
+    String ip = addresses != null ? addresses.get(node, ClientAddressResolver::parseNode)
+        : parseNode(node);
+    return ip == INVALID ? null : ip;
+  }
+
+  /**
+   * @param node an address, optionally with a port, and in brackets if it's IPv6 with a port
+   * @return the normalized IP, or {@link #INVALID}
+   */
+  static String parseNode(final String node) {
+    String host = node;
+    if (node.charAt(0) == '[') {
+      int close = node.indexOf(']');
+      host = close < 0 ? node : node.substring(1, close);
+    } else {
+      int colon = node.indexOf(':');
+      if (colon >= 0 && node.indexOf(':', colon + 1) < 0) {
+        host = node.substring(0, colon);
+      }
+    }
+    Endpoint.Builder builder = Endpoint.newBuilder();
+    if (!builder.parseIp(host)) {
+      return INVALID;
+    }
+    Endpoint endpoint = builder.build();
+    return endpoint.ipv4() != null ? endpoint.ipv4() : endpoint.ipv6();
+  }
+
+  private static int skipWhitespace(final String value, int begin, final int end) {
+    while (begin < end && isWhitespace(value.charAt(begin))) {
+      begin++;
+    }
+    return begin;
+  }
+
+  private static int trimWhitespace(final String value, final int begin, int end) {
+    while (end > begin && isWhitespace(value.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean isWhitespace(final char c) {
+    return c == ' ' || c == '\t';
+  }
+
+  /**
+   * @return the number of addresses currently cached
+   */
+  long size() {
+    return addresses == null ? 0 : addresses.estimatedSize();
+  }
+}
@@ -2,115 +2,171 @@ package ratpack.zipkin.internal;
 
 import brave.Span;
 import brave.Tracer;
-import brave.Tracing;
 import brave.http.HttpServerHandler;
 import brave.http.HttpTracing;
 import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
 import javax.inject.Inject;
 
-import com.google.common.net.HostAndPort;
 import ratpack.handling.Context;
 import ratpack.handling.Handler;
-import ratpack.http.Headers;
-import ratpack.http.HttpMethod;
 import ratpack.http.Request;
 import ratpack.http.Response;
 import ratpack.http.Status;
 import ratpack.path.PathBinding;
-import ratpack.server.PublicAddress;
 import ratpack.zipkin.ServerRequest;
+import ratpack.zipkin.ForcedSamplingLimiter;
+import ratpack.zipkin.RouteSampler;
 import ratpack.zipkin.ServerResponse;
 import ratpack.zipkin.ServerTracingHandler;
 
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * {@link Handler} for Zipkin tracing.
  */
 public final class DefaultServerTracingHandler implements ServerTracingHandler {
 
-  private final Tracing tracing;
+  /**
+   * Hands an already extracted context to {@link HttpServerHandler#handleReceive}, so that
+   * headers are only read once per request.
+   */
+  private static final TraceContext.Extractor<TraceContextOrSamplingFlags> EXTRACTED = extracted -> extracted;
+
+  private final Tracer tracer;
   private final HttpServerHandler<ServerRequest, ServerResponse> handler;
-  private final TraceContext.Extractor<ServerRequest> extractor;
+  // only used when headerPropagation is disabled
+  private final TraceContext.Extractor<Request> extractor;
+  private final RedMetrics metrics;
+  private final RouteSampler routeSampler;
+  private final ForcedSamplingLimiter forcedSamplingLimiter;
+  private final OverheadBudget overheadBudget;
+  private final HeaderPropagation headerPropagation;
+  private final ClientAddressResolver clientAddressResolver;
+  private final ResponseBodyTracking responseBodyTracking;
 
-  @Inject
   public DefaultServerTracingHandler(final HttpTracing httpTracing) {
-    this.tracing = httpTracing.tracing();
-    this.handler = HttpServerHandler.<ServerRequest, ServerResponse>create(httpTracing, new ServerHttpAdapter());
-    this.extractor = tracing.propagation().extractor((ServerRequest r, String name) -> r.getHeaders().get(name));
+    this(httpTracing, TracingOptions.defaults());
+  }
+
+  @Inject
+  public DefaultServerTracingHandler(final HttpTracing httpTracing, final TracingOptions options) {
+    this.responseBodyTracking = options.responseBodyTracking;
+    this.clientAddressResolver = options.clientAddressResolver;
+    this.metrics = options.metrics;
+    this.overheadBudget = options.overheadBudget;
+    this.headerPropagation = options.headerPropagation;
+    this.routeSampler = options.routeSampler;
+    this.forcedSamplingLimiter = options.forcedSamplingLimiter;
+    this.tracer = httpTracing.tracing().tracer();
+    this.handler = HttpServerHandler.<ServerRequest, ServerResponse>create(httpTracing,
+        new ServerHttpAdapter(options.routeCache, clientAddressResolver));
+    this.extractor = headerPropagation.isEnabled()
+        ? null
+        : httpTracing.tracing().propagation().extractor((Request r, String name) -> r.getHeaders().get(name));
   }
 
   @Override
   public void handle(Context ctx) throws Exception {
-    ServerRequest request = new ServerRequestImpl(ctx.getRequest());
-    final Span span = handler.handleReceive(extractor, request);
-
-    ctx.getResponse().beforeSend(response -> {
-      ServerResponse serverResponse = new ServerResponseImpl(response, request, ctx.getPathBinding());
-      handler.handleSend(serverResponse, null, span);
-    });
-    //place the Span in scope so that downstream code (e.g. Ratpack handlers
-    //further on in the chain) can see the Span.
-    try (Tracer.SpanInScope scope = tracing.tracer().withSpanInScope(span)) {
-      ctx.next();
+    long start = overheadBudget.start();
+    TraceContextOrSamplingFlags extracted = headerPropagation.isEnabled()
+        ? headerPropagation.extract(ctx.getRequest().getHeaders().getNettyHeaders())
+        : extractor.extract(ctx.getRequest());
+    if (Boolean.TRUE.equals(extracted.sampled()) && forcedSamplingLimiter.isEnabled()) {
+      // resolved as for the span, so that callers behind a proxy are told apart
+      Request request = ctx.getRequest();
+      extracted = forcedSamplingLimiter.limit(extracted,
+          clientAddressResolver.clientIp(request.getHeaders(), request.getRemoteAddress()));
     }
-  }
-
-  private static class ServerRequestImpl implements ServerRequest {
-    private final Request request;
-    private ServerRequestImpl(final Request request) {
-      this.request = request;
+    if (extracted.sampled() == null && !routeSampler.isEmpty()) {
+      // decided before the request adapter or span is created, so unsampled routes only
+      // cost the match
+      Request request = ctx.getRequest();
+      Boolean sampled = routeSampler.trySample(request.getMethod().getName(), request.getPath(),
+          traceId(extracted));
+      if (sampled != null) {
+        extracted = extracted.sampled(sampled);
+      }
     }
-
-    @Override
-    public HttpMethod getMethod() {
-      return request.getMethod();
+    final Span span;
+    if (Boolean.FALSE.equals(extracted.sampled())) {
+      // The caller decided not to sample, so nothing will be reported for this request:
+      // skip the request/response adapters and the beforeSend callback. The (noop) span
+      // is still placed in scope below so that downstream calls propagate the decision.
+      TraceContext context = extracted.context();
+      span = context != null ? tracer.joinSpan(context) : tracer.nextSpan(extracted);
+    } else {
+      ServerRequest request = new ServerRequestImpl(ctx, clientAddressResolver);
+      span = handler.handleReceive(EXTRACTED, extracted, request);
+      // the server sampler may also have decided not to sample
+      if (!span.isNoop() && responseBodyTracking.isEnabled()) {
+        responseBodyTracking.finishAfterBody(ctx, span,
+            response -> new ServerResponseImpl(response, request, ctx.getPathBinding()),
+            (serverResponse, error) -> {
+              long sendStart = overheadBudget.start();
+              handler.handleSend(serverResponse, error, span);
+              overheadBudget.stop(sendStart);
+            });
+      } else if (!span.isNoop()) {
+        ctx.getResponse().beforeSend(response -> {
+          long sendStart = overheadBudget.start();
+          ServerResponse serverResponse = new ServerResponseImpl(response, request, ctx.getPathBinding());
+          handler.handleSend(serverResponse, null, span);
+          overheadBudget.stop(sendStart);
+        });
+      }
     }
-
-    @Override
-    public String getUri() {
-      return request.getUri();
+    if (metrics.isEnabled()) {
+      recordMetrics(ctx, span.context());
     }
-
-    @Override
-    public String getPath() {
-      return request.getPath();
+    //place the Span in scope so that downstream code (e.g. Ratpack handlers
+    //further on in the chain) can see the Span.
+    try (Tracer.SpanInScope scope = tracer.withSpanInScope(span)) {
+      overheadBudget.stop(start);
+      ctx.next();
     }
+  }
 
-    @Override
-    public Headers getHeaders() {
-      return request.getHeaders();
+  /**
+   * @return the caller's trace ID, so route rates decide by trace, or a random one if the
+   *         caller didn't send one
+   */
+  private static long traceId(final TraceContextOrSamplingFlags extracted) {
+    if (extracted.context() != null) {
+      return extracted.context().traceId();
     }
-
-    @Override
-    public String getUrl() {
-      PublicAddress publicAddress = request.get(Context.class).get(PublicAddress.class);
-      return publicAddress.builder()
-                          .path(request.getPath())
-                          .params(request.getQueryParams())
-                          .build().toString();
+    if (extracted.traceIdContext() != null) {
+      return extracted.traceIdContext().traceId();
     }
+    return ThreadLocalRandom.current().nextLong();
+  }
 
-    @Override
-    public HostAndPort getRemoteAddress() {
-      return request.getRemoteAddress();
-    }
+  /** Records every request, sampled or not, when its response is sent. */
+  private void recordMetrics(final Context ctx, final TraceContext context) {
+    long startNanos = System.nanoTime();
+    ctx.getResponse().beforeSend(response -> {
+      PathBinding pathBinding = ctx.getPathBinding();
+      metrics.recordServer(ctx.getRequest().getMethod().getName(),
+          pathBinding != null ? pathBinding.getDescription() : "",
+          response.getStatus().getCode(), System.nanoTime() - startNanos, context);
+    });
   }
 
   private static class ServerResponseImpl implements ServerResponse {
     private final Response response;
     private final ServerRequest request;
-    private final PathBinding pathBinding;
+    private final Optional<PathBinding> pathBinding;
 
     public ServerResponseImpl(final Response response, final ServerRequest request, final PathBinding pathBinding) {
       this.response = response;
       this.request = request;
-      this.pathBinding = pathBinding;
+      this.pathBinding = Optional.ofNullable(pathBinding);
     }
 
     @Override
     public Optional<PathBinding> pathBinding() {
-      return Optional.ofNullable(pathBinding);
+      return pathBinding;
     }
 
     @Override
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.AsciiString;
+import java.util.Collections;
+
+/**
+ * Extracts and injects B3 and W3C trace context headers directly on Netty {@link HttpHeaders}.
+ *
+ * Header names are precomputed {@link AsciiString}s, and IDs are parsed from the header
+ * values without creating intermediate strings. Extraction reads multi-header B3 first,
+ * then single-header B3 ("b3"), then, if enabled, W3C "traceparent" and "tracestate".
+ * Injection writes multi-header B3, and W3C headers if enabled. The "tracestate" of a request
+ * is kept as a {@link TraceState} in the context's extra fields, so it's passed on to
+ * downstream calls. When the sampled flag isn't injected, the B3 headers leave the decision
+ * to the downstream service, and "traceparent" is sent unsampled, as W3C has no unset flag.
+ *
+ * Only used with {@link brave.propagation.B3Propagation#FACTORY}, which this replaces for
+ * server and client requests when enabled with
+ * {@link ratpack.zipkin.ServerTracingModule.Config#directHeaderPropagation(boolean)}.
+ */
+public final class HeaderPropagation {
+
+  static final AsciiString TRACE_ID = AsciiString.of("x-b3-traceid");
+  static final AsciiString SPAN_ID = AsciiString.of("x-b3-spanid");
+  static final AsciiString PARENT_SPAN_ID = AsciiString.of("x-b3-parentspanid");
+  static final AsciiString SAMPLED = AsciiString.of("x-b3-sampled");
+  static final AsciiString FLAGS = AsciiString.of("x-b3-flags");
+  static final AsciiString B3 = AsciiString.of("b3");
+  static final AsciiString TRACEPARENT = AsciiString.of("traceparent");
+  static final AsciiString TRACESTATE = AsciiString.of("tracestate");
+
+  private static final AsciiString ONE = AsciiString.of("1");
+  private static final AsciiString ZERO = AsciiString.of("0");
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final int TRACEPARENT_LENGTH = 55;
+
+  private static final HeaderPropagation DISABLED = new HeaderPropagation(false, false, true);
+
+  private final boolean enabled;
+  private final boolean w3c;
+  private final boolean injectSampled;
+
+  private HeaderPropagation(final boolean enabled, final boolean w3c, final boolean injectSampled) {
+    this.enabled = enabled;
+    this.w3c = w3c;
+    this.injectSampled = injectSampled;
+  }
+
+  /**
+   * @param w3c whether to extract and inject W3C trace context headers too
+   * @return B3 propagation
+   */
+  public static HeaderPropagation b3(final boolean w3c) {
+    return b3(w3c, true);
+  }
+
+  /**
+   * @param w3c whether to extract and inject W3C trace context headers too
+   * @param injectSampled whether to inject the sampled flag, or leave it to downstream
+   *                      services. Debug requests are always injected as such.
+   * @return B3 propagation
+   */
+  public static HeaderPropagation b3(final boolean w3c, final boolean injectSampled) {
+    return new HeaderPropagation(true, w3c, injectSampled);
+  }
+
+  /**
+   * @return propagation that is not used, so the tracing's own propagation is
+   */
+  public static HeaderPropagation disabled() {
+    return DISABLED;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public TraceContextOrSamplingFlags extract(final HttpHeaders headers) {
+    String traceId = headers.get(TRACE_ID);
+    if (traceId != null) {
+      return extractMulti(headers, traceId);
+    }
+    String b3 = headers.get(B3);
+    if (b3 != null) {
+      return extractSingle(b3);
+    }
+    if (w3c) {
+      String traceparent = headers.get(TRACEPARENT);
+      if (traceparent != null) {
+        return extractTraceparent(traceparent, headers.get(TRACESTATE));
+      }
+    }
+    return flags(headers);
+  }
+
+  public void inject(final TraceContext context, final HttpHeaders headers) {
+    headers.set(TRACE_ID, traceId(context));
+    headers.set(SPAN_ID, hex(context.spanId()));
+    if (context.parentId() != null) {
+      headers.set(PARENT_SPAN_ID, hex(context.parentId()));
+    }
+    if (context.debug()) {
+      headers.set(FLAGS, ONE);
+    } else if (injectSampled && context.sampled() != null) {
+      headers.set(SAMPLED, context.sampled() ? ONE : ZERO);
+    }
+    if (w3c) {
+      headers.set(TRACEPARENT, traceparent(context,
+          context.debug() || injectSampled && Boolean.TRUE.equals(context.sampled())));
+      for (Object extra : context.extra()) {
+        if (extra instanceof TraceState) {
+          headers.set(TRACESTATE, ((TraceState) extra).value);
+        }
+      }
+    }
+  }
+
+  private static TraceContextOrSamplingFlags extractMulti(final HttpHeaders headers,
+                                                          final String traceId) {
+    String spanId = headers.get(SPAN_ID);
+    if (spanId == null) {
+      return flags(headers);
+    }
+    int traceIdLength = traceId.length();
+    if (traceIdLength == 0 || traceIdLength > 32) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    int lowStart = Math.max(0, traceIdLength - 16);
+    long traceIdHigh = lowStart == 0 ? 0 : parseHex(traceId, 0, lowStart);
+    long traceIdLow = parseHex(traceId, lowStart, traceIdLength);
+    long span = parseHex(spanId, 0, spanId.length());
+    if (traceIdLow == 0 || span == 0 || lowStart > 0 && traceIdHigh == 0
+        && !isZeros(traceId, 0, lowStart)) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    TraceContext.Builder builder = TraceContext.newBuilder()
+        .traceIdHigh(traceIdHigh).traceId(traceIdLow).spanId(span);
+    String parentId = headers.get(PARENT_SPAN_ID);
+    if (parentId != null) {
+      long parent = parseHex(parentId, 0, parentId.length());
+      if (parent == 0) {
+        return TraceContextOrSamplingFlags.EMPTY;
+      }
+      builder.parentId(parent);
+    }
+    if (isOne(headers.get(FLAGS))) {
+      builder.debug(true);
+    } else {
+      builder.sampled(parseSampled(headers.get(SAMPLED)));
+    }
+    return TraceContextOrSamplingFlags.create(builder.build());
+  }
+
+  /** Parses "{traceId}-{spanId}[-{sampled}[-{parentSpanId}]]", or only "{sampled}". */
+  private static TraceContextOrSamplingFlags extractSingle(final String b3) {
+    int length = b3.length();
+    if (length == 1) {
+      SamplingFlags flags = singleFlags(b3.charAt(0));
+      return flags == null ? TraceContextOrSamplingFlags.EMPTY : TraceContextOrSamplingFlags.create(flags);
+    }
+    int traceIdEnd = b3.indexOf('-');
+    if (traceIdEnd != 16 && traceIdEnd != 32) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    int spanIdEnd = traceIdEnd + 17;
+    if (spanIdEnd > length || spanIdEnd < length && b3.charAt(spanIdEnd) != '-') {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    long traceIdHigh = traceIdEnd == 32 ? parseHex(b3, 0, 16) : 0;
+    long traceIdLow = parseHex(b3, traceIdEnd - 16, traceIdEnd);
+    long spanId = parseHex(b3, traceIdEnd + 1, spanIdEnd);
+    if (traceIdLow == 0 || spanId == 0 || traceIdEnd == 32 && traceIdHigh == 0
+        && !isZeros(b3, 0, 16)) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    TraceContext.Builder builder = TraceContext.newBuilder()
+        .traceIdHigh(traceIdHigh).traceId(traceIdLow).spanId(spanId);
+    int next = spanIdEnd + 1;
+    if (next < length) {
+      SamplingFlags flags = singleFlags(b3.charAt(next));
+      if (flags == null || next + 1 < length && b3.charAt(next + 1) != '-') {
+        return TraceContextOrSamplingFlags.EMPTY;
+      }
+      if (flags.debug()) {
+        builder.debug(true);
+      } else {
+        builder.sampled(flags.sampled());
+      }
+      next += 2;
+      if (next < length) {
+        long parentId = next + 16 == length ? parseHex(b3, next, length) : 0;
+        if (parentId == 0) {
+          return TraceContextOrSamplingFlags.EMPTY;
+        }
+        builder.parentId(parentId);
+      }
+    }
+    return TraceContextOrSamplingFlags.create(builder.build());
+  }
+
+  /** Parses "00-{traceId}-{parentId}-{flags}". */
+  private static TraceContextOrSamplingFlags extractTraceparent(final String traceparent,
+                                                                final String tracestate) {
+    int length = traceparent.length();
+    // later versions may append fields, but the first four keep their layout
+    if (length < TRACEPARENT_LENGTH || length > TRACEPARENT_LENGTH && traceparent.charAt(TRACEPARENT_LENGTH) != '-'
+        || traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-'
+        || traceparent.charAt(0) == 'f' && traceparent.charAt(1) == 'f'
+        || isZeros(traceparent, 0, 2) && length != TRACEPARENT_LENGTH) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    long traceIdHigh = parseHex(traceparent, 3, 19);
+    long traceIdLow = parseHex(traceparent, 19, 35);
+    long spanId = parseHex(traceparent, 36, 52);
+    long flags = parseHex(traceparent, 53, 55);
+    if (traceIdLow == 0 && traceIdHigh == 0 || traceIdLow == 0 && !isZeros(traceparent, 19, 35)
+        || traceIdHigh == 0 && !isZeros(traceparent, 3, 19) || spanId == 0
+        || flags == 0 && !isZeros(traceparent, 53, 55)) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    TraceContext.Builder builder = TraceContext.newBuilder()
+        .traceIdHigh(traceIdHigh).traceId(traceIdLow).spanId(spanId)
+        .sampled((flags & 1) == 1);
+    if (tracestate != null && !tracestate.isEmpty()) {
+      builder.extra(Collections.singletonList(new TraceState(tracestate)));
+    }
+    return TraceContextOrSamplingFlags.create(builder.build());
+  }
+
+  private static TraceContextOrSamplingFlags flags(final HttpHeaders headers) {
+    if (isOne(headers.get(FLAGS))) {
+      return TraceContextOrSamplingFlags.create(SamplingFlags.DEBUG);
+    }
+    Boolean sampled = parseSampled(headers.get(SAMPLED));
+    if (sampled == null) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    return TraceContextOrSamplingFlags.create(sampled ? SamplingFlags.SAMPLED : SamplingFlags.NOT_SAMPLED);
+  }
+
+  private static SamplingFlags singleFlags(final char c) {
+    switch (c) {
+      case '1':
+        return SamplingFlags.SAMPLED;
+      case '0':
+        return SamplingFlags.NOT_SAMPLED;
+      case 'd':
+        return SamplingFlags.DEBUG;
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isOne(final String value) {
+    return value != null && value.length() == 1 && value.charAt(0) == '1';
+  }
+
+  private static Boolean parseSampled(final String sampled) {
+    if (sampled == null) {
+      return null;
+    }
+    if (sampled.equals("1") || sampled.equalsIgnoreCase("true")) {
+      return true;
+    }
+    if (sampled.equals("0") || sampled.equalsIgnoreCase("false")) {
+      return false;
+    }
+    return null;
+  }
+
+  /**
+   * @return the value of 1 to 16 lower-hex characters, or 0 if they're invalid
+   */
+  static long parseHex(final CharSequence value, final int begin, final int end) {
+    if (end <= begin || end - begin > 16) {
+      return 0;
+    }
+    long result = 0;
+    for (int i = begin; i < end; i++) {
+      char c = value.charAt(i);
+      int digit;
+      if (c >= '0' && c <= '9') {
+        digit = c - '0';
+      } else if (c >= 'a' && c <= 'f') {
+        digit = c - 'a' + 10;
+      } else {
+        return 0;
+      }
+      result = (result << 4) | digit;
+    }
+    return result;
+  }
+
+  private static boolean isZeros(final CharSequence value, final int begin, final int end) {
+    for (int i = begin; i < end; i++) {
+      if (value.charAt(i) != '0') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static AsciiString traceId(final TraceContext context) {
+    if (context.traceIdHigh() == 0) {
+      return hex(context.traceId());
+    }
+    byte[] bytes = new byte[32];
+    writeHex(context.traceIdHigh(), bytes, 0);
+    writeHex(context.traceId(), bytes, 16);
+    return new AsciiString(bytes, false);
+  }
+
+  private static AsciiString traceparent(final TraceContext context, final boolean sampled) {
+    byte[] bytes = new byte[TRACEPARENT_LENGTH];
+    bytes[0] = '0';
+    bytes[1] = '0';
+    bytes[2] = '-';
+    writeHex(context.traceIdHigh(), bytes, 3);
+    writeHex(context.traceId(), bytes, 19);
+    bytes[35] = '-';
+    writeHex(context.spanId(), bytes, 36);
+    bytes[52] = '-';
+    bytes[53] = '0';
+    bytes[54] = sampled ? (byte) '1' : (byte) '0';
+    return new AsciiString(bytes, false);
+  }
+
+  private static AsciiString hex(final long value) {
+    byte[] bytes = new byte[16];
+    writeHex(value, bytes, 0);
+    return new AsciiString(bytes, false);
+  }
+
+  private static void writeHex(final long value, final byte[] bytes, final int offset) {
+    for (int i = 15; i >= 0; i--) {
+      bytes[offset + 15 - i] = HEX[(int) (value >>> (i * 4)) & 0xf];
+    }
+  }
+
+  /**
+   * The W3C "tracestate" of a request, kept unparsed in the trace context's extra fields.
+   */
+  public static final class TraceState {
+    final String value;
+
+    TraceState(final String value) {
+      this.value = value;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return "TraceState{" + value + "}";
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram, with lock-free striped counters.
+ *
+ * Values are in microseconds. Each power of two is split into {@link #SUB_BUCKETS} buckets,
+ * so a bucket's upper bound is within 12.5% of any value in it. Bucket counters are created
+ * on first use. Each bucket also keeps the last sampled trace that landed in it, as an
+ * exemplar.
+ */
+final class LatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<>(BUCKETS);
+  private final AtomicReferenceArray<TraceContext> exemplars = new AtomicReferenceArray<>(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  static int index(final long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) Math.max(micros, 0);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return the largest value recorded in the bucket
+   */
+  static long upperBound(final int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    long lowerBound = (1L << exponent) | (index % SUB_BUCKETS) * width;
+    return lowerBound + width - 1;
+  }
+
+  void record(final long micros, final TraceContext exemplar) {
+    int index = index(micros);
+    LongAdder bucket = buckets.get(index);
+    if (bucket == null) {
+      buckets.compareAndSet(index, null, new LongAdder());
+      bucket = buckets.get(index);
+    }
+    bucket.increment();
+    count.increment();
+    sum.add(micros);
+    max.accumulate(micros);
+    if (exemplar != null) {
+      exemplars.lazySet(index, exemplar);
+    }
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return the mean, percentiles and maximum in microseconds, and the non-empty buckets
+   */
+  Map<String, Object> snapshot() {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      LongAdder bucket = buckets.get(i);
+      counts[i] = bucket == null ? 0 : bucket.sum();
+      total += counts[i];
+    }
+    Map<String, Object> latency = new LinkedHashMap<>();
+    latency.put("mean", total == 0 ? 0 : sum.sum() / total);
+    int percentile = 0;
+    long seen = 0;
+    List<Map<String, Object>> nonEmpty = new ArrayList<>();
+    for (int i = 0; i < BUCKETS; i++) {
+      if (counts[i] == 0) {
+        continue;
+      }
+      seen += counts[i];
+      while (percentile < PERCENTILES.length && seen >= Math.ceil(PERCENTILES[percentile] * total)) {
+        latency.put(PERCENTILE_NAMES[percentile++], upperBound(i));
+      }
+      Map<String, Object> bucket = new LinkedHashMap<>();
+      bucket.put("le", upperBound(i));
+      bucket.put("count", counts[i]);
+      TraceContext exemplar = exemplars.get(i);
+      if (exemplar != null) {
+        bucket.put("exemplarTraceId", exemplar.traceIdString());
+      }
+      nonEmpty.add(bucket);
+    }
+    while (percentile < PERCENTILES.length) {
+      latency.put(PERCENTILE_NAMES[percentile++], 0L);
+    }
+    latency.put("max", max.get());
+    latency.put("buckets", nonEmpty);
+    return latency;
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import javax.inject.Inject;
+import ratpack.exec.ExecInterceptor;
+import ratpack.exec.Execution;
+import ratpack.func.Block;
+
+/**
+ * {@link ExecInterceptor} that sets the MDC from the execution's current trace context
+ * when each execution segment starts, and clears it when the segment ends.
+ *
+ * Only bound for {@link ratpack.zipkin.MdcMode#EXECUTION_SEGMENT}.
+ */
+public final class MdcExecInterceptor implements ExecInterceptor {
+
+  private final TraceContextMdc mdc;
+  private final boolean enabled;
+
+  @Inject
+  public MdcExecInterceptor(final TraceContextMdc mdc) {
+    this.mdc = mdc;
+    this.enabled = mdc.isEnabled();
+  }
+
+  @Override
+  public void intercept(final Execution execution, final ExecType execType, final Block executionSegment)
+      throws Exception {
+    if (!enabled) {
+      executionSegment.execute();
+      return;
+    }
+    RatpackCurrentTraceContext.TraceContextHolder holder = execution
+        .maybeGet(RatpackCurrentTraceContext.TraceContextHolder.class)
+        .orElse(null);
+    mdc.put(holder != null ? holder.mdc(mdc) : null);
+    try {
+      executionSegment.execute();
+    } finally {
+      mdc.clear();
+    }
+  }
+}
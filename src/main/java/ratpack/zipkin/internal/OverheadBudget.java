@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.SpanCustomizer;
+import brave.http.HttpAdapter;
+import brave.http.HttpClientParser;
+import brave.http.HttpServerParser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import ratpack.exec.ExecInterceptor;
+import ratpack.exec.Execution;
+import ratpack.func.Block;
+
+/**
+ * Measures the time spent in tracing code, as a fraction of the time spent running compute
+ * execution segments, and signals {@link Pressure} when it goes over budget.
+ *
+ * Tracing code is timed with {@link #start()} and {@link #stop(long)}, and execution
+ * segments by the {@link SegmentInterceptor}, so the cost is two {@link System#nanoTime()}
+ * calls per timed section. Once per interval, pressure is high if the fraction is over
+ * budget, and low once it's under half the budget. From when it's high until it's low,
+ * parsers wrapped by {@link #serverParser(HttpServerParser)} and
+ * {@link #clientParser(HttpClientParser)} skip request tags.
+ */
+public final class OverheadBudget implements Pressure {
+
+  private static final OverheadBudget DISABLED = new OverheadBudget(0, 0);
+
+  private final float maxFraction;
+  private final long intervalNanos;
+  private final LongAdder tracingNanos = new LongAdder();
+  private final LongAdder segmentNanos = new LongAdder();
+  private final AtomicLong intervalStart = new AtomicLong(System.nanoTime());
+  private volatile Level level = Level.LOW;
+  private volatile float fraction;
+  private volatile boolean skipTags;
+
+  OverheadBudget(final float maxFraction, final long intervalNanos) {
+    this.maxFraction = maxFraction;
+    this.intervalNanos = intervalNanos;
+  }
+
+  /**
+   * @param maxFraction the maximum fraction of execution time to spend in tracing code
+   * @return the budget
+   */
+  public static OverheadBudget of(final float maxFraction) {
+    return maxFraction > 0 ? new OverheadBudget(maxFraction, TimeUnit.SECONDS.toNanos(1)) : DISABLED;
+  }
+
+  public static OverheadBudget disabled() {
+    return DISABLED;
+  }
+
+  public boolean isEnabled() {
+    return maxFraction > 0;
+  }
+
+  /**
+   * @return the start of a section of tracing code, to pass to {@link #stop(long)}
+   */
+  public long start() {
+    return maxFraction > 0 ? System.nanoTime() : 0;
+  }
+
+  public void stop(final long start) {
+    if (start != 0) {
+      tracingNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @return the fraction of execution time spent in tracing code in the last interval
+   */
+  public float getFraction() {
+    return fraction;
+  }
+
+  /**
+   * @return whether request tags are skipped, from when the budget is exceeded until the
+   *     fraction is under half the budget
+   */
+  public boolean isSkippingTags() {
+    return skipTags;
+  }
+
+  @Override
+  public Level check() {
+    return level;
+  }
+
+  void timeSegment(final ExecInterceptor.ExecType execType, final Block executionSegment)
+      throws Exception {
+    if (maxFraction <= 0 || execType != ExecInterceptor.ExecType.COMPUTE) {
+      executionSegment.execute();
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      executionSegment.execute();
+    } finally {
+      long end = System.nanoTime();
+      segmentNanos.add(end - start);
+      long intervalStarted = intervalStart.get();
+      if (end - intervalStarted >= intervalNanos && intervalStart.compareAndSet(intervalStarted, end)) {
+        update();
+      }
+    }
+  }
+
+  /** Only called by the thread that started the interval. */
+  void update() {
+    long segments = segmentNanos.sumThenReset();
+    long tracing = tracingNanos.sumThenReset();
+    if (segments == 0) {
+      return;
+    }
+    fraction = (float) tracing / segments;
+    if (fraction > maxFraction) {
+      level = Level.HIGH;
+      skipTags = true;
+    } else if (fraction < maxFraction / 2) {
+      level = Level.LOW;
+      skipTags = false;
+    } else {
+      level = Level.NORMAL;
+    }
+  }
+
+  /**
+   * @return a parser that skips the delegate's request tags while tags are skipped
+   */
+  public HttpServerParser serverParser(final HttpServerParser delegate) {
+    if (maxFraction <= 0) {
+      return delegate;
+    }
+    return new HttpServerParser() {
+      @Override
+      public <Req> void request(final HttpAdapter<Req, ?> adapter, final Req req,
+                                final SpanCustomizer customizer) {
+        delegate.request(adapter, req, skipTags ? new Untagged(customizer) : customizer);
+      }
+
+      @Override
+      public <Resp> void response(final HttpAdapter<?, Resp> adapter, final Resp res,
+                                  final Throwable error, final SpanCustomizer customizer) {
+        delegate.response(adapter, res, error, customizer);
+      }
+    };
+  }
+
+  /**
+   * @return a parser that skips the delegate's request tags while tags are skipped
+   */
+  public HttpClientParser clientParser(final HttpClientParser delegate) {
+    if (maxFraction <= 0) {
+      return delegate;
+    }
+    return new HttpClientParser() {
+      @Override
+      public <Req> void request(final HttpAdapter<Req, ?> adapter, final Req req,
+                                final SpanCustomizer customizer) {
+        delegate.request(adapter, req, skipTags ? new Untagged(customizer) : customizer);
+      }
+
+      @Override
+      public <Resp> void response(final HttpAdapter<?, Resp> adapter, final Resp res,
+                                  final Throwable error, final SpanCustomizer customizer) {
+        delegate.response(adapter, res, error, customizer);
+      }
+    };
+  }
+
+  /**
+   * Times compute execution segments for the budget. Only bound when the budget is enabled,
+   * as Ratpack calls every registered interceptor around every execution segment.
+   */
+  public static final class SegmentInterceptor implements ExecInterceptor {
+    private final OverheadBudget budget;
+
+    @Inject
+    public SegmentInterceptor(final OverheadBudget budget) {
+      this.budget = budget;
+    }
+
+    @Override
+    public void intercept(final Execution execution, final ExecType execType,
+                          final Block executionSegment) throws Exception {
+      budget.timeSegment(execType, executionSegment);
+    }
+  }
+
+  /** Keeps the span name and annotations, but not tags. */
+  private static final class Untagged implements SpanCustomizer {
+    private final SpanCustomizer delegate;
+
+    Untagged(final SpanCustomizer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public SpanCustomizer name(final String name) {
+      delegate.name(name);
+      return this;
+    }
+
+    @Override
+    public SpanCustomizer tag(final String key, final String value) {
+      return this;
+    }
+
+    @Override
+    public SpanCustomizer annotate(final String value) {
+      delegate.annotate(value);
+      return this;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import java.util.List;
+
+/**
+ * A signal for {@link BackoffSampler} to sample less, or more, checked once per interval.
+ */
+public interface Pressure {
+
+  enum Level {
+    /** Sample less. */
+    HIGH,
+    /** Keep sampling as much as now. */
+    NORMAL,
+    /** Sample more, if sampling was reduced. */
+    LOW
+  }
+
+  Level check();
+
+  /**
+   * @return pressure that is high if any of the given pressures is, and low if all are
+   */
+  static Pressure any(final List<Pressure> pressures) {
+    if (pressures.size() == 1) {
+      return pressures.get(0);
+    }
+    return () -> {
+      Level level = Level.LOW;
+      // every pressure is checked, as checking may update its state
+      for (Pressure pressure : pressures) {
+        Level current = pressure.check();
+        if (current.compareTo(level) < 0) {
+          level = current;
+        }
+      }
+      return level;
+    };
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free token bucket holding up to one second of permits.
+ *
+ * The bucket is kept as the time at which it will be full again, so taking a permit is a
+ * single compare-and-set.
+ */
+public final class RateLimiter {
+
+  private final LongSupplier nanoTime;
+  private final long nanosPerPermit;
+  private final long burstNanos;
+  private final AtomicLong fullAt;
+
+  public RateLimiter(final int permitsPerSecond, final LongSupplier nanoTime) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+    }
+    this.nanoTime = nanoTime;
+    this.nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    this.burstNanos = nanosPerPermit * permitsPerSecond;
+    this.fullAt = new AtomicLong(nanoTime.getAsLong());
+  }
+
+  public static RateLimiter create(final int permitsPerSecond) {
+    return new RateLimiter(permitsPerSecond, System::nanoTime);
+  }
+
+  public boolean tryAcquire() {
+    return tryAcquire(nanoTime.getAsLong());
+  }
+
+  public boolean tryAcquire(final long now) {
+    while (true) {
+      long current = fullAt.get();
+      long next = Math.max(current, now) + nanosPerPermit;
+      if (next - now > burstNanos) {
+        return false;
+      }
+      if (fullAt.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+}
@@ -2,59 +2,112 @@ package ratpack.zipkin.internal;
 
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.TraceContext;
+import io.netty.util.concurrent.FastThreadLocal;
 import java.util.function.Supplier;
-import org.slf4j.MDC;
-import ratpack.exec.Execution;
+import ratpack.exec.internal.DefaultExecution;
 import ratpack.registry.MutableRegistry;
 
+/**
+ * {@link CurrentTraceContext} that stores the trace context in the registry of the current
+ * {@link ratpack.exec.Execution}, so that it follows the execution across threads.
+ *
+ * When the registry supplier returns null (by default, when no execution is bound to the
+ * calling thread), the context is stored in a thread-local slot instead. This lets code
+ * running off-execution, e.g. on an {@link java.util.concurrent.ExecutorService} wrapped
+ * with {@link #executorService}, or in Netty callbacks, use the same tracing.
+ */
 public final class RatpackCurrentTraceContext extends CurrentTraceContext {
 
-  private static final String TRACE_ID_KEY = "TraceId";
+  // returns null rather than throwing when called outside of an execution
+  private static final Supplier<MutableRegistry> CURRENT_EXECUTION = DefaultExecution::get;
+
+  private static final FastThreadLocal<TraceContextHolder> THREAD_HOLDER =
+      new FastThreadLocal<TraceContextHolder>() {
+        @Override
+        protected TraceContextHolder initialValue() {
+          return new TraceContextHolder(null);
+        }
+      };
 
   private final Supplier<MutableRegistry> registrySupplier;
+  private final TraceContextMdc mdc;
 
   public RatpackCurrentTraceContext(Supplier<MutableRegistry> registrySupplier) {
+    this(registrySupplier, TraceContextMdc.traceIdOnly());
+  }
+
+  public RatpackCurrentTraceContext(Supplier<MutableRegistry> registrySupplier, TraceContextMdc mdc) {
     this.registrySupplier = registrySupplier;
+    this.mdc = mdc;
   }
 
   public RatpackCurrentTraceContext() {
-    this(Execution::current);
+    this(TraceContextMdc.traceIdOnly());
+  }
+
+  /**
+   * Create an instance that uses the current execution when there is one, and a
+   * thread-local slot otherwise.
+   *
+   * @param mdc how to write the context to the MDC
+   */
+  public RatpackCurrentTraceContext(TraceContextMdc mdc) {
+    this(CURRENT_EXECUTION, mdc);
   }
 
   @Override
   public TraceContext get() {
-    return registrySupplier.get()
-        .maybeGet(TraceContextHolder.class)
-        .map(h -> h.context)
-        .orElse(null);
+    MutableRegistry registry = registrySupplier.get();
+    TraceContextHolder holder = registry != null
+        ? registry.maybeGet(TraceContextHolder.class).orElse(null)
+        : THREAD_HOLDER.get();
+    return holder != null ? holder.context : null;
   }
 
   @Override
   public Scope newScope(TraceContext current) {
-    final TraceContextHolder previous = registrySupplier.get()
-        .maybeGet(TraceContextHolder.class)
-        .orElse(TraceContextHolder.EMPTY);
-
-    if (current != null) {
-      registrySupplier.get().add(new TraceContextHolder(current));
-      MDC.put(TRACE_ID_KEY, current.traceIdString());
-    } else {
-      registrySupplier.get().add(TraceContextHolder.EMPTY);
-      MDC.remove(TRACE_ID_KEY);
+    MutableRegistry registry = registrySupplier.get();
+    final TraceContextHolder holder = registry != null ? holder(registry) : THREAD_HOLDER.get();
+    final TraceContext previous = holder.context;
+    final TraceContextMdc.Entry previousMdc = holder.mdc;
+    if (current != previous) {
+      holder.context = current;
+      holder.mdc = null;
     }
+    mdc.put(holder.mdc(mdc));
 
     return () -> {
-      registrySupplier.get().add(previous);
-      if (previous.context != null) {
-        MDC.put(TRACE_ID_KEY, previous.context.traceIdString());
-      } else {
-        MDC.remove(TRACE_ID_KEY);
-      }
+      holder.context = previous;
+      holder.mdc = previousMdc;
+      mdc.put(holder.mdc(mdc));
     };
   }
 
   /**
-   * Used by TracedParallelBatch where its used to wrap a TraceContext and puts it in the
+   * The context in the thread-local slot, used when there is no execution.
+   *
+   * @return the thread's context, or null
+   */
+  static TraceContext threadContext() {
+    return THREAD_HOLDER.get().context;
+  }
+
+  /**
+   * Each registry gets a single holder, which is updated in place as scopes are opened
+   * and closed. This keeps the registry from growing with every scope, so lookups don't
+   * get slower as an execution goes on.
+   */
+  static TraceContextHolder holder(final MutableRegistry registry) {
+    TraceContextHolder holder = registry.maybeGet(TraceContextHolder.class).orElse(null);
+    if (holder == null) {
+      holder = new TraceContextHolder(null);
+      registry.add(holder);
+    }
+    return holder;
+  }
+
+  /**
+   * Used by TracedParallelBatch and TracedExecution where its used to wrap a TraceContext and puts it in the
    * registry for the forked execution.  This is marked deprecated as we prefer not to
    * expose details of the RatpackCurrentTraceContext implementation.
    *
@@ -63,18 +116,34 @@ public final class RatpackCurrentTraceContext extends CurrentTraceContext {
    */
   @Deprecated
   public static TraceContextHolder wrap(TraceContext traceContext) {
-    return (traceContext != null) ? new TraceContextHolder(traceContext) : TraceContextHolder.EMPTY;
+    return newHolder(traceContext);
   }
 
-  private static final class TraceContextHolder {
+  /**
+   * @return a holder for the context, to add to the registry of a new execution
+   */
+  static TraceContextHolder newHolder(final TraceContext traceContext) {
+    // always a new holder, since holders are updated in place by the execution they belong to
+    return new TraceContextHolder(traceContext);
+  }
 
-    private static final TraceContextHolder EMPTY = new TraceContextHolder(null);
+  static final class TraceContextHolder {
 
-    private final TraceContext context;
+    // only accessed by the execution (or thread) that owns the registry
+    private TraceContext context;
+    // MDC values for context, computed on first use
+    private TraceContextMdc.Entry mdc;
 
     private TraceContextHolder(final TraceContext context) {
       this.context = context;
     }
+
+    TraceContextMdc.Entry mdc(final TraceContextMdc writer) {
+      if (mdc == null && context != null) {
+        mdc = writer.entry(context);
+      }
+      return mdc;
+    }
   }
 
 }
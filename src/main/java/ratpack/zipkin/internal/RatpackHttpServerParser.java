@@ -3,6 +3,7 @@ package ratpack.zipkin.internal;
 import brave.SpanCustomizer;
 import brave.http.HttpAdapter;
 import brave.http.HttpServerParser;
+import ratpack.path.PathBinding;
 import ratpack.zipkin.ServerRequest;
 import ratpack.zipkin.ServerResponse;
 import ratpack.zipkin.SpanNameProvider;
@@ -11,9 +12,25 @@ import java.util.Optional;
 
 public class RatpackHttpServerParser extends HttpServerParser {
   private final SpanNameProvider spanNameProvider;
+  private final RouteCache routeCache;
 
   public RatpackHttpServerParser(final SpanNameProvider spanNameProvider) {
+    this(spanNameProvider, RouteCache.disabled());
+  }
+
+  /**
+   * Create a parser that caches span names per method and route.
+   *
+   * When the cache is enabled, the {@link SpanNameProvider} is only called when the
+   * response is sent, and at most once per method and route; the span is named after the
+   * request method until then.
+   *
+   * @param spanNameProvider the span name provider
+   * @param routeCache the cache for span names
+   */
+  public RatpackHttpServerParser(final SpanNameProvider spanNameProvider, final RouteCache routeCache) {
     this.spanNameProvider = spanNameProvider;
+    this.routeCache = routeCache;
   }
 
   @Override
@@ -24,6 +41,10 @@ public class RatpackHttpServerParser extends HttpServerParser {
   @Override
   protected <Req> String spanName(final HttpAdapter<Req, ?> adapter, final Req req) {
     if (req instanceof ServerRequest) {
+      if (routeCache.isEnabled()) {
+        // the name is replaced when the response is sent, once the route is known
+        return adapter.method(req);
+      }
       return spanNameProvider.spanName((ServerRequest)req, Optional.empty());
     }
     else {
@@ -35,11 +56,21 @@ public class RatpackHttpServerParser extends HttpServerParser {
   public <Resp> void response(final HttpAdapter<?, Resp> adapter, final Resp res, final Throwable error, final SpanCustomizer customizer) {
     if (res instanceof ServerResponse) {
       ServerResponse serverResponse = (ServerResponse) res;
-      customizer.name(spanNameProvider.spanName(serverResponse.getRequest(), serverResponse.pathBinding()));
+      customizer.name(spanName(serverResponse));
     }
     super.response(adapter, res, error, customizer);
   }
 
+  private String spanName(final ServerResponse response) {
+    Optional<PathBinding> pathBinding = response.pathBinding();
+    if (!routeCache.isEnabled() || !pathBinding.isPresent()) {
+      return spanNameProvider.spanName(response.getRequest(), pathBinding);
+    }
+    return routeCache.spanName(response.getRequest().getMethod().getName(),
+        pathBinding.get().getDescription(),
+        () -> spanNameProvider.spanName(response.getRequest(), pathBinding));
+  }
+
   @Override
   protected void error(final Integer httpStatus, final Throwable error, final SpanCustomizer
       customizer) {
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.propagation.TraceContext;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request rate, error and duration (RED) metrics for every server request and client call,
+ * whether it's sampled or not.
+ *
+ * Server requests are grouped by method and route ({@link ratpack.path.PathBinding}
+ * description), and client calls by downstream host and port. Sampled requests are kept as
+ * exemplars of their latency bucket, so the metrics link to traces that were reported.
+ * Recording only updates striped counters. The number of groups is bounded: once it's
+ * reached, further routes or hosts are grouped under {@link #OTHER}.
+ */
+public final class RedMetrics {
+
+  public static final String OTHER = "other";
+
+  private static final RedMetrics DISABLED = new RedMetrics(0);
+
+  private final int maxEndpoints;
+  private final AtomicInteger endpoints = new AtomicInteger();
+  private final ConcurrentMap<String, ConcurrentMap<String, Endpoint>> server = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Endpoint> client = new ConcurrentHashMap<>();
+
+  private RedMetrics(final int maxEndpoints) {
+    this.maxEndpoints = maxEndpoints;
+  }
+
+  /**
+   * @param maxEndpoints the maximum number of routes and hosts to keep metrics for
+   * @return the metrics
+   */
+  public static RedMetrics of(final int maxEndpoints) {
+    return maxEndpoints > 0 ? new RedMetrics(maxEndpoints) : DISABLED;
+  }
+
+  public static RedMetrics disabled() {
+    return DISABLED;
+  }
+
+  public boolean isEnabled() {
+    return maxEndpoints > 0;
+  }
+
+  /**
+   * Record a server request. Status codes of 500 and above are errors.
+   *
+   * @param method the request method
+   * @param route the route, or an empty string if there is none
+   * @param statusCode the response status code
+   * @param nanos the time from receiving the request to sending the response
+   * @param context the request's trace context, kept as an exemplar if sampled
+   */
+  public void recordServer(final String method, final String route, final int statusCode,
+                           final long nanos, final TraceContext context) {
+    ConcurrentMap<String, Endpoint> methods = server.get(route);
+    if (methods == null) {
+      methods = server.computeIfAbsent(reserve() ? route : OTHER, r -> new ConcurrentHashMap<>());
+    }
+    Endpoint endpoint = methods.get(method);
+    if (endpoint == null) {
+      endpoint = methods.computeIfAbsent(method, m -> new Endpoint());
+    }
+    endpoint.record(statusCode >= 500, nanos, context);
+  }
+
+  /**
+   * Record a client call. Failed calls and status codes of 500 and above are errors.
+   *
+   * @param uri the request URI
+   * @param error whether the call failed
+   * @param nanos the time from making the request to receiving the response
+   * @param context the trace context of the caller, kept as an exemplar if sampled
+   */
+  public void recordClient(final URI uri, final boolean error, final long nanos,
+                           final TraceContext context) {
+    // the authority is already parsed, but mustn't expose credentials
+    String host = uri.getRawUserInfo() == null ? uri.getRawAuthority()
+        : uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    Endpoint endpoint = client.get(host);
+    if (endpoint == null) {
+      endpoint = client.computeIfAbsent(reserve() ? host : OTHER, h -> new Endpoint());
+    }
+    endpoint.record(error, nanos, context);
+  }
+
+  /**
+   * @return the metrics of each route and host, with latencies in microseconds
+   */
+  public Map<String, Object> snapshot() {
+    List<Map<String, Object>> servers = new ArrayList<>();
+    server.forEach((route, methods) -> methods.forEach((method, endpoint) -> {
+      Map<String, Object> metrics = new LinkedHashMap<>();
+      metrics.put("method", method);
+      metrics.put("route", route);
+      servers.add(endpoint.snapshot(metrics));
+    }));
+    List<Map<String, Object>> clients = new ArrayList<>();
+    client.forEach((host, endpoint) -> {
+      Map<String, Object> metrics = new LinkedHashMap<>();
+      metrics.put("host", host);
+      clients.add(endpoint.snapshot(metrics));
+    });
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    snapshot.put("server", servers);
+    snapshot.put("client", clients);
+    return snapshot;
+  }
+
+  /**
+   * Counts a new route or host against the limit. A few routes over the limit may be
+   * counted when they're first seen concurrently, but they still get their own metrics.
+   */
+  private boolean reserve() {
+    if (endpoints.get() >= maxEndpoints) {
+      return false;
+    }
+    endpoints.incrementAndGet();
+    return true;
+  }
+
+  private static final class Endpoint {
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    void record(final boolean error, final long nanos, final TraceContext context) {
+      if (error) {
+        errors.increment();
+      }
+      latency.record(TimeUnit.NANOSECONDS.toMicros(nanos),
+          context != null && Boolean.TRUE.equals(context.sampled()) ? context : null);
+    }
+
+    Map<String, Object> snapshot(final Map<String, Object> metrics) {
+      long requests = latency.count();
+      long errorCount = errors.sum();
+      metrics.put("requests", requests);
+      metrics.put("errors", errorCount);
+      metrics.put("errorRate", requests == 0 ? 0d : (double) errorCount / requests);
+      metrics.put("latencyMicros", latency.snapshot());
+      return metrics;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import ratpack.zipkin.RatpackHttpReporter;
+
+/**
+ * {@link Pressure} from the backlog of a {@link RatpackHttpReporter}: high when its queue is
+ * at least the high watermark or it dropped spans since the last check, and low once the
+ * queue is under the low watermark.
+ */
+public final class ReporterBacklog implements Pressure {
+
+  private final IntSupplier queuedSpans;
+  private final LongSupplier droppedSpans;
+  private final int highWatermark;
+  private final int lowWatermark;
+  private volatile long lastDropped;
+
+  ReporterBacklog(final IntSupplier queuedSpans, final LongSupplier droppedSpans,
+                  final int highWatermark, final int lowWatermark) {
+    this.queuedSpans = queuedSpans;
+    this.droppedSpans = droppedSpans;
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.lastDropped = droppedSpans.getAsLong();
+  }
+
+  /**
+   * @param reporter the reporter whose queue is watched
+   * @param highWatermark the fraction of the queue at which pressure is high
+   * @param lowWatermark the fraction of the queue under which pressure is low
+   * @return the pressure
+   */
+  public static ReporterBacklog of(final RatpackHttpReporter reporter, final float highWatermark,
+                                   final float lowWatermark) {
+    int capacity = reporter.getQueuedMaxSpans();
+    return new ReporterBacklog(reporter::getQueuedSpans, reporter::getSpansDropped,
+        (int) (capacity * highWatermark), (int) (capacity * lowWatermark));
+  }
+
+  /** Only called by one thread at a time, by {@link BackoffSampler}. */
+  @Override
+  public Level check() {
+    long dropped = droppedSpans.getAsLong();
+    boolean dropping = dropped > lastDropped;
+    lastDropped = dropped;
+    int queued = queuedSpans.getAsInt();
+    if (dropping || queued >= highWatermark) {
+      return Level.HIGH;
+    }
+    return queued <= lowWatermark ? Level.LOW : Level.NORMAL;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.stream.ChunkedInput;
+
+/**
+ * Counts the response body bytes written to a connection, before any compression.
+ *
+ * One counter is added to the end of each connection's pipeline, where it sees the
+ * messages Ratpack writes, and is reset for every request. Requests on a connection are
+ * handled one at a time, and writes happen on the connection's event loop, so the count is
+ * not synchronized.
+ */
+final class ResponseBodyCounter extends ChannelOutboundHandlerAdapter {
+
+  static final String NAME = "zipkinResponseBodyCounter";
+
+  private long bytes;
+
+  /**
+   * @return the channel's counter, reset to 0
+   */
+  static ResponseBodyCounter reset(final Channel channel) {
+    ChannelPipeline pipeline = channel.pipeline();
+    ResponseBodyCounter counter = (ResponseBodyCounter) pipeline.get(NAME);
+    if (counter == null) {
+      counter = new ResponseBodyCounter();
+      pipeline.addLast(NAME, counter);
+    }
+    counter.bytes = 0;
+    return counter;
+  }
+
+  long bytes() {
+    return bytes;
+  }
+
+  @Override
+  public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+      throws Exception {
+    if (msg instanceof HttpContent) {
+      bytes += ((HttpContent) msg).content().readableBytes();
+    } else if (msg instanceof ByteBuf) {
+      bytes += ((ByteBuf) msg).readableBytes();
+    } else if (msg instanceof FileRegion) {
+      bytes += ((FileRegion) msg).count();
+    } else if (msg instanceof ChunkedInput) {
+      bytes += Math.max(0, ((ChunkedInput<?>) msg).length());
+    }
+    ctx.write(msg, promise);
+  }
+}
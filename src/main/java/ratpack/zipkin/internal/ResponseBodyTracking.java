@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.Span;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import java.nio.channels.ClosedChannelException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import ratpack.handling.Context;
+import ratpack.http.Response;
+import ratpack.zipkin.ServerResponse;
+
+/**
+ * Finishes server spans once the response body has been written, rather than when the
+ * response headers are sent, so that streamed, chunked and file responses are timed in
+ * full.
+ *
+ * The span is annotated with {@link #FIRST_BYTE} when the headers are sent, and tagged with
+ * the number of body bytes as {@link #RESPONSE_SIZE}. If the connection closes before the
+ * response is written, the span finishes with a {@link ClosedChannelException}.
+ *
+ * Client spans of streamed responses are handled by {@link TracedStreamedResponse}.
+ */
+public final class ResponseBodyTracking {
+
+  public static final String FIRST_BYTE = "ttfb";
+  public static final String RESPONSE_SIZE = "http.response.size";
+
+  private static final ResponseBodyTracking DISABLED = new ResponseBodyTracking(false);
+
+  private final boolean enabled;
+
+  private ResponseBodyTracking(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public static ResponseBodyTracking of(final boolean enabled) {
+    return enabled ? new ResponseBodyTracking(true) : DISABLED;
+  }
+
+  public static ResponseBodyTracking disabled() {
+    return DISABLED;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param ctx the request context
+   * @param span the server span
+   * @param onSend adapts the response when its headers are sent
+   * @param finish finishes the span with the adapted response, or null if none was sent,
+   *               and the error that ended the response, if any
+   */
+  void finishAfterBody(final Context ctx, final Span span,
+                       final Function<Response, ServerResponse> onSend,
+                       final BiConsumer<ServerResponse, Throwable> finish) {
+    Channel channel = ctx.getDirectChannelAccess().getChannel();
+    Completion completion = new Completion(channel, span, ResponseBodyCounter.reset(channel), finish);
+    ctx.getResponse().beforeSend(response -> {
+      // Ratpack 1.4 runs these callbacks twice for streamed responses
+      if (completion.response == null) {
+        span.annotate(FIRST_BYTE);
+        completion.response = onSend.apply(response);
+      }
+    });
+    // only called once the last write completes, which a closed connection never does
+    ctx.onClose(outcome -> completion.finish(null));
+    channel.closeFuture().addListener(completion);
+  }
+
+  /** Runs on the connection's event loop, like the writes it follows. */
+  private static final class Completion implements GenericFutureListener<Future<? super Void>> {
+    private final Channel channel;
+    private final Span span;
+    private final ResponseBodyCounter counter;
+    private final BiConsumer<ServerResponse, Throwable> finish;
+    private ServerResponse response;
+    private boolean finished;
+
+    Completion(final Channel channel, final Span span, final ResponseBodyCounter counter,
+               final BiConsumer<ServerResponse, Throwable> finish) {
+      this.channel = channel;
+      this.span = span;
+      this.counter = counter;
+      this.finish = finish;
+    }
+
+    @Override
+    public void operationComplete(final Future<? super Void> future) {
+      finish(new ClosedChannelException());
+    }
+
+    void finish(final Throwable error) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      // keep-alive connections serve many requests, so don't leave a listener per request
+      channel.closeFuture().removeListener(this);
+      if (response != null) {
+        span.tag(RESPONSE_SIZE, Long.toString(counter.bytes()));
+      }
+      finish.accept(response, error);
+    }
+  }
+}
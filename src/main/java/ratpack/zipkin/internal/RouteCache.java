@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import ratpack.path.PathBinding;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of the strings derived from a {@link PathBinding} description: the
+ * {@code http.route} value and the span name for each HTTP method.
+ *
+ * Entries are keyed by the description (e.g. "users/:id") rather than by the request
+ * path, so high-cardinality paths collapse into one entry per route and every request
+ * on a route shares the same String instances. When the cache is full, the least
+ * recently used routes are evicted.
+ *
+ * Caching assumes that span names only depend on the method and the route. A cache
+ * created with a maximum size of 0 is disabled and computes every value again.
+ */
+public final class RouteCache {
+
+  private static final RouteCache DISABLED = new RouteCache(null);
+
+  private final Cache<String, Route> routes;
+
+  private RouteCache(final Cache<String, Route> routes) {
+    this.routes = routes;
+  }
+
+  /**
+   * Create a cache holding at most {@code maximumSize} routes.
+   *
+   * @param maximumSize the maximum number of routes, or 0 to disable caching
+   * @return the cache
+   */
+  public static RouteCache of(final long maximumSize) {
+    if (maximumSize < 0) {
+      throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+    }
+    if (maximumSize == 0) {
+      return DISABLED;
+    }
+    // run maintenance on the calling thread instead of the common ForkJoinPool
+    return new RouteCache(Caffeine.newBuilder()
+                                  .maximumSize(maximumSize)
+                                  .executor(Runnable::run)
+                                  .build());
+  }
+
+  /**
+   * @return a cache that does not cache anything
+   */
+  public static RouteCache disabled() {
+    return DISABLED;
+  }
+
+  /**
+   * @return true if values are cached
+   */
+  public boolean isEnabled() {
+    return routes != null;
+  }
+
+  /**
+   * The route of a path binding description, with a leading forward slash.
+   *
+   * @param description the path binding description
+   * @return the route, or "" for an empty description
+   */
+  String route(final String description) {
+    if (description.isEmpty()) return description;
+    if (routes == null) return toRoute(description);
+    return routes.get(description, Route::new).route;
+  }
+
+  /**
+   * The span name for requests with the given method on the given route.
+   *
+   * Empty descriptions (handlers bound at the root of the chain) are never cached,
+   * since they don't identify a route.
+   *
+   * @param method the HTTP method name
+   * @param description the path binding description
+   * @param spanName computes the span name on a cache miss
+   * @return the span name
+   */
+  String spanName(final String method, final String description, final Supplier<String> spanName) {
+    if (routes == null || description.isEmpty()) return spanName.get();
+    return routes.get(description, Route::new).spanNames.computeIfAbsent(method, m -> spanName.get());
+  }
+
+  /**
+   * @return the number of routes currently cached
+   */
+  long size() {
+    return routes == null ? 0 : routes.estimatedSize();
+  }
+
+  private static String toRoute(final String description) {
+    return description.indexOf('/') == 0 ? description : "/" + description;
+  }
+
+  private static final class Route {
+    private final String route;
+    // one entry per HTTP method seen on this route
+    private final ConcurrentMap<String, String> spanNames = new ConcurrentHashMap<>(4);
+
+    private Route(final String description) {
+      this.route = toRoute(description);
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package ratpack.zipkin.internal;
 
-import com.google.common.net.HttpHeaders;
 import ratpack.path.PathBinding;
 import ratpack.zipkin.ServerRequest;
 import ratpack.zipkin.ServerResponse;
@@ -11,14 +10,30 @@ import zipkin2.Endpoint;
  * to something that brave.http.HttpServerParser can use to create the Span.
  */
 final class ServerHttpAdapter extends brave.http.HttpServerAdapter<ServerRequest, ServerResponse> {
+  private final RouteCache routeCache;
+  private final ClientAddressResolver clientAddressResolver;
+
+  ServerHttpAdapter() {
+    this(RouteCache.disabled());
+  }
+
+  ServerHttpAdapter(final RouteCache routeCache) {
+    this(routeCache, ClientAddressResolver.defaults());
+  }
+
+  ServerHttpAdapter(final RouteCache routeCache, final ClientAddressResolver clientAddressResolver) {
+    this.routeCache = routeCache;
+    this.clientAddressResolver = clientAddressResolver;
+  }
+
   @Override
   public boolean parseClientAddress(final ServerRequest serverRequest,
                                     final Endpoint.Builder builder) {
-    String forwardedFor = requestHeader(serverRequest, HttpHeaders.X_FORWARDED_FOR);
-    if (forwardedFor != null) {
-      return builder.parseIp(forwardedFor);
+    if (serverRequest instanceof ServerRequestImpl) {
+      return builder.parseIp(((ServerRequestImpl) serverRequest).getClientIp());
     }
-    return builder.parseIp(serverRequest.getRemoteAddress().getHostText());
+    return builder.parseIp(clientAddressResolver.clientIp(serverRequest.getHeaders(),
+        serverRequest.getRemoteAddress()));
   }
 
   @Override public String method(ServerRequest request) {
@@ -26,6 +41,9 @@ final class ServerHttpAdapter extends brave.http.HttpServerAdapter<ServerRequest
   }
 
   @Override public String path(ServerRequest request) {
+    if (request instanceof ServerRequestImpl) {
+      return ((ServerRequestImpl) request).getNormalizedPath();
+    }
     // docs say request.getPath() is without a leading slash, but it isn't guaranteed.
     String result = request.getPath();
     return result.indexOf('/') == 0 ? result : "/" + result;
@@ -44,9 +62,7 @@ final class ServerHttpAdapter extends brave.http.HttpServerAdapter<ServerRequest
   }
 
   @Override public String route(ServerResponse response) {
-    String result = response.pathBinding().map(PathBinding::getDescription).orElse("");
-    if (result.isEmpty()) return result;
-    return result.indexOf('/') == 0 ? result : "/" + result;
+    return response.pathBinding().map(PathBinding::getDescription).map(routeCache::route).orElse("");
   }
 
   @Override public Integer statusCode(ServerResponse response) {
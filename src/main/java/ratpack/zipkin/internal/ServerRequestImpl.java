@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import com.google.common.net.HostAndPort;
+import ratpack.handling.Context;
+import ratpack.http.Headers;
+import ratpack.http.HttpMethod;
+import ratpack.http.Request;
+import ratpack.server.PublicAddress;
+import ratpack.zipkin.ServerRequest;
+
+/**
+ * Lazy view of a Ratpack {@link Request}.
+ *
+ * Derived values (the full URL, the normalized path and the client IP) are only computed
+ * when a parser asks for them, and at most once per request. A request is handled on a
+ * single execution, so the memoized fields are not synchronized.
+ */
+final class ServerRequestImpl implements ServerRequest {
+  private final Context ctx;
+  private final Request request;
+  private final ClientAddressResolver clientAddressResolver;
+
+  private Headers headers;
+  private String url;
+  private String normalizedPath;
+  private String clientIp;
+
+  ServerRequestImpl(final Context ctx) {
+    this(ctx, ClientAddressResolver.defaults());
+  }
+
+  ServerRequestImpl(final Context ctx, final ClientAddressResolver clientAddressResolver) {
+    this.ctx = ctx;
+    this.request = ctx.getRequest();
+    this.clientAddressResolver = clientAddressResolver;
+  }
+
+  @Override
+  public HttpMethod getMethod() {
+    return request.getMethod();
+  }
+
+  @Override
+  public String getUri() {
+    return request.getUri();
+  }
+
+  @Override
+  public String getPath() {
+    return request.getPath();
+  }
+
+  @Override
+  public Headers getHeaders() {
+    if (headers == null) {
+      headers = request.getHeaders();
+    }
+    return headers;
+  }
+
+  @Override
+  public String getUrl() {
+    if (url == null) {
+      url = ctx.get(PublicAddress.class).builder()
+               .path(request.getPath())
+               .params(request.getQueryParams())
+               .build().toString();
+    }
+    return url;
+  }
+
+  @Override
+  public HostAndPort getRemoteAddress() {
+    return request.getRemoteAddress();
+  }
+
+  /**
+   * The request path with a leading forward slash.
+   *
+   * @return the path, starting with "/"
+   */
+  String getNormalizedPath() {
+    if (normalizedPath == null) {
+      // docs say request.getPath() is without a leading slash, but it isn't guaranteed.
+      String path = request.getPath();
+      normalizedPath = path.indexOf('/') == 0 ? path : "/" + path;
+    }
+    return normalizedPath;
+  }
+
+  /**
+   * The address of the client, preferring the Forwarded and X-Forwarded-For headers over
+   * the remote address of the connection.
+   *
+   * @return the client IP (or host) as text
+   */
+  String getClientIp() {
+    if (clientIp == null) {
+      clientIp = clientAddressResolver.clientIp(getHeaders(), getRemoteAddress());
+    }
+    return clientIp;
+  }
+}
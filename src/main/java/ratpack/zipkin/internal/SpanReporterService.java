@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import ratpack.service.Service;
+import ratpack.service.StopEvent;
+import ratpack.zipkin.RatpackHttpReporter;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Holds the span reporter configured for the server, and sends any spans still queued by a
+ * {@link RatpackHttpReporter} when the server stops.
+ */
+public final class SpanReporterService implements Service {
+
+  private final Reporter<Span> reporter;
+
+  public SpanReporterService(final Reporter<Span> reporter) {
+    this.reporter = reporter;
+  }
+
+  public Reporter<Span> getReporter() {
+    return reporter;
+  }
+
+  @Override
+  public void onStop(final StopEvent event) throws Exception {
+    if (reporter instanceof RatpackHttpReporter) {
+      ((RatpackHttpReporter) reporter).closeOperation().then();
+    }
+  }
+}
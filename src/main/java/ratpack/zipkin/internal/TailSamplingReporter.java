@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import ratpack.zipkin.TailSamplingPolicy;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.Reporter;
+
+/**
+ * {@link Reporter} that buffers spans until their local root span finishes, and reports
+ * them to its delegate only if the {@link TailSamplingPolicy} keeps them.
+ *
+ * A local root is a server span, or a span without a parent, and every one is decided on
+ * its own, so that the requests of a trace that fans out to this service, or retries, are
+ * each kept or dropped on their merits. Debug requests, and requests the caller already
+ * sampled, are always reported, so the policy only decides the requests this service would
+ * otherwise sample itself. A local root takes the buffered spans of its trace
+ * that descend from it, found by following their parent IDs, as children finish before
+ * their parents. Spans that finish after their local root follow its decision.
+ *
+ * Buffers are split into stripes by trace ID, each with its own lock, so that requests on
+ * different event loops rarely contend. Each stripe is bounded by an equal share of the
+ * policy's maximum buffered bytes, counting spans by their JSON-encoded size: a trace over
+ * its span limit loses its oldest spans, and when the stripe is full its oldest trace is
+ * evicted.
+ */
+public final class TailSamplingReporter implements Reporter<Span> {
+
+  static final int STRIPES = 16;
+  // decisions kept for spans finishing after their local root
+  static final int MAX_DECISIONS = 16384;
+
+  private final TailSamplingPolicy policy;
+  private final Reporter<Span> delegate;
+  private final int maxSpansPerTrace;
+  private final Stripe[] stripes;
+
+  private final AtomicLong tracesExported = new AtomicLong();
+  private final AtomicLong tracesDropped = new AtomicLong();
+  private final AtomicLong spansEvicted = new AtomicLong();
+
+  public TailSamplingReporter(final TailSamplingPolicy policy, final Reporter<Span> delegate) {
+    this(policy, delegate, STRIPES);
+  }
+
+  TailSamplingReporter(final TailSamplingPolicy policy, final Reporter<Span> delegate,
+                       final int stripes) {
+    this.policy = policy;
+    this.delegate = delegate;
+    this.maxSpansPerTrace = policy.getMaxSpansPerTrace();
+    this.stripes = new Stripe[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new Stripe(policy.getMaxBufferedBytes() / stripes,
+          Math.max(1, MAX_DECISIONS / stripes));
+    }
+  }
+
+  @Override
+  public void report(final Span span) {
+    Stripe stripe = stripes[(span.traceId().hashCode() & Integer.MAX_VALUE) % stripes.length];
+    List<Span> export;
+    synchronized (stripe) {
+      if (span.kind() == Span.Kind.SERVER || span.parentId() == null) {
+        export = stripe.decide(span);
+      } else {
+        export = stripe.follow(span);
+      }
+    }
+    // reported outside the lock, as the delegate may do I/O
+    if (export != null) {
+      for (int i = 0, length = export.size(); i < length; i++) {
+        delegate.report(export.get(i));
+      }
+    }
+  }
+
+  public long getTracesExported() {
+    return tracesExported.get();
+  }
+
+  public long getTracesDropped() {
+    return tracesDropped.get();
+  }
+
+  /**
+   * @return the number of spans evicted from full buffers before their local root was decided
+   */
+  public long getSpansEvicted() {
+    return spansEvicted.get();
+  }
+
+  int getBufferedSpans() {
+    int spans = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (Trace trace : stripe.traces.values()) {
+          spans += trace.spans.size();
+        }
+      }
+    }
+    return spans;
+  }
+
+  long getBufferedBytes() {
+    long bytes = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        bytes += stripe.bufferedBytes;
+      }
+    }
+    return bytes;
+  }
+
+  /** The decision made for a local root, shared by the spans under it. */
+  private static final class Decision {
+    final String traceId;
+    final boolean export;
+
+    Decision(final String traceId, final boolean export) {
+      this.traceId = traceId;
+      this.export = export;
+    }
+  }
+
+  private static final class Buffered {
+    final Span span;
+    final int size;
+
+    Buffered(final Span span, final int size) {
+      this.span = span;
+      this.size = size;
+    }
+  }
+
+  /** The undecided spans of a trace, which may belong to several local roots. */
+  private static final class Trace {
+    final ArrayDeque<Buffered> spans = new ArrayDeque<>();
+    long bytes;
+  }
+
+  /** Only accessed while holding its lock. */
+  private final class Stripe {
+    private final long maxBufferedBytes;
+    private final Map<String, Trace> traces = new LinkedHashMap<>();
+    // by span ID, as late spans only know their parent's
+    private final Map<String, Decision> decisions;
+    private long bufferedBytes;
+
+    Stripe(final long maxBufferedBytes, final int maxDecisions) {
+      this.maxBufferedBytes = maxBufferedBytes;
+      this.decisions = new LinkedHashMap<String, Decision>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Decision> eldest) {
+          return size() > maxDecisions;
+        }
+      };
+    }
+
+    List<Span> decide(final Span localRoot) {
+      List<Span> spans = new ArrayList<>();
+      Trace trace = traces.get(localRoot.traceId());
+      if (trace != null) {
+        takeDescendants(trace, localRoot.id(), spans);
+        if (trace.spans.isEmpty()) {
+          traces.remove(localRoot.traceId());
+        }
+      }
+      spans.add(localRoot);
+      boolean export = isDecidedUpstream(localRoot) || policy.shouldExport(localRoot, spans);
+      Decision decision = new Decision(localRoot.traceId(), export);
+      for (int i = 0, length = spans.size(); i < length; i++) {
+        decisions.put(spans.get(i).id(), decision);
+      }
+      if (!export) {
+        tracesDropped.incrementAndGet();
+        return null;
+      }
+      tracesExported.incrementAndGet();
+      return spans;
+    }
+
+    /**
+     * A debug request is always kept, and so is one the caller sampled, which Brave joins as a
+     * shared span, as the caller reports its side of the trace.
+     */
+    private boolean isDecidedUpstream(final Span localRoot) {
+      return Boolean.TRUE.equals(localRoot.debug()) || Boolean.TRUE.equals(localRoot.shared());
+    }
+
+    /** Reports a span with its local root's decision, or buffers it until there is one. */
+    List<Span> follow(final Span span) {
+      Decision decision = decisions.get(span.parentId());
+      if (decision != null && decision.traceId.equals(span.traceId())) {
+        // its own children may finish later still
+        decisions.put(span.id(), decision);
+        return decision.export ? Collections.singletonList(span) : null;
+      }
+      buffer(span);
+      return null;
+    }
+
+    private void buffer(final Span span) {
+      Trace trace = traces.get(span.traceId());
+      if (trace == null) {
+        trace = new Trace();
+        traces.put(span.traceId(), trace);
+      } else if (trace.spans.size() >= maxSpansPerTrace) {
+        Buffered oldest = trace.spans.pollFirst();
+        trace.bytes -= oldest.size;
+        bufferedBytes -= oldest.size;
+        spansEvicted.incrementAndGet();
+      }
+      int size = SpanBytesEncoder.JSON_V2.sizeInBytes(span);
+      trace.spans.add(new Buffered(span, size));
+      trace.bytes += size;
+      bufferedBytes += size;
+      Iterator<Trace> oldest = traces.values().iterator();
+      while (bufferedBytes > maxBufferedBytes && oldest.hasNext()) {
+        Trace evicted = oldest.next();
+        oldest.remove();
+        bufferedBytes -= evicted.bytes;
+        spansEvicted.addAndGet(evicted.spans.size());
+      }
+    }
+
+    /**
+     * Moves the spans of the trace under the local root to {@code spans}, keeping their
+     * order. A span is under the root if its chain of buffered parents leads to it.
+     */
+    private void takeDescendants(final Trace trace, final String localRootId,
+                                 final List<Span> spans) {
+      Map<String, String> parents = new HashMap<>();
+      for (Buffered buffered : trace.spans) {
+        parents.put(buffered.span.id(), buffered.span.parentId());
+      }
+      for (Iterator<Buffered> i = trace.spans.iterator(); i.hasNext(); ) {
+        Buffered buffered = i.next();
+        String parentId = buffered.span.parentId();
+        // bounded, in case of a cycle
+        for (int depth = 0; parentId != null && depth < parents.size(); depth++) {
+          if (parentId.equals(localRootId)) {
+            i.remove();
+            trace.bytes -= buffered.size;
+            bufferedBytes -= buffered.size;
+            spans.add(buffered.span);
+            break;
+          }
+          parentId = parents.get(parentId);
+        }
+      }
+    }
+  }
+}
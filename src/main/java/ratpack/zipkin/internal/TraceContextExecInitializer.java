@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.propagation.TraceContext;
+import ratpack.exec.ExecInitializer;
+import ratpack.exec.Execution;
+
+/**
+ * {@link ExecInitializer} that copies the trace context of the thread starting an
+ * execution into the new execution's registry.
+ *
+ * Initializers run when the execution is created. In Ratpack 1.4 an execution forked from
+ * within another execution is always created later, on an event loop, so the parent's
+ * context can't be seen here: those forks still need {@link ratpack.zipkin.TracedExecution}
+ * or {@link ratpack.zipkin.TracedParallelBatch}. What this covers are executions started
+ * on an event loop from that same event loop, outside of any execution (e.g. from Netty
+ * callbacks or redirect handlers), while a trace context is in scope there.
+ *
+ * Nothing is added to the registry when there is no context, and a context registered
+ * explicitly for the fork takes precedence.
+ *
+ * Only bound when enabled with {@link ratpack.zipkin.ServerTracingModule.Config#inheritThreadContext}.
+ */
+public final class TraceContextExecInitializer implements ExecInitializer {
+
+  @Override
+  public void init(final Execution execution) {
+    TraceContext context = RatpackCurrentTraceContext.threadContext();
+    if (context != null && !execution.maybeGet(RatpackCurrentTraceContext.TraceContextHolder.class).isPresent()) {
+      execution.add(RatpackCurrentTraceContext.newHolder(context));
+    }
+  }
+}
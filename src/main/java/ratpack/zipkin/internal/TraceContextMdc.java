@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.internal.HexCodec;
+import brave.propagation.TraceContext;
+import org.slf4j.MDC;
+
+/**
+ * Writes trace contexts to the SLF4J MDC under configurable keys.
+ *
+ * The hex strings for a context are computed once, in {@link #entry(TraceContext)}, and
+ * the resulting {@link Entry} is kept alongside the context so that restoring it (e.g.
+ * when a scope is closed) doesn't allocate again.
+ */
+public final class TraceContextMdc {
+
+  public static final String DEFAULT_TRACE_ID_KEY = "TraceId";
+
+  private static final TraceContextMdc DISABLED = new TraceContextMdc(null, null, null, null);
+
+  private final String traceIdKey;
+  private final String spanIdKey;
+  private final String parentIdKey;
+  private final String sampledKey;
+  private final boolean enabled;
+
+  private TraceContextMdc(final String traceIdKey, final String spanIdKey,
+                          final String parentIdKey, final String sampledKey) {
+    this.traceIdKey = traceIdKey;
+    this.spanIdKey = spanIdKey;
+    this.parentIdKey = parentIdKey;
+    this.sampledKey = sampledKey;
+    this.enabled = traceIdKey != null || spanIdKey != null || parentIdKey != null || sampledKey != null;
+  }
+
+  /**
+   * Create an instance writing to the given MDC keys. A null key is not written.
+   *
+   * @param traceIdKey the key for the trace ID
+   * @param spanIdKey the key for the span ID
+   * @param parentIdKey the key for the parent span ID
+   * @param sampledKey the key for the sampling decision
+   * @return the MDC writer
+   */
+  public static TraceContextMdc of(final String traceIdKey, final String spanIdKey,
+                                   final String parentIdKey, final String sampledKey) {
+    return new TraceContextMdc(traceIdKey, spanIdKey, parentIdKey, sampledKey);
+  }
+
+  /**
+   * @return an instance writing the trace ID under {@link #DEFAULT_TRACE_ID_KEY}
+   */
+  public static TraceContextMdc traceIdOnly() {
+    return of(DEFAULT_TRACE_ID_KEY, null, null, null);
+  }
+
+  /**
+   * @return an instance that never writes to the MDC
+   */
+  public static TraceContextMdc disabled() {
+    return DISABLED;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Compute the MDC values for a context.
+   *
+   * @param context the context, or null
+   * @return the values to write, or null for a null context
+   */
+  Entry entry(final TraceContext context) {
+    if (!enabled || context == null) return null;
+    return new Entry(
+        traceIdKey != null ? context.traceIdString() : null,
+        spanIdKey != null ? HexCodec.toLowerHex(context.spanId()) : null,
+        parentIdKey != null && context.parentId() != null ? HexCodec.toLowerHex(context.parentId()) : null,
+        sampledKey != null && context.sampled() != null ? context.sampled().toString() : null);
+  }
+
+  /**
+   * Write the entry to the MDC, or clear the keys for a null entry.
+   *
+   * @param entry the entry
+   */
+  void put(final Entry entry) {
+    if (!enabled) return;
+    if (entry == null) {
+      clear();
+      return;
+    }
+    put(traceIdKey, entry.traceId);
+    put(spanIdKey, entry.spanId);
+    put(parentIdKey, entry.parentId);
+    put(sampledKey, entry.sampled);
+  }
+
+  void clear() {
+    if (!enabled) return;
+    remove(traceIdKey);
+    remove(spanIdKey);
+    remove(parentIdKey);
+    remove(sampledKey);
+  }
+
+  private static void put(final String key, final String value) {
+    if (key == null) return;
+    if (value != null) {
+      MDC.put(key, value);
+    } else {
+      MDC.remove(key);
+    }
+  }
+
+  private static void remove(final String key) {
+    if (key != null) {
+      MDC.remove(key);
+    }
+  }
+
+  static final class Entry {
+    private final String traceId;
+    private final String spanId;
+    private final String parentId;
+    private final String sampled;
+
+    private Entry(final String traceId, final String spanId, final String parentId, final String sampled) {
+      this.traceId = traceId;
+      this.spanId = spanId;
+      this.parentId = parentId;
+      this.sampled = sampled;
+    }
+  }
+}
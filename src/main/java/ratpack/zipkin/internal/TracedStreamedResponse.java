@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.Span;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import ratpack.exec.Execution;
+import ratpack.func.Action;
+import ratpack.http.Headers;
+import ratpack.http.MutableHeaders;
+import ratpack.http.Response;
+import ratpack.http.Status;
+import ratpack.http.client.StreamedResponse;
+import ratpack.stream.StreamEvent;
+import ratpack.stream.Streams;
+import ratpack.stream.TransformablePublisher;
+import ratpack.util.Exceptions;
+
+/**
+ * Keeps a client span open until the body of a streamed response has been read, rather
+ * than finishing it when the response headers arrive.
+ *
+ * The body is observed as it passes through, without buffering it. The span finishes when
+ * the body completes, errors or is cancelled, or when the execution completes if the body
+ * was never read. It's tagged with the number of body bytes as
+ * {@link ResponseBodyTracking#RESPONSE_SIZE}, and the time the subscriber had no
+ * outstanding demand, in microseconds, as {@link #STALL_TIME}.
+ */
+final class TracedStreamedResponse implements StreamedResponse {
+
+  static final String STALL_TIME = "http.response.stall_us";
+  static final String CANCEL = "cancel";
+
+  private final StreamedResponse delegate;
+  private final Span span;
+  private final BiConsumer<Integer, Throwable> finish;
+  private long bytes;
+  private long demand;
+  private long stallStart = -1;
+  private long stallNanos;
+  private boolean subscribed;
+  private boolean finished;
+
+  /**
+   * @param delegate the response whose body is read
+   * @param span the client span
+   * @param finish finishes the span with the status code and the error that ended the body,
+   *               if any
+   */
+  TracedStreamedResponse(final StreamedResponse delegate, final Span span,
+                         final BiConsumer<Integer, Throwable> finish) {
+    this.delegate = delegate;
+    this.span = span;
+    this.finish = finish;
+    span.annotate(ResponseBodyTracking.FIRST_BYTE);
+    Execution.current().onComplete(() -> {
+      if (!isSubscribed()) {
+        finish(null);
+      }
+    });
+  }
+
+  @Override
+  public Status getStatus() {
+    return delegate.getStatus();
+  }
+
+  @Override
+  public int getStatusCode() {
+    return delegate.getStatusCode();
+  }
+
+  @Override
+  public Headers getHeaders() {
+    return delegate.getHeaders();
+  }
+
+  @Override
+  public TransformablePublisher<ByteBuf> getBody() {
+    return Streams.wiretap(delegate.getBody(), this::onEvent);
+  }
+
+  @Override
+  public void forwardTo(final Response response) {
+    forwardTo(response, Action.noop());
+  }
+
+  /** As Ratpack does, but sending the traced body. */
+  @Override
+  public void forwardTo(final Response response,
+                        final Action<? super MutableHeaders> headerMutator) {
+    MutableHeaders headers = response.getHeaders();
+    headers.copy(delegate.getHeaders());
+    headers.remove(HttpHeaderNames.CONNECTION);
+    Exceptions.uncheck(() -> headerMutator.execute(headers));
+    response.status(delegate.getStatus());
+    response.sendStream(Streams.bindExec(getBody()));
+  }
+
+  /**
+   * Request events come from the subscriber, and the others from the connection's event
+   * loop, so they are synchronized.
+   */
+  private synchronized void onEvent(final StreamEvent<?> event) {
+    if (event.isRequest()) {
+      subscribed = true;
+      long amount = event.getRequestAmount();
+      demand = demand + amount < 0 ? Long.MAX_VALUE : demand + amount;
+      endStall();
+    } else if (event.isData()) {
+      bytes += ((ByteBuf) event.getItem()).readableBytes();
+      if (demand != Long.MAX_VALUE && --demand == 0) {
+        stallStart = System.nanoTime();
+      }
+    } else if (event.isComplete()) {
+      finish(null);
+    } else if (event.isError()) {
+      finish(event.getThrowable());
+    } else if (event.isCancel()) {
+      span.annotate(CANCEL);
+      finish(null);
+    }
+  }
+
+  private void endStall() {
+    if (stallStart != -1) {
+      stallNanos += System.nanoTime() - stallStart;
+      stallStart = -1;
+    }
+  }
+
+  private synchronized boolean isSubscribed() {
+    return subscribed;
+  }
+
+  private synchronized void finish(final Throwable error) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    endStall();
+    span.tag(ResponseBodyTracking.RESPONSE_SIZE, Long.toString(bytes));
+    span.tag(STALL_TIME, Long.toString(TimeUnit.NANOSECONDS.toMicros(stallNanos)));
+    finish.accept(delegate.getStatusCode(), error);
+  }
+}
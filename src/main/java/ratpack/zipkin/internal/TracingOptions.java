@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import ratpack.zipkin.ForcedSamplingLimiter;
+import ratpack.zipkin.RouteSampler;
+
+/**
+ * The optional collaborators of {@link DefaultServerTracingHandler} and
+ * {@link ZipkinHttpClientImpl}. Each defaults to its disabled form, so that only the
+ * features in use need to be set.
+ *
+ * The client only uses the metrics, overhead budget, header propagation and response body
+ * tracking.
+ */
+public final class TracingOptions {
+
+  private static final TracingOptions DEFAULTS = newBuilder().build();
+
+  final RouteCache routeCache;
+  final RedMetrics metrics;
+  final RouteSampler routeSampler;
+  final ForcedSamplingLimiter forcedSamplingLimiter;
+  final OverheadBudget overheadBudget;
+  final HeaderPropagation headerPropagation;
+  final ClientAddressResolver clientAddressResolver;
+  final ResponseBodyTracking responseBodyTracking;
+
+  private TracingOptions(final Builder builder) {
+    this.routeCache = builder.routeCache;
+    this.metrics = builder.metrics;
+    this.routeSampler = builder.routeSampler;
+    this.forcedSamplingLimiter = builder.forcedSamplingLimiter;
+    this.overheadBudget = builder.overheadBudget;
+    this.headerPropagation = builder.headerPropagation;
+    this.clientAddressResolver = builder.clientAddressResolver;
+    this.responseBodyTracking = builder.responseBodyTracking;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * @return options with every feature disabled
+   */
+  public static TracingOptions defaults() {
+    return DEFAULTS;
+  }
+
+  /**
+   * Builder for {@link TracingOptions}.
+   */
+  public static final class Builder {
+    private RouteCache routeCache = RouteCache.disabled();
+    private RedMetrics metrics = RedMetrics.disabled();
+    private RouteSampler routeSampler = RouteSampler.none();
+    private ForcedSamplingLimiter forcedSamplingLimiter = ForcedSamplingLimiter.unlimited();
+    private OverheadBudget overheadBudget = OverheadBudget.disabled();
+    private HeaderPropagation headerPropagation = HeaderPropagation.disabled();
+    private ClientAddressResolver clientAddressResolver = ClientAddressResolver.defaults();
+    private ResponseBodyTracking responseBodyTracking = ResponseBodyTracking.disabled();
+
+    private Builder() {
+    }
+
+    public Builder routeCache(final RouteCache routeCache) {
+      this.routeCache = routeCache;
+      return this;
+    }
+
+    public Builder metrics(final RedMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    public Builder routeSampler(final RouteSampler routeSampler) {
+      this.routeSampler = routeSampler;
+      return this;
+    }
+
+    public Builder forcedSamplingLimiter(final ForcedSamplingLimiter forcedSamplingLimiter) {
+      this.forcedSamplingLimiter = forcedSamplingLimiter;
+      return this;
+    }
+
+    public Builder overheadBudget(final OverheadBudget overheadBudget) {
+      this.overheadBudget = overheadBudget;
+      return this;
+    }
+
+    public Builder headerPropagation(final HeaderPropagation headerPropagation) {
+      this.headerPropagation = headerPropagation;
+      return this;
+    }
+
+    public Builder clientAddressResolver(final ClientAddressResolver clientAddressResolver) {
+      this.clientAddressResolver = clientAddressResolver;
+      return this;
+    }
+
+    public Builder responseBodyTracking(final ResponseBodyTracking responseBodyTracking) {
+      this.responseBodyTracking = responseBodyTracking;
+      return this;
+    }
+
+    public TracingOptions build() {
+      return new TracingOptions(this);
+    }
+  }
+}
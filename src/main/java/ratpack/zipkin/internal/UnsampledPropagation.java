@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ratpack.zipkin.internal;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import java.util.List;
+
+/**
+ * Propagation that injects contexts without their sampled flag, so downstream services make
+ * their own sampling decision. Used with tail sampling, where every request is recorded
+ * locally, so that the whole downstream fleet isn't sampled too. Debug contexts are injected
+ * as they are. Extraction is unchanged.
+ */
+public final class UnsampledPropagation extends Propagation.Factory {
+
+  private final Propagation.Factory delegate;
+
+  private UnsampledPropagation(final Propagation.Factory delegate) {
+    this.delegate = delegate;
+  }
+
+  public static Propagation.Factory create(final Propagation.Factory delegate) {
+    return new UnsampledPropagation(delegate);
+  }
+
+  @Override
+  public boolean supportsJoin() {
+    return delegate.supportsJoin();
+  }
+
+  @Override
+  public boolean requires128BitTraceId() {
+    return delegate.requires128BitTraceId();
+  }
+
+  @Override
+  public TraceContext decorate(final TraceContext context) {
+    return delegate.decorate(context);
+  }
+
+  @Override
+  public <K> Propagation<K> create(final Propagation.KeyFactory<K> keyFactory) {
+    Propagation<K> propagation = delegate.create(keyFactory);
+    return new Propagation<K>() {
+      @Override
+      public List<K> keys() {
+        return propagation.keys();
+      }
+
+      @Override
+      public <C> TraceContext.Injector<C> injector(final Setter<C, K> setter) {
+        TraceContext.Injector<C> injector = propagation.injector(setter);
+        return (context, carrier) -> injector.inject(unsampled(context), carrier);
+      }
+
+      @Override
+      public <C> TraceContext.Extractor<C> extractor(final Getter<C, K> getter) {
+        return propagation.extractor(getter);
+      }
+    };
+  }
+
+  static TraceContext unsampled(final TraceContext context) {
+    return context.debug() || context.sampled() == null
+        ? context : context.toBuilder().sampled(null).build();
+  }
+}
@@ -31,6 +31,7 @@ import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
+import java.util.function.ToIntFunction;
 import javax.inject.Inject;
 import javax.net.ssl.SSLContext;
 import ratpack.exec.Promise;
@@ -55,15 +56,29 @@ public final class ZipkinHttpClientImpl implements HttpClient {
     private final BiFunction<WrappedRequestSpec, TraceContext, Span> nextThreadLocalSpan;
     private final HttpClientHandler<WrappedRequestSpec, Integer> handler;
     private final TraceContext.Injector<MutableHeaders> injector;
+    private final RedMetrics metrics;
+    private final OverheadBudget overheadBudget;
+    private final ResponseBodyTracking responseBodyTracking;
 
-    @Inject
     public ZipkinHttpClientImpl(final HttpClient delegate, final HttpTracing httpTracing) {
+        this(delegate, httpTracing, TracingOptions.defaults());
+    }
+
+    @Inject
+    public ZipkinHttpClientImpl(final HttpClient delegate, final HttpTracing httpTracing,
+                                final TracingOptions options) {
         this.delegate = delegate;
+        this.metrics = options.metrics;
+        this.overheadBudget = options.overheadBudget;
+        this.responseBodyTracking = options.responseBodyTracking;
         this.threadLocalSpan = ThreadLocalSpan.create(httpTracing.tracing().tracer());
         this.currentTraceContext = httpTracing.tracing().currentTraceContext();
         this.nextThreadLocalSpan = new NextSpan(threadLocalSpan, httpTracing.clientSampler());
         this.handler = HttpClientHandler.create(httpTracing, ADAPTER);
-        this.injector = httpTracing.tracing().propagation().injector(MutableHeaders::set);
+        HeaderPropagation headerPropagation = options.headerPropagation;
+        this.injector = headerPropagation.isEnabled()
+            ? (context, headers) -> headerPropagation.inject(context, headers.getNettyHeaders())
+            : httpTracing.tracing().propagation().injector(MutableHeaders::set);
     }
 
     @Override
@@ -98,14 +113,17 @@ public final class ZipkinHttpClientImpl implements HttpClient {
         // this reference is used to manually propagate the span from the request to the response
         // we use this because we cannot assume a thread context exists betweeen them.
         AtomicReference<Span> currentSpan = new AtomicReference<>();
-        return delegate.request(uri, (RequestSpec requestSpec) -> {
+        Promise<ReceivedResponse> response = delegate.request(uri, (RequestSpec requestSpec) -> {
             try {
                 action.execute(new WrappedRequestSpec(requestSpec, parent, currentSpan));
             } finally {
                 // moves the span from thread local context to an atomic ref the response can read
                 currentSpan.set(threadLocalSpan.remove());
             }
-        }).wiretap(response -> responseWithSpan(response, currentSpan.getAndSet(null)));
+        }).wiretap(result -> responseWithSpan(result, currentSpan.getAndSet(null)));
+        return metrics.isEnabled()
+            ? timed(uri, parent, response, ReceivedResponse::getStatusCode)
+            : response;
     }
 
     @Override
@@ -115,20 +133,31 @@ public final class ZipkinHttpClientImpl implements HttpClient {
         // this reference is used to manually propagate the span from the request to the response
         // we use this because we cannot assume a thread context exists betweeen them.
         AtomicReference<Span> currentSpan = new AtomicReference<>();
-        return delegate.requestStream(uri, (RequestSpec requestSpec) -> {
+        Promise<StreamedResponse> response = delegate.requestStream(uri, (RequestSpec requestSpec) -> {
             // streamed request doesn't set the http method.
             // start span here until a better solution presents itself.
+            long start = overheadBudget.start();
             WrappedRequestSpec captor = new WrappedRequestSpec(requestSpec, parent, currentSpan);
 
             Span span = nextThreadLocalSpan.apply(captor, parent);
             try {
                 handler.handleSend(injector, captor.getHeaders(), captor, span);
+                overheadBudget.stop(start);
                 action.execute(new WrappedRequestSpec(requestSpec, parent, currentSpan));
             } finally {
                 // moves the span from thread local context to an atomic ref the response can read
                 currentSpan.set(threadLocalSpan.remove());
             }
-        }).wiretap(response -> streamedResponseWithSpan(response, currentSpan.getAndSet(null)));
+        }).apply(streamed -> responseBodyTracking.isEnabled()
+            ? streamed.map(result -> tracedBody(result, currentSpan.getAndSet(null)))
+                .wiretap(result -> {
+                    // when the request fails, the span hasn't been taken by tracedBody
+                    if (result.isError()) streamedResponseWithSpan(result, currentSpan.getAndSet(null));
+                })
+            : streamed.wiretap(result -> streamedResponseWithSpan(result, currentSpan.getAndSet(null))));
+        return metrics.isEnabled()
+            ? timed(uri, parent, response, StreamedResponse::getStatusCode)
+            : response;
     }
 
     @Override
@@ -141,22 +170,54 @@ public final class ZipkinHttpClientImpl implements HttpClient {
         return request(uri, requestConfigurer.prepend(RequestSpec::post));
     }
 
+    /**
+     * Records every call, sampled or not, once its response (or error) is received. The
+     * caller's context is the exemplar, as it has the client span's trace ID.
+     */
+    private <T> Promise<T> timed(URI uri, TraceContext parent, Promise<T> response,
+                                 ToIntFunction<T> statusCode) {
+        return Promise.sync(System::nanoTime).flatMap(startNanos -> response.wiretap(result ->
+            metrics.recordClient(uri, result.isError() || statusCode.applyAsInt(result.getValue()) >= 500,
+                System.nanoTime() - startNanos, parent)));
+    }
+
     private void streamedResponseWithSpan(Result<StreamedResponse> response, Span currentSpan) {
         if (currentSpan == null) return;
 
+        long start = overheadBudget.start();
         Integer statusCode = (response.isError() || response.getValue() == null)
             ? null : response.getValue().getStatusCode();
 
         handler.handleReceive(statusCode, response.getThrowable(), currentSpan);
+        overheadBudget.stop(start);
+    }
+
+    /**
+     * Leaves the span open until the body has been read. Unsampled spans are finished
+     * straight away, as there's nothing to record.
+     */
+    private StreamedResponse tracedBody(StreamedResponse response, Span currentSpan) {
+        if (currentSpan == null) return response;
+        if (currentSpan.isNoop()) {
+            handler.handleReceive(response.getStatusCode(), null, currentSpan);
+            return response;
+        }
+        return new TracedStreamedResponse(response, currentSpan, (statusCode, error) -> {
+            long start = overheadBudget.start();
+            handler.handleReceive(statusCode, error, currentSpan);
+            overheadBudget.stop(start);
+        });
     }
 
     private void responseWithSpan(Result<ReceivedResponse> response, Span currentSpan) {
         if (currentSpan == null) return;
 
+        long start = overheadBudget.start();
         Integer statusCode = (response.isError() || response.getValue() == null)
             ? null : response.getValue().getStatusCode();
 
         handler.handleReceive(statusCode, response.getThrowable(), currentSpan);
+        overheadBudget.stop(start);
     }
 
     static final HttpClientAdapter<WrappedRequestSpec, Integer> ADAPTER =
@@ -213,8 +274,10 @@ public final class ZipkinHttpClientImpl implements HttpClient {
          * a new span is created.
          */
         private Action<? super RequestSpec> redirectHandler(ReceivedResponse response) {
+            long start = overheadBudget.start();
             Span span = currentSpan.getAndSet(null);
             handler.handleReceive(response.getStatusCode(), null, span);
+            overheadBudget.stop(start);
             return (s) -> new WrappedRequestSpec(s, parent, currentSpan);
         }
 
@@ -260,8 +323,10 @@ public final class ZipkinHttpClientImpl implements HttpClient {
         @Override
         public RequestSpec method(HttpMethod method) {
             this.capturedMethod = method;
+            long start = overheadBudget.start();
             Span currentSpan = nextThreadLocalSpan.apply(this, parent);
             handler.handleSend(injector, this.getHeaders(), this, currentSpan);
+            overheadBudget.stop(start);
             this.delegate.method(method);
             return this;
         }
@@ -0,0 +1,75 @@
+package ratpack.zipkin
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class AdaptiveSamplerSpec extends Specification {
+
+	long now = 0
+	LongSupplier clock = { now } as LongSupplier
+	Random random = new Random(1)
+
+	int sampleFor(AdaptiveSampler sampler, int tracesPerSecond, int seconds) {
+		int sampled = 0
+		long step = TimeUnit.SECONDS.toNanos(1) / tracesPerSecond
+		(1..(tracesPerSecond * seconds)).each {
+			now += step
+			if (sampler.isSampled(random.nextLong())) {
+				sampled++
+			}
+		}
+		return sampled
+	}
+
+	def "Should sample everything below the target rate"() {
+		given:
+			def sampler = new AdaptiveSampler(100, TimeUnit.SECONDS.toNanos(1), clock)
+		expect:
+			sampleFor(sampler, 50, 3) == 150
+			sampler.probability == 1f
+	}
+
+	def "Should keep the sampled rate near the target when traffic rises"() {
+		given:
+			def sampler = new AdaptiveSampler(100, TimeUnit.SECONDS.toNanos(1), clock)
+			sampleFor(sampler, 50, 2)
+		when: 'traffic rises tenfold, the token bucket caps the first interval'
+			int spike = sampleFor(sampler, 5000, 1)
+		then:
+			spike <= 200
+		when: 'then the probability catches up'
+			int sampled = sampleFor(sampler, 5000, 5)
+		then:
+			Math.abs(sampler.probability - 0.02f) < 0.001f
+			sampled in 400..600
+	}
+
+	def "Should sample more again when traffic falls"() {
+		given:
+			def sampler = new AdaptiveSampler(100, TimeUnit.SECONDS.toNanos(1), clock)
+			sampleFor(sampler, 1000, 3)
+		when:
+			sampleFor(sampler, 10, 2)
+		then:
+			sampler.probability == 1f
+	}
+
+	def "Should decide the same trace ID the same way"() {
+		given:
+			def sampler = new AdaptiveSampler(100, TimeUnit.SECONDS.toNanos(1), clock)
+			sampleFor(sampler, 1000, 2)
+		expect:
+			!sampler.isSampled(Long.MAX_VALUE)
+			!sampler.isSampled(Long.MIN_VALUE)
+			sampler.isSampled(1L)
+	}
+
+	def "Should reject a non-positive rate"() {
+		when:
+			AdaptiveSampler.create(0)
+		then:
+			thrown(IllegalArgumentException)
+	}
+}
@@ -0,0 +1,58 @@
+package ratpack.zipkin
+
+import brave.propagation.SamplingFlags
+import brave.propagation.TraceContext
+import brave.propagation.TraceContextOrSamplingFlags
+import spock.lang.Specification
+
+class ForcedSamplingLimiterSpec extends Specification {
+
+	static TraceContextOrSamplingFlags forced(boolean debug) {
+		return TraceContextOrSamplingFlags.create(TraceContext.newBuilder()
+				.traceId(1L).spanId(2L).sampled(true).debug(debug).build())
+	}
+
+	def "Should clear forced sampling over the overall limit"() {
+		given:
+			def limiter = ForcedSamplingLimiter.of(2, 0)
+		when:
+			def results = (1..4).collect { limiter.limit(forced(it % 2 == 0), "caller${it}") }
+		then:
+			results*.sampled() == [true, true, null, null]
+			results[3].context().traceId() == 1L
+			!results[3].context().debug()
+			limiter.overridden == 2
+	}
+
+	def "Should limit each caller separately"() {
+		given:
+			def limiter = ForcedSamplingLimiter.of(0, 1)
+		expect:
+			limiter.limit(forced(false), "a").sampled()
+			limiter.limit(forced(false), "a").sampled() == null
+			limiter.limit(forced(false), "b").sampled()
+			limiter.overridden == 1
+	}
+
+	def "Should clear debug flags without a trace context"() {
+		given:
+			def limiter = ForcedSamplingLimiter.of(1, 0)
+			def debug = TraceContextOrSamplingFlags.create(SamplingFlags.DEBUG)
+		when:
+			limiter.limit(debug, "a")
+			def limited = limiter.limit(debug, "a")
+		then:
+			limited.samplingFlags() == SamplingFlags.EMPTY
+	}
+
+	def "Should not limit requests that aren't forced"() {
+		given:
+			def limiter = ForcedSamplingLimiter.of(1, 1)
+			def notSampled = TraceContextOrSamplingFlags.create(SamplingFlags.NOT_SAMPLED)
+		expect:
+			(1..3).every { limiter.limit(notSampled, "a").is(notSampled) }
+			limiter.limit(TraceContextOrSamplingFlags.EMPTY, "a").is(TraceContextOrSamplingFlags.EMPTY)
+			limiter.overridden == 0
+			!ForcedSamplingLimiter.unlimited().enabled
+	}
+}
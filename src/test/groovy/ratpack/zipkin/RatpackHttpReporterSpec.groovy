@@ -0,0 +1,302 @@
+package ratpack.zipkin
+
+import brave.sampler.Sampler
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import ratpack.groovy.test.embed.GroovyEmbeddedApp
+import ratpack.guice.Guice
+import ratpack.exec.Blocking
+import ratpack.http.client.HttpClient
+import ratpack.test.embed.EmbeddedApp
+import ratpack.test.exec.ExecHarness
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import zipkin2.Endpoint
+import zipkin2.Span
+import zipkin2.codec.Encoding
+import zipkin2.codec.SpanBytesDecoder
+
+import java.time.Duration
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPInputStream
+
+class RatpackHttpReporterSpec extends Specification {
+
+	Queue<List<Span>> messages = new ConcurrentLinkedQueue<>()
+	Queue<String> contentEncodings = new ConcurrentLinkedQueue<>()
+	int collectorStatus = 202
+	// answered before collectorStatus, once each
+	Queue<Integer> collectorStatuses = new ConcurrentLinkedQueue<>()
+	// the collector answers once it's open
+	CountDownLatch collectorGate = new CountDownLatch(0)
+
+	@AutoCleanup
+	EmbeddedApp collector = GroovyEmbeddedApp.of { server ->
+		server.handlers { chain ->
+			chain.post("api/v2/spans") { ctx ->
+				ctx.request.body.then { body ->
+					def encoding = ctx.request.headers.get("Content-Encoding")
+					def bytes = encoding == "gzip"
+							? new GZIPInputStream(body.inputStream).bytes
+							: body.bytes
+					def decoder = ctx.request.contentType.type == "application/x-protobuf"
+							? SpanBytesDecoder.PROTO3 : SpanBytesDecoder.JSON_V2
+					contentEncodings.add(String.valueOf(encoding))
+					messages.add(decoder.decodeList(bytes))
+					Blocking.op { collectorGate.await(5, TimeUnit.SECONDS) }.then {
+						ctx.response.status(collectorStatuses.poll() ?: collectorStatus).send()
+					}
+				}
+			}
+		}
+	}
+
+	@AutoCleanup
+	ExecHarness harness = ExecHarness.harness()
+	@AutoCleanup
+	HttpClient httpClient = HttpClient.of { spec -> spec.poolSize(0) }
+	@AutoCleanup
+	RatpackHttpReporter reporter
+
+	PollingConditions conditions = new PollingConditions(timeout: 5)
+
+	@Rule
+	TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	URI endpoint() {
+		return URI.create("${collector.address}api/v2/spans")
+	}
+
+	static Span span(long id) {
+		return Span.newBuilder()
+				.traceId(1L, id).id(id)
+				.name("get")
+				.localEndpoint(Endpoint.newBuilder().serviceName("test").build())
+				.timestamp(1L).duration(1L)
+				.build()
+	}
+
+	def "Should send gzipped spans when flushed"() {
+		given:
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.build(harness.controller, httpClient)
+		when:
+			(1..3).each { reporter.report(span(it)) }
+			reporter.flush()
+		then:
+			conditions.eventually {
+				assert messages.collectMany { it } == (1..3).collect { span(it) }
+				assert reporter.messagesSent == 1
+			}
+			contentEncodings.toList() == ["gzip"]
+			reporter.queuedSpans == 0
+	}
+
+	def "Should flush on its own after the message timeout"(Encoding encoding, boolean compressed) {
+		given:
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.encoding(encoding)
+					.compressionEnabled(compressed)
+					.messageTimeout(Duration.ofMillis(50))
+					.build(harness.controller, httpClient)
+		when:
+			reporter.report(span(1))
+		then:
+			conditions.eventually {
+				assert messages.toList() == [[span(1)]]
+			}
+			contentEncodings.toList() == [compressed ? "gzip" : "null"]
+		where:
+			encoding        | compressed
+			Encoding.JSON   | true
+			Encoding.PROTO3 | false
+	}
+
+	def "Should flush when the queue holds a full message, and split messages by size"() {
+		given:
+			int spanSize = zipkin2.codec.SpanBytesEncoder.JSON_V2.sizeInBytes(span(1))
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.messageMaxBytes(2 * spanSize + 3)
+					.build(harness.controller, httpClient)
+		when:
+			(1..4).each { reporter.report(span(it)) }
+		then:
+			conditions.eventually {
+				assert messages.toList() == [[span(1), span(2)], [span(3), span(4)]]
+			}
+	}
+
+	def "Should drop spans beyond the queue size"() {
+		given:
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.queuedMaxSpans(2)
+					.build(harness.controller, httpClient)
+		when:
+			(1..3).each { reporter.report(span(it)) }
+		then:
+			reporter.queuedSpans == 2
+			reporter.spansDropped == 1
+	}
+
+	def "Should count spans rejected by the collector as dropped"() {
+		given:
+			collectorStatus = 500
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.build(harness.controller, httpClient)
+		when:
+			(1..2).each { reporter.report(span(it)) }
+			reporter.flush()
+		then:
+			conditions.eventually {
+				assert reporter.messagesFailed == 1
+				assert reporter.spansDropped == 2
+			}
+	}
+
+	def "Should spool spans while the collector fails, and replay them in order"() {
+		given:
+			collectorStatus = 503
+			def spool = SpanSpool.open(temporaryFolder.root.toPath(), 4096, 16384)
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.messageMaxBytes(zipkin2.codec.SpanBytesEncoder.JSON_V2.sizeInBytes(span(1)) + 2)
+					.spool(spool)
+					.build(harness.controller, httpClient)
+		when:
+			(1..3).each { reporter.report(span(it)) }
+			reporter.flush()
+		then: 'one message fails and the rest are spooled without being sent'
+			conditions.eventually {
+				assert spool.spansSpooled == 3
+			}
+			messages.size() == 1
+			reporter.messagesFailed == 1
+			reporter.spansDropped == 0
+		when:
+			collectorStatus = 202
+			messages.clear()
+			reporter.report(span(4))
+			reporter.flush()
+		then:
+			conditions.eventually {
+				assert messages.collectMany { it } == (1..4).collect { span(it) }
+				assert spool.spansReplayed == 3
+			}
+			spool.pendingSpans == 0
+	}
+
+	def "Should drop spooled messages the collector rejects, and replay the rest"() {
+		given:
+			collectorStatus = 503
+			def spool = SpanSpool.open(temporaryFolder.root.toPath(), 4096, 16384)
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.messageMaxBytes(zipkin2.codec.SpanBytesEncoder.JSON_V2.sizeInBytes(span(1)) + 2)
+					.spool(spool)
+					.build(harness.controller, httpClient)
+		when:
+			(1..3).each { reporter.report(span(it)) }
+			reporter.flush()
+		then:
+			conditions.eventually {
+				assert spool.spansSpooled == 3
+			}
+		when: 'the collector rejects the first spooled message'
+			collectorStatuses.add(400)
+			collectorStatus = 202
+			messages.clear()
+			reporter.report(span(4))
+			reporter.flush()
+		then: 'it is dropped rather than blocking the rest'
+			conditions.eventually {
+				assert messages.collectMany { it } == (1..4).collect { span(it) }
+				assert spool.pendingSpans == 0
+			}
+			reporter.queuedSpans == 0
+			reporter.spansDropped == 1
+			reporter.messagesFailed == 2
+	}
+
+	def "Should drop messages the collector rejects instead of spooling them"() {
+		given:
+			collectorStatuses.add(400)
+			def spool = SpanSpool.open(temporaryFolder.root.toPath(), 4096, 16384)
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.messageMaxBytes(zipkin2.codec.SpanBytesEncoder.JSON_V2.sizeInBytes(span(1)) + 2)
+					.spool(spool)
+					.build(harness.controller, httpClient)
+		when:
+			(1..2).each { reporter.report(span(it)) }
+			reporter.flush()
+		then:
+			conditions.eventually {
+				assert messages.collectMany { it } == (1..2).collect { span(it) }
+				assert reporter.spansDropped == 1
+			}
+			spool.spansSpooled == 0
+			reporter.queuedSpans == 0
+	}
+
+	def "Should wait for a flush in progress, and send what's left, before closing the spool"() {
+		given:
+			collectorGate = new CountDownLatch(1)
+			def spool = SpanSpool.open(temporaryFolder.root.toPath(), 4096, 16384)
+			reporter = RatpackHttpReporter.builder(endpoint())
+					.messageTimeout(Duration.ZERO)
+					.spool(spool)
+					.build(harness.controller, httpClient)
+		when: 'a span is queued while a flush is waiting for the collector'
+			reporter.report(span(1))
+			reporter.flush()
+			conditions.eventually {
+				assert messages.size() == 1
+			}
+			reporter.report(span(2))
+			Thread.start {
+				Thread.sleep(200)
+				collectorGate.countDown()
+			}
+			harness.yield { reporter.closeOperation().promise() }.valueOrThrow
+		then:
+			messages.toList() == [[span(1)], [span(2)]]
+			reporter.messagesSent == 2
+			reporter.spansDropped == 0
+			spool.spansSpooled == 0
+		when:
+			reporter.report(span(3))
+			reporter.flush()
+		then:
+			reporter.spansDropped == 1
+			reporter.queuedSpans == 0
+	}
+
+	def "Should report server spans through the module"() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.ALWAYS_SAMPLE)
+								.httpReporter(endpoint(), { builder -> builder.messageTimeout(Duration.ofMillis(50)) })
+					})
+				}).handlers { chain ->
+					chain.all { ctx -> ctx.render("foo") }
+				}
+			}
+		when:
+			app.test { t -> t.get() }
+		then:
+			conditions.eventually {
+				assert messages.collectMany { it }*.kind() == [Span.Kind.SERVER]
+			}
+	}
+}
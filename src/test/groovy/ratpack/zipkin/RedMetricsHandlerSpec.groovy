@@ -0,0 +1,62 @@
+package ratpack.zipkin
+
+import brave.sampler.Sampler
+import groovy.json.JsonSlurper
+import ratpack.groovy.test.embed.GroovyEmbeddedApp
+import ratpack.guice.Guice
+import ratpack.http.client.HttpClient
+import ratpack.test.embed.EmbeddedApp
+import ratpack.zipkin.support.TestReporter
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+class RedMetricsHandlerSpec extends Specification {
+
+	@AutoCleanup
+	EmbeddedApp downstream = GroovyEmbeddedApp.of { server ->
+		server.handlers { chain ->
+			chain.get { ctx -> ctx.response.status(502).send() }
+		}
+	}
+
+	def "Should render metrics for unsampled server requests and client calls"() {
+		given:
+			def reporter = new TestReporter()
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.NEVER_SAMPLE)
+								.spanReporterV2(reporter)
+								.redMetrics(100)
+					})
+				}).handlers { chain ->
+					chain.get("users/:id") { ctx -> ctx.render("user") }
+					chain.get("call") { ctx ->
+						ctx.get(HttpClient).get(downstream.address).then { response ->
+							ctx.render(response.statusCode.toString())
+						}
+					}
+					chain.get("metrics", RedMetricsHandler)
+				}
+			}
+		when:
+			app.httpClient.get("users/1")
+			app.httpClient.get("users/2")
+			app.httpClient.get("call")
+			def metrics = new JsonSlurper().parseText(app.httpClient.getText("metrics"))
+		then:
+			reporter.spans.isEmpty()
+			def users = metrics.server.find { it.route == "users/:id" }
+			users.method == "GET"
+			users.requests == 2
+			users.errors == 0
+			users.latencyMicros.buckets*.count.sum() == 2
+			def client = metrics.client.find { it.host == "${downstream.address.host}:${downstream.address.port}" }
+			client.requests == 1
+			client.errors == 1
+		cleanup:
+			app.close()
+	}
+}
@@ -0,0 +1,87 @@
+package ratpack.zipkin
+
+import ratpack.http.HttpMethod
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class RouteSamplerSpec extends Specification {
+
+	RouteSampler sampler = RouteSampler.newBuilder()
+			.never("health")
+			.never("/static/**")
+			.route("checkout/**", 1f)
+			.route("checkout/cart/preview", 0f)
+			.route("orders/:id", 0f)
+			.route(HttpMethod.POST, "orders/:id", 1f)
+			.route("orders/*/items/**", 1f)
+			.build()
+
+	@Unroll
+	def "Should sample #method #path: #expected"(String method, String path, Boolean expected) {
+		expect:
+			sampler.trySample(method, path) == expected
+		where:
+			method | path                       | expected
+			"GET"  | "health"                   | false
+			"GET"  | "/health/"                 | false
+			"GET"  | "healthz"                  | null
+			"GET"  | "health/deep"              | null
+			"GET"  | "static"                   | false
+			"GET"  | "static/css/site.css"      | false
+			"POST" | "checkout"                 | true
+			"POST" | "checkout/cart"            | true
+			"GET"  | "checkout/cart/preview"    | false
+			"GET"  | "orders/1"                 | false
+			"POST" | "orders/1"                 | true
+			"GET"  | "orders/1/items/2"         | true
+			"GET"  | "orders"                   | null
+			"GET"  | ""                         | null
+	}
+
+	@Unroll
+	def "Should sample #rate of requests by trace ID"(float rate) {
+		given:
+			def fractional = RouteSampler.newBuilder().route("search", rate).build()
+			def random = new Random(1)
+		when:
+			def sampled = (1..100_000).count { fractional.trySample("GET", "search", random.nextLong()) }
+		then:
+			Math.abs(sampled - 100_000 * rate) <= Math.max(100_000 * rate * 0.1, 20)
+		where:
+			rate << [0.005f, 0.0001f, 0.25f]
+	}
+
+	def "Should decide the same way for the same trace ID"() {
+		given:
+			def fractional = RouteSampler.newBuilder().route("search", 0.005f).build()
+			def boundary = (long) (Long.MAX_VALUE * (double) 0.005f)
+		expect:
+			fractional.trySample("GET", "search", boundary - 1)
+			fractional.trySample("GET", "search", -(boundary - 1))
+			!fractional.trySample("GET", "search", boundary * 2)
+			(1..10).every { !fractional.trySample("GET", "search", Long.MIN_VALUE) }
+	}
+
+	def "Should sample a fraction of requests without a trace ID"() {
+		given:
+			def fractional = RouteSampler.newBuilder().route("search", 0.005f).build()
+		when:
+			def sampled = (1..100_000).count { fractional.trySample("GET", "search") }
+		then:
+			sampled > 300 && sampled < 700
+	}
+
+	def "Should leave every request to the server sampler without routes"() {
+		expect:
+			RouteSampler.none().isEmpty()
+			RouteSampler.none().trySample("GET", "health") == null
+			!sampler.isEmpty()
+	}
+
+	def "Should reject ** before the last segment"() {
+		when:
+			RouteSampler.newBuilder().route("a/**/b", 1f)
+		then:
+			thrown(IllegalArgumentException)
+	}
+}
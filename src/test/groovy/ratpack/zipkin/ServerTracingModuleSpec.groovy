@@ -2,12 +2,18 @@ package ratpack.zipkin
 
 import brave.SpanCustomizer
 import brave.http.HttpSampler
+import brave.http.HttpTracing
 import brave.propagation.B3Propagation
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
+import ratpack.exec.ExecInitializer
+import ratpack.exec.ExecInterceptor
 import ratpack.handling.Context
 import ratpack.handling.Handler
 import ratpack.path.PathBinding
+import ratpack.zipkin.internal.MdcExecInterceptor
+import ratpack.zipkin.internal.OverheadBudget
+import ratpack.zipkin.internal.TraceContextExecInitializer
 import ratpack.zipkin.internal.ZipkinHttpClientImpl
 import ratpack.zipkin.support.B3PropagationHeaders
 import spock.lang.Unroll
@@ -59,6 +65,8 @@ class ServerTracingModuleSpec extends Specification {
 								.clientSampler(HttpSampler.TRACE_ID)
 								.serverSampler(HttpSampler.TRACE_ID)
 								.spanReporterV2(Reporter.NOOP)
+								.mdc(MdcMode.EXECUTION_SEGMENT)
+								.mdcKeys("traceId", "spanId", "parentId", "sampled")
 					})
 				}).handlers {
 					chain ->
@@ -71,6 +79,78 @@ class ServerTracingModuleSpec extends Specification {
 			app.test { t -> t.get() }
 	}
 
+	@Unroll
+	def "Should only register the execution initializer when enabled (#inherit)"() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config.inheritThreadContext(inherit)
+					})
+				}).handlers {
+					chain ->
+						chain.all {
+							ctx -> ctx.render(ctx.getAll(ExecInitializer).any { it instanceof TraceContextExecInitializer }.toString())
+						}
+				}
+			}
+		when:
+			String registered = null
+			app.test { t -> registered = t.getText() }
+		then:
+			registered == inherit.toString()
+		where:
+			inherit << [false, true]
+	}
+
+	@Unroll
+	def "Should only register the MDC interceptor for execution segments (#mdcMode)"() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config.mdc(mdcMode)
+					})
+				}).handlers {
+					chain ->
+						chain.all {
+							ctx -> ctx.render(ctx.getAll(ExecInterceptor).any { it instanceof MdcExecInterceptor }.toString())
+						}
+				}
+			}
+		when:
+			String registered = null
+			app.test { t -> registered = t.getText() }
+		then:
+			registered == (mdcMode == MdcMode.EXECUTION_SEGMENT).toString()
+		where:
+			mdcMode << MdcMode.values()
+	}
+
+	@Unroll
+	def "Should only register the overhead budget interceptor when there is a budget (#budget)"() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config.overheadBudget(budget)
+					})
+				}).handlers {
+					chain ->
+						chain.all {
+							ctx -> ctx.render(ctx.getAll(ExecInterceptor).any { it instanceof OverheadBudget.SegmentInterceptor }.toString())
+						}
+				}
+			}
+		when:
+			String registered = null
+			app.test { t -> registered = t.getText() }
+		then:
+			registered == (budget > 0).toString()
+		where:
+			budget << [0f, 0.02f]
+	}
+
 	def 'Should initialize with legacy NOOP Reporter'() {
 		given:
 			def app = GroovyEmbeddedApp.of { server ->
@@ -435,6 +515,123 @@ class ServerTracingModuleSpec extends Specification {
 
 	}
 
+	@Unroll
+	def 'Should continue B3 traces and propagate them downstream (direct: #direct)'(boolean direct) {
+		given:
+			def webServer = new MockWebServer()
+			webServer.start()
+			webServer.enqueue(new MockResponse().setResponseCode(200))
+			def url = webServer.url("/")
+		and:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.directHeaderPropagation(direct)
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all {
+							ctx ->
+								ctx.get(ZipkinHttpClientImpl.class).get(url.url().toURI())
+									.then { resp -> ctx.render("ok") }
+						}
+				}
+			}
+		when:
+			app.test { t ->
+				t.requestSpec { spec ->
+					spec.headers.set("X-B3-TraceId", "463ac35c9f6413ad")
+					spec.headers.set("X-B3-SpanId", "a2fb4a1d1a96d312")
+					spec.headers.set("X-B3-Sampled", "1")
+				}
+				t.get()
+			}
+			def downstream = webServer.takeRequest()
+		then:
+			reporter.getSpans()*.traceId() == ["463ac35c9f6413ad"] * 2
+			reporter.getSpans().find { it.kind() == Span.Kind.SERVER }.id() == "a2fb4a1d1a96d312"
+			downstream.getHeader("X-B3-TraceId") == "463ac35c9f6413ad"
+			downstream.getHeader("X-B3-ParentSpanId") == "a2fb4a1d1a96d312"
+			downstream.getHeader("X-B3-Sampled") == "1"
+			downstream.getHeader("traceparent") == null
+		cleanup:
+			webServer.shutdown()
+		where:
+			direct << [false, true]
+	}
+
+	def 'Should continue W3C traces and propagate them downstream'() {
+		given:
+			def webServer = new MockWebServer()
+			webServer.start()
+			webServer.enqueue(new MockResponse().setResponseCode(200))
+			def url = webServer.url("/")
+		and:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.w3cTraceContext(true)
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all {
+							ctx ->
+								ctx.get(ZipkinHttpClientImpl.class).get(url.url().toURI())
+									.then { resp -> ctx.render("ok") }
+						}
+				}
+			}
+		when:
+			app.test { t ->
+				t.requestSpec { spec ->
+					spec.headers.set("traceparent", "00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01")
+					spec.headers.set("tracestate", "vendor=value")
+				}
+				t.get()
+			}
+			def downstream = webServer.takeRequest()
+		then:
+			reporter.getSpans()*.traceId() == ["463ac35c9f6413ad48485a3953bb6124"] * 2
+			reporter.getSpans().find { it.kind() == Span.Kind.SERVER }.id() == "a2fb4a1d1a96d312"
+			downstream.getHeader("X-B3-TraceId") == "463ac35c9f6413ad48485a3953bb6124"
+			downstream.getHeader("traceparent").startsWith("00-463ac35c9f6413ad48485a3953bb6124-")
+			downstream.getHeader("tracestate") == "vendor=value"
+		cleanup:
+			webServer.shutdown()
+	}
+
+	def 'Should take the client address from the outermost trusted proxy'() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.ALWAYS_SAMPLE)
+								.trustedProxies(1)
+								.clientAddressCacheSize(100)
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all { ctx -> ctx.render("foo") }
+				}
+			}
+		when:
+			app.test { t ->
+				t.requestSpec { spec -> spec.headers.set("X-Forwarded-For", "1.2.3.4, 5.6.7.8") }
+				t.get()
+			}
+		then:
+			reporter.getSpans()*.remoteEndpoint()*.ipv4() == ["5.6.7.8"]
+	}
+
 	def 'Should customize current span'() {
 		given:
 		def app = GroovyEmbeddedApp.of { server ->
@@ -507,6 +704,282 @@ class ServerTracingModuleSpec extends Specification {
             assertThat(span.name()).isEqualTo("get /say/:message")
 	}
 
+	def 'Should call the span name provider once per route when the route cache is enabled'() {
+		given:
+			def calls = new java.util.concurrent.atomic.AtomicInteger()
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.spanReporterV2(reporter)
+							.routeCacheSize(10)
+							.spanNameProvider(new SpanNameProvider() {
+							@Override
+							String spanName(
+									final ServerRequest requestContext,
+									final Optional<PathBinding> pathBindingOpt) {
+								calls.incrementAndGet()
+								return pathBindingOpt
+									.map{ pathBinding -> pathBinding.getDescription()}
+									.orElse(requestContext.path)
+							}
+						} )
+					}) }).handlers {
+					chain ->
+						chain.get("say/:message", new Handler() {
+							@Override
+							void handle(final Context ctx) throws Exception {
+								ctx.response.send("yo!")
+							}
+						})
+				}
+			}
+		when:
+			app.test { t ->
+				t.get("say/hello")
+				t.get("say/goodbye")
+			}
+		then:
+			calls.get() == 1
+			reporter.getSpans().size() == 2
+			reporter.getSpans()*.name() == ["get /say/:message", "get /say/:message"]
+	}
+
+	def 'Should only export failing requests with tail sampling'() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.NEVER_SAMPLE)
+								.tailSampling(TailSamplingPolicy.newBuilder().baselineRate(0f).build())
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.get("ok") { ctx -> ctx.response.send("ok") }
+						chain.get("fail") { ctx -> ctx.response.status(503).send() }
+				}
+			}
+		when:
+			app.test { t ->
+				t.get("ok")
+				t.get("fail")
+				t.get("ok")
+			}
+		then:
+			reporter.getSpans()*.tags()*.get("http.status_code") == ["503"]
+	}
+
+	@Unroll
+	def 'Should export requests the caller decided to sample with tail sampling (#header)'(String header, String value) {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.tailSampling(TailSamplingPolicy.newBuilder().baselineRate(0f).build())
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all { ctx -> ctx.render("ok") }
+				}
+			}
+		when:
+			app.test { t ->
+				t.requestSpec { spec ->
+					spec.headers.set("X-B3-TraceId", "463ac35c9f6413ad")
+					spec.headers.set("X-B3-SpanId", "a2fb4a1d1a96d312")
+					spec.headers.set(header, value)
+				}
+				t.get()
+			}
+		then:
+			reporter.getSpans().size() == 1
+			reporter.getSpans().get(0).traceId() == "463ac35c9f6413ad"
+		where:
+			header         | value
+			"X-B3-Sampled" | "1"
+			"X-B3-Flags"   | "1"
+	}
+
+	def 'Should leave sampling to downstream services with tail sampling'() {
+		given:
+			def webServer = new MockWebServer()
+			webServer.start()
+			webServer.enqueue(new MockResponse().setResponseCode(200))
+			def url = webServer.url("/")
+		and:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.tailSampling(TailSamplingPolicy.newBuilder().baselineRate(1f).build())
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all {
+							ctx ->
+								ctx.get(ZipkinHttpClientImpl.class).get(url.url().toURI())
+									.then { resp -> ctx.render("ok") }
+						}
+				}
+			}
+		when:
+			app.test { t -> t.get() }
+			def downstream = webServer.takeRequest()
+		then:
+			reporter.getSpans().size() == 2
+			downstream.getHeader("X-B3-TraceId") != null
+			downstream.getHeader("X-B3-Sampled") == null
+		cleanup:
+			webServer.shutdown()
+	}
+
+	def 'Should sample up to the configured traces per second'() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.tracesPerSecond(1)
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all { ctx -> ctx.render("foo") }
+				}
+			}
+		when:
+			app.test { t ->
+				5.times { t.get() }
+			}
+		then:
+			reporter.getSpans().size() == 1
+	}
+
+	def 'Should sample by route before the server sampler'() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.NEVER_SAMPLE)
+								.routeSampler(RouteSampler.newBuilder()
+										.never("health")
+										.route("checkout/**", 1f)
+										.build())
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all { ctx -> ctx.render("foo") }
+				}
+			}
+		when:
+			app.test { t ->
+				t.get("health")
+				t.get("checkout/cart")
+				t.get("other")
+			}
+		then:
+			reporter.getSpans()*.tags()*.get("http.path") == ["/checkout/cart"]
+	}
+
+	def 'Should limit requests forced to be sampled'() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.NEVER_SAMPLE)
+								.forcedSamplingLimit(1, 0)
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all { ctx -> ctx.render("foo") }
+				}
+			}
+		when:
+			app.test { t ->
+				t.requestSpec { spec -> spec.headers.set("X-B3-Flags", "1") }
+				3.times { t.get() }
+			}
+		then:
+			reporter.getSpans().size() == 1
+	}
+
+	def 'Should limit requests forced to be sampled per forwarded caller'() {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.NEVER_SAMPLE)
+								.forcedSamplingLimit(0, 1)
+								.spanReporterV2(reporter)
+					})
+				}).handlers {
+					chain ->
+						chain.all { ctx -> ctx.render("foo") }
+				}
+			}
+		when: 'every request comes through the same proxy'
+			app.test { t ->
+				["1.2.3.4", "1.2.3.4", "5.6.7.8", "5.6.7.8"].each { caller ->
+					t.requestSpec { spec ->
+						spec.headers.set("X-B3-Flags", "1")
+						spec.headers.set("X-Forwarded-For", caller)
+					}
+					t.get()
+				}
+			}
+		then:
+			reporter.getSpans()*.remoteEndpoint()*.ipv4() == ["1.2.3.4", "5.6.7.8"]
+	}
+
+	def 'Should back off sampling with the HTTP reporter or an overhead budget'(boolean httpReporter, float budget, String samplerType) {
+		given:
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.ALWAYS_SAMPLE)
+								.samplingBackoff(0.5f, 0.1f)
+								.overheadBudget(budget)
+						if (httpReporter) {
+							config.httpReporter(URI.create("http://localhost:9411/api/v2/spans"))
+						}
+					})
+				}).handlers {
+					chain ->
+						chain.all { ctx -> ctx.render(ctx.get(HttpTracing).tracing().sampler().class.simpleName) }
+				}
+			}
+		expect:
+			app.httpClient.getText() == samplerType
+		cleanup:
+			app.close()
+		where:
+			httpReporter | budget | samplerType
+			true         | 0f     | "BackoffSampler"
+			false        | 0.02f  | "BackoffSampler"
+			false        | 0f     | Sampler.ALWAYS_SAMPLE.class.simpleName
+	}
+
 	def 'Should allow configuration of PropagationFactory'() {
 		given:
             def app = GroovyEmbeddedApp.of { server ->
@@ -0,0 +1,148 @@
+package ratpack.zipkin
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+import zipkin2.codec.Encoding
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+
+class SpanSpoolSpec extends Specification {
+
+	@Rule
+	TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	Path directory() {
+		return temporaryFolder.root.toPath().resolve("spool")
+	}
+
+	static ByteBuf message(String text) {
+		return Unpooled.copiedBuffer(text, StandardCharsets.UTF_8)
+	}
+
+	static String replay(SpanSpool spool) {
+		def record = spool.peek()
+		if (record == null) {
+			return null
+		}
+		def text = record.message.toString(StandardCharsets.UTF_8)
+		spool.commit(record)
+		return text
+	}
+
+	long segmentFiles() {
+		return Files.list(directory()).count()
+	}
+
+	def "Should replay messages in order across segments"() {
+		given:
+			def spool = SpanSpool.open(directory(), 64, 1024)
+		when:
+			(1..6).each { spool.append(message("[message ${it}]"), it, Encoding.JSON) }
+		then:
+			spool.pendingSpans == 21
+			segmentFiles() > 1
+		when:
+			def replayed = (1..7).collect { replay(spool) }
+		then:
+			replayed == (1..6).collect { "[message ${it}]" } + [null]
+			spool.spansSpooled == 21
+			spool.spansReplayed == 21
+			spool.isEmpty()
+		and: 'replayed segment files are kept for reuse'
+			segmentFiles() == old(segmentFiles())
+		when:
+			(7..10).each { spool.append(message("[message ${it}]"), 1, Encoding.JSON) }
+		then:
+			segmentFiles() == old(segmentFiles())
+			(1..5).collect { replay(spool) } == (7..10).collect { "[message ${it}]" } + [null]
+	}
+
+	def "Should resume in order after reopening a spool with reused segments"() {
+		given:
+			def spool = SpanSpool.open(directory(), 64, 128)
+			(1..4).each { spool.append(message("[message ${it}]"), 1, Encoding.JSON) }
+			(1..2).each { replay(spool) }
+		and: 'the first segment, which sorts first by name, now holds the newest messages'
+			(5..6).each { spool.append(message("[message ${it}]"), 1, Encoding.JSON) }
+			spool.close()
+		when:
+			def reopened = SpanSpool.open(directory(), 64, 128)
+		then:
+			segmentFiles() == 2
+			(1..5).collect { replay(reopened) } == (3..6).collect { "[message ${it}]" } + [null]
+	}
+
+	def "Should not replay records with an unknown encoding code"() {
+		given:
+			def spool = SpanSpool.open(directory(), 64, 1024)
+			(1..2).each { spool.append(message("[message ${it}]"), 1, Encoding.JSON) }
+			spool.close()
+		and: 'the second record claims an encoding this version does not know'
+			def file = Files.list(directory()).findFirst().get()
+			def bytes = Files.readAllBytes(file)
+			int second = SpanSpool.SEGMENT_HEADER_BYTES + SpanSpool.RECORD_HEADER_BYTES + "[message 1]".length()
+			bytes[second + 8] = 42
+			Files.write(file, bytes)
+		when:
+			def reopened = SpanSpool.open(directory(), 64, 1024)
+		then:
+			reopened.pendingSpans == 1
+			(1..2).collect { replay(reopened) } == ["[message 1]", null]
+	}
+
+	def "Should only spool the encodings the reporter sends"() {
+		given:
+			def spool = SpanSpool.open(directory(), 64, 1024)
+		when:
+			spool.append(message("[message 1]"), 1, Encoding.THRIFT)
+		then:
+			thrown(IllegalArgumentException)
+	}
+
+	def "Should resume from the last replayed message after reopening"() {
+		given:
+			def spool = SpanSpool.open(directory(), 64, 1024)
+			(1..4).each { spool.append(message("[message ${it}]"), 1, Encoding.PROTO3) }
+			replay(spool)
+			spool.close()
+		when:
+			def reopened = SpanSpool.open(directory(), 64, 1024)
+			def record = reopened.peek()
+		then:
+			reopened.pendingSpans == 3
+			record.encoding == Encoding.PROTO3
+			(1..4).collect { replay(reopened) } == (2..4).collect { "[message ${it}]" } + [null]
+		when: 'new messages go to a new segment'
+			reopened.append(message("[message 5]"), 1, Encoding.JSON)
+		then:
+			SpanSpool.open(directory(), 64, 1024).pendingSpans == 1
+	}
+
+	def "Should drop messages once the spool is full"() {
+		given:
+			def spool = SpanSpool.open(directory(), 64, 128)
+		when:
+			def appended = (1..8).collect { spool.append(message("[message ${it}]"), 2, Encoding.JSON) }
+		then:
+			appended.count { it } == 4
+			spool.spansDropped == 8
+			segmentFiles() == 2
+		when: 'replaying frees a segment'
+			(1..2).each { replay(spool) }
+		then:
+			spool.append(message("[message 9]"), 2, Encoding.JSON)
+	}
+
+	def "Should drop messages larger than a segment"() {
+		given:
+			def spool = SpanSpool.open(directory(), 64, 1024)
+		expect:
+			!spool.append(message("x" * 64), 1, Encoding.JSON)
+			spool.spansDropped == 1
+	}
+}
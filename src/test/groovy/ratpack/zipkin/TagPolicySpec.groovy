@@ -0,0 +1,136 @@
+package ratpack.zipkin
+
+import brave.SpanCustomizer
+import brave.http.HttpAdapter
+import brave.http.HttpClientParser
+import brave.http.HttpServerAdapter
+import brave.http.HttpServerParser
+import brave.sampler.Sampler
+import ratpack.groovy.test.embed.GroovyEmbeddedApp
+import ratpack.guice.Guice
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+
+class TagPolicySpec extends Specification {
+
+	static class RecordingCustomizer implements SpanCustomizer {
+		String name
+		Map<String, String> tags = [:]
+
+		SpanCustomizer name(String name) { this.name = name; this }
+
+		SpanCustomizer tag(String key, String value) { tags[key] = value; this }
+
+		SpanCustomizer annotate(String value) { this }
+	}
+
+	static class Request {
+		String method
+		String path
+		String url
+	}
+
+	static class CountingAdapter extends HttpServerAdapter<Request, Integer> {
+		int pathCalls
+		int urlCalls
+
+		String method(Request request) { request.method }
+
+		String path(Request request) { pathCalls++; request.path }
+
+		String url(Request request) { urlCalls++; request.url }
+
+		String requestHeader(Request request, String name) { null }
+
+		Integer statusCode(Integer response) { response }
+	}
+
+	/** Also tags the URL and a custom tag, as a custom parser would. */
+	static class UrlParser extends HttpServerParser {
+		@Override
+		<Req> void request(HttpAdapter<Req, ?> adapter, Req req, SpanCustomizer customizer) {
+			super.request(adapter, req, customizer)
+			String url = adapter.url(req)
+			if (url != null) {
+				customizer.tag("http.url", url)
+			}
+			customizer.tag("custom", "value")
+		}
+	}
+
+	CountingAdapter adapter = new CountingAdapter()
+	RecordingCustomizer customizer = new RecordingCustomizer()
+	Request request = new Request(method: "GET", path: "/users/1", url: "http://localhost/users/1?token=secret#top")
+
+	def "Should keep Brave's tags by default, without computing the URL"() {
+		given:
+			def parser = TagPolicy.newBuilder().build().serverParser(new UrlParser())
+		when:
+			parser.request(adapter, request, customizer)
+			parser.response(adapter, 500, null, customizer)
+		then:
+			customizer.name == "GET"
+			customizer.tags == ["http.method": "GET", "http.path": "/users/1", "http.status_code": "500", "error": "500"]
+			adapter.urlCalls == 0
+	}
+
+	def "Should keep only the listed tags, truncated and without query strings"() {
+		given:
+			def parser = TagPolicy.newBuilder()
+					.tags("http.url", "custom")
+					.maxValueLength(20)
+					.stripQueryString(true)
+					.build()
+					.serverParser(new UrlParser())
+		when:
+			parser.request(adapter, request, customizer)
+		then:
+			customizer.name == "GET"
+			customizer.tags == ["http.url": "http://localhost/use", "custom": "value"]
+			adapter.pathCalls == 0
+	}
+
+	def "Should strip query strings from client URLs"() {
+		given:
+			def parser = TagPolicy.newBuilder().tags("http.url").stripQueryString(true).build()
+					.clientParser(new HttpClientParser() {
+						@Override
+						<Req> void request(HttpAdapter<Req, ?> adapter, Req req, SpanCustomizer customizer) {
+							customizer.tag("http.url", adapter.url(req))
+						}
+					})
+		when:
+			parser.request(adapter, request, customizer)
+		then:
+			customizer.tags == ["http.url": "http://localhost/users/1"]
+	}
+
+	def "Should not allow a non-positive maximum length"() {
+		when:
+			TagPolicy.newBuilder().maxValueLength(0)
+		then:
+			thrown(IllegalArgumentException)
+	}
+
+	def "Should apply the policy to server spans"() {
+		given:
+			def reporter = new TestReporter()
+			def app = GroovyEmbeddedApp.of { server ->
+				server.registry(Guice.registry { binding ->
+					binding.module(ServerTracingModule.class, { config ->
+						config
+								.serviceName("embedded")
+								.sampler(Sampler.ALWAYS_SAMPLE)
+								.tagPolicy(TagPolicy.newBuilder().tags("http.method").build())
+								.spanReporterV2(reporter)
+					})
+				}).handlers { chain ->
+					chain.all { ctx -> ctx.render("foo") }
+				}
+			}
+		when:
+			app.test { t -> t.get("foo?bar=baz") }
+		then:
+			reporter.getSpans()*.tags() == [["http.method": "GET"]]
+	}
+}
@@ -0,0 +1,65 @@
+package ratpack.zipkin
+
+import brave.propagation.CurrentTraceContext
+import brave.propagation.TraceContext
+import ratpack.exec.Blocking
+import ratpack.test.exec.ExecHarness
+import ratpack.zipkin.internal.RatpackCurrentTraceContext
+import ratpack.zipkin.internal.TraceContextMdc
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+class TracedAsyncSpec extends Specification {
+
+	@AutoCleanup
+	ExecHarness harness = ExecHarness.harness()
+	@AutoCleanup("shutdown")
+	ExecutorService executor = Executors.newSingleThreadExecutor()
+
+	CurrentTraceContext currentTraceContext = new RatpackCurrentTraceContext(TraceContextMdc.disabled())
+	TraceContext parent = TraceContext.newBuilder().traceId(1L).spanId(2L).build()
+
+	def "Should run promised work with the caller's context"() {
+		when:
+			def result = harness.yield { e ->
+				currentTraceContext.newScope(parent)
+				TracedAsync.promise(currentTraceContext, executor, {
+					[currentTraceContext.get(), Thread.currentThread()]
+				}).map { offloaded -> offloaded + [currentTraceContext.get()] }
+			}.valueOrThrow
+		then:
+			result[0] == parent
+			result[1] != Thread.currentThread()
+			// the execution is resumed with its own context
+			result[2] == parent
+	}
+
+	def "Should run executor service tasks with the submitter's context"() {
+		given:
+			def traced = TracedAsync.executorService(currentTraceContext, executor)
+		when:
+			def result = harness.yield { e ->
+				currentTraceContext.newScope(parent)
+				def future = traced.submit({ currentTraceContext.get() } as java.util.concurrent.Callable)
+				Blocking.get { future.get() }
+			}.valueOrThrow
+		then:
+			result == parent
+		and: 'the pool thread does not keep the context'
+			executor.submit({ currentTraceContext.get() } as java.util.concurrent.Callable).get() == null
+	}
+
+	def "Should support scopes outside of an execution"() {
+		when:
+			def scope = currentTraceContext.newScope(parent)
+		then:
+			currentTraceContext.get() == parent
+		when:
+			scope.close()
+		then:
+			currentTraceContext.get() == null
+	}
+}
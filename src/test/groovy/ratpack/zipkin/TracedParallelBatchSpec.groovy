@@ -14,6 +14,8 @@ import ratpack.zipkin.support.TestReporter
 import spock.lang.AutoCleanup
 import spock.lang.Specification
 
+import java.util.concurrent.atomic.AtomicInteger
+
 class TracedParallelBatchSpec extends Specification {
 
 	@AutoCleanup
@@ -28,6 +30,13 @@ class TracedParallelBatchSpec extends Specification {
 		.sampler(Sampler.ALWAYS_SAMPLE)
 	}
 
+	// uses the registry of whichever execution is current, including forked ones
+	Tracing.Builder executionAwareTracingBuilder() {
+		return Tracing.newBuilder().spanReporter(reporter)
+		.currentTraceContext(new RatpackCurrentTraceContext())
+		.sampler(Sampler.ALWAYS_SAMPLE)
+	}
+
 	def cleanup() {
 		reporter.reset()
 	}
@@ -100,4 +109,79 @@ class TracedParallelBatchSpec extends Specification {
 
 	}
 
+	def "Should run each promise in a child span"() {
+		when:
+		List<String> results = harness.yield { execution ->
+			tracing = executionAwareTracingBuilder().build()
+			Tracer tracer = tracing.tracer()
+			Span parent = tracer.newTrace().name("parent").start()
+
+			TracedParallelBatch.of(
+					Blocking.get { "promise0:" + tracer.currentSpan().context().spanId() },
+					Blocking.get { "promise1:" + tracer.currentSpan().context().spanId() })
+					.withChildSpans(tracer, "leg")
+					.withContext(parent.context())
+					.yield()
+					.wiretap { parent.finish() }
+		}.valueOrThrow
+
+		then:
+		List<zipkin2.Span> spans = reporter.spans
+		spans.size() == 3
+		zipkin2.Span parent = spans.find { it.name() == "parent" }
+		List<zipkin2.Span> legs = spans.findAll { it.name() == "leg" }.sort { it.tags().get(TracedParallelBatch.BATCH_INDEX_TAG) }
+		legs*.parentId() == [parent.id(), parent.id()]
+		legs*.tags()*.get(TracedParallelBatch.BATCH_INDEX_TAG) == ["0", "1"]
+		legs.every { it.tags().containsKey(TracedParallelBatch.BATCH_QUEUE_TIME_TAG) }
+
+		and: 'the promises see their own span as the current span'
+		results == legs.collect { "promise${it.tags().get(TracedParallelBatch.BATCH_INDEX_TAG)}:${Long.parseUnsignedLong(it.id(), 16)}".toString() }
+	}
+
+	def "Should limit the number of promises running at once"() {
+		given:
+		AtomicInteger active = new AtomicInteger()
+		AtomicInteger maxActive = new AtomicInteger()
+		List<Promise<Integer>> promises = (0..<10).collect { i ->
+			Blocking.get {
+				maxActive.accumulateAndGet(active.incrementAndGet(), Math.&max)
+				sleep(10)
+				active.decrementAndGet()
+				i
+			}
+		}
+
+		when:
+		List<Integer> results = harness.yield { execution ->
+			tracing = executionAwareTracingBuilder().build()
+			TracedParallelBatch.of(promises)
+					.maxConcurrency(2)
+					.withChildSpans(tracing.tracer(), "leg")
+					.withContext(null)
+					.yield()
+		}.valueOrThrow
+
+		then:
+		results == (0..<10).toList()
+		maxActive.get() <= 2
+		reporter.spans.size() == 10
+	}
+
+	def "Should stream results as they complete"() {
+		when:
+		List<String> results = harness.yield { execution ->
+			tracing = executionAwareTracingBuilder().build()
+			TracedParallelBatch.of(
+					Blocking.get { sleep(200); "slow" },
+					Blocking.get { "fast" })
+					.withChildSpans(tracing.tracer(), "leg")
+					.withContext(null)
+					.publisher()
+					.toList()
+		}.valueOrThrow
+
+		then:
+		results == ["fast", "slow"]
+	}
+
 }
@@ -0,0 +1,89 @@
+package ratpack.zipkin.internal
+
+import brave.sampler.Sampler
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.IntSupplier
+import java.util.function.LongSupplier
+
+class BackoffSamplerSpec extends Specification {
+
+	long now = 0
+	int queued = 0
+	long dropped = 0
+
+	BackoffSampler sampler = new BackoffSampler(Sampler.ALWAYS_SAMPLE,
+			new ReporterBacklog({ queued } as IntSupplier, { dropped } as LongSupplier, 80, 20),
+			TimeUnit.SECONDS.toNanos(1), { now } as LongSupplier)
+
+	void tick() {
+		now += TimeUnit.SECONDS.toNanos(1)
+		sampler.isSampled(1L)
+	}
+
+	def "Should halve the fraction while the queue is over the high watermark"() {
+		when:
+			queued = 90
+			3.times { tick() }
+		then:
+			sampler.fraction == 0.125f
+	}
+
+	def "Should back off when spans are dropped"() {
+		when:
+			dropped = 5
+			tick()
+		then:
+			sampler.fraction == 0.5f
+		when: 'no more are dropped'
+			tick()
+		then:
+			sampler.fraction == 0.6f
+	}
+
+	def "Should only recover under the low watermark"() {
+		given:
+			queued = 90
+			2.times { tick() }
+		when:
+			queued = 50
+			3.times { tick() }
+		then:
+			sampler.fraction == 0.25f
+		when:
+			queued = 10
+			10.times { tick() }
+		then:
+			sampler.fraction == 1f
+	}
+
+	def "Should never sample what the delegate doesn't"() {
+		given:
+			def never = new BackoffSampler(Sampler.NEVER_SAMPLE, { Pressure.Level.HIGH } as Pressure,
+					1L, { now } as LongSupplier)
+		expect:
+			!never.isSampled(1L)
+	}
+
+	def "Should back off if any pressure is high, and recover only if all are low"() {
+		given:
+			def levels = [Pressure.Level.LOW, Pressure.Level.LOW]
+			def pressure = Pressure.any([{ levels[0] } as Pressure, { levels[1] } as Pressure])
+		expect:
+			pressure.check() == Pressure.Level.LOW
+		when:
+			levels[1] = Pressure.Level.HIGH
+		then:
+			pressure.check() == Pressure.Level.HIGH
+		when:
+			levels = [Pressure.Level.NORMAL, Pressure.Level.LOW]
+		then:
+			pressure.check() == Pressure.Level.NORMAL
+	}
+
+	def "Should keep every trace without backlog"() {
+		expect:
+			(1..100).every { sampler.isSampled(it) }
+	}
+}
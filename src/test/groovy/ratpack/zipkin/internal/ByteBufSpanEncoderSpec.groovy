@@ -0,0 +1,88 @@
+package ratpack.zipkin.internal
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufInputStream
+import io.netty.buffer.PooledByteBufAllocator
+import spock.lang.Specification
+import spock.lang.Unroll
+import zipkin2.Endpoint
+import zipkin2.Span
+import zipkin2.codec.Encoding
+import zipkin2.codec.SpanBytesDecoder
+import zipkin2.codec.SpanBytesEncoder
+
+import java.util.zip.GZIPInputStream
+
+class ByteBufSpanEncoderSpec extends Specification {
+
+	PooledByteBufAllocator allocator = new PooledByteBufAllocator(false)
+
+	List<Span> spans = (1..3).collect { id ->
+		Span.newBuilder()
+				.traceId(1L, id).id(id)
+				.name("get /users/:id")
+				.kind(Span.Kind.SERVER)
+				.localEndpoint(Endpoint.newBuilder().serviceName("test").ip("127.0.0.1").build())
+				.timestamp(1L).duration(1L)
+				.putTag("http.path", "/users/\"${id}\"")
+				.build()
+	}
+
+	static byte[] bytes(ByteBuf buffer) {
+		byte[] bytes = new byte[buffer.readableBytes()]
+		buffer.getBytes(buffer.readerIndex(), bytes)
+		return bytes
+	}
+
+	@Unroll
+	def "Should encode lists like the byte[] encoder (#encoding)"(Encoding encoding, SpanBytesEncoder bytesEncoder) {
+		given:
+			def encoder = ByteBufSpanEncoder.forEncoding(encoding)
+		when:
+			def buffer = encoder.encodeList(spans, allocator)
+		then:
+			bytes(buffer) == bytesEncoder.encodeList(spans)
+			buffer.readableBytes() == buffer.capacity()
+		cleanup:
+			buffer?.release()
+		where:
+			encoding        | bytesEncoder
+			Encoding.JSON   | SpanBytesEncoder.JSON_V2
+			Encoding.PROTO3 | SpanBytesEncoder.PROTO3
+	}
+
+	@Unroll
+	def "Should encode single spans like the byte[] encoder (#encoding)"(Encoding encoding, SpanBytesEncoder bytesEncoder) {
+		given:
+			def encoder = ByteBufSpanEncoder.forEncoding(encoding)
+		when:
+			def buffer = encoder.encode(spans[0], allocator)
+		then:
+			bytes(buffer) == bytesEncoder.encode(spans[0])
+		cleanup:
+			buffer?.release()
+		where:
+			encoding        | bytesEncoder
+			Encoding.JSON   | SpanBytesEncoder.JSON_V2
+			Encoding.PROTO3 | SpanBytesEncoder.PROTO3
+	}
+
+	def "Should gzip into a new buffer and release the input"() {
+		given:
+			def encoded = ByteBufSpanEncoder.JSON_V2.encodeList(spans, allocator)
+		when:
+			def compressed = ByteBufSpanEncoder.gzip(encoded, allocator)
+		then:
+			encoded.refCnt() == 0
+			SpanBytesDecoder.JSON_V2.decodeList(new GZIPInputStream(new ByteBufInputStream(compressed)).bytes) == spans
+		cleanup:
+			compressed?.release()
+	}
+
+	def "Should reject encodings without a list format"() {
+		when:
+			ByteBufSpanEncoder.forEncoding(Encoding.THRIFT)
+		then:
+			thrown(IllegalArgumentException)
+	}
+}
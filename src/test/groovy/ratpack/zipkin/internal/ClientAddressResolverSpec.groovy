@@ -0,0 +1,77 @@
+package ratpack.zipkin.internal
+
+import com.google.common.net.HostAndPort
+import io.netty.handler.codec.http.DefaultHttpHeaders
+import ratpack.http.Headers
+import ratpack.http.internal.NettyHeadersBackedHeaders
+import spock.lang.Specification
+
+class ClientAddressResolverSpec extends Specification {
+
+	static final HostAndPort REMOTE = HostAndPort.fromParts("10.0.0.1", 1234)
+
+	static Headers headers(Map<String, String> values) {
+		def headers = new DefaultHttpHeaders()
+		values.each { name, value -> headers.set(name, value) }
+		return new NettyHeadersBackedHeaders(headers)
+	}
+
+	def "Should use the left-most forwarded address"(Map<String, String> values, String expected) {
+		expect:
+			ClientAddressResolver.defaults().clientIp(headers(values), REMOTE) == expected
+			ClientAddressResolver.of(0, 10).clientIp(headers(values), REMOTE) == expected
+		where:
+			values                                                                | expected
+			[:]                                                                   | "10.0.0.1"
+			["X-Forwarded-For": "1.2.3.4"]                                        | "1.2.3.4"
+			["X-Forwarded-For": " 1.2.3.4 , 5.6.7.8"]                             | "1.2.3.4"
+			["X-Forwarded-For": "1.2.3.4:5678, 5.6.7.8"]                          | "1.2.3.4"
+			["X-Forwarded-For": "2001:DB8::1, 5.6.7.8"]                           | "2001:db8::1"
+			["X-Forwarded-For": "unknown, 5.6.7.8"]                               | "10.0.0.1"
+			["X-Forwarded-For": ""]                                               | "10.0.0.1"
+			["Forwarded": "for=1.2.3.4"]                                          | "1.2.3.4"
+			["Forwarded": "proto=https; For=\"[2001:db8:cafe::17]:4711\";by=x"]   | "2001:db8:cafe::17"
+			["Forwarded": "for=_hidden, for=5.6.7.8"]                             | "10.0.0.1"
+			["Forwarded": "proto=https"]                                          | "10.0.0.1"
+			["Forwarded": "for=1.2.3.4", "X-Forwarded-For": "5.6.7.8"]            | "1.2.3.4"
+	}
+
+	def "Should use the address added by the outermost trusted proxy"(int trustedProxies, String expected) {
+		given:
+			def resolver = ClientAddressResolver.of(trustedProxies, 0)
+		expect:
+			resolver.clientIp(headers(["X-Forwarded-For": "1.1.1.1, 2.2.2.2,3.3.3.3"]), REMOTE) == expected
+			resolver.clientIp(headers(["Forwarded": "for=1.1.1.1, for=2.2.2.2,for=3.3.3.3"]), REMOTE) == expected
+		where:
+			trustedProxies | expected
+			0              | "1.1.1.1"
+			1              | "3.3.3.3"
+			2              | "2.2.2.2"
+			3              | "1.1.1.1"
+			4              | "1.1.1.1"
+	}
+
+	def "Should cache parsed addresses, keyed by the address rather than the header"() {
+		given:
+			def resolver = ClientAddressResolver.of(1, 10)
+		when:
+			def first = resolver.clientIp(headers(["X-Forwarded-For": "spoofed, 2001:db8::1"]), REMOTE)
+			def second = resolver.clientIp(headers(["X-Forwarded-For": "other, 2001:db8::1"]), REMOTE)
+			resolver.clientIp(headers(["X-Forwarded-For": "unknown"]), REMOTE)
+		then:
+			first == "2001:db8::1"
+			second.is(first)
+			resolver.size() == 2
+	}
+
+	def "Should not allow negative settings"() {
+		when:
+			ClientAddressResolver.of(trustedProxies, maximumSize)
+		then:
+			thrown(IllegalArgumentException)
+		where:
+			trustedProxies | maximumSize
+			-1             | 0
+			0              | -1
+	}
+}
@@ -0,0 +1,142 @@
+package ratpack.zipkin.internal
+
+import brave.Tracing
+import brave.http.HttpTracing
+import brave.sampler.Sampler
+import ratpack.groovy.test.embed.GroovyEmbeddedApp
+import ratpack.handling.Handler
+import ratpack.path.PathBinding
+import ratpack.test.embed.EmbeddedApp
+import ratpack.zipkin.ServerRequest
+import ratpack.zipkin.SpanNameProvider
+import ratpack.zipkin.support.B3PropagationHeaders
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+class DefaultServerTracingHandlerSpec extends Specification {
+
+	static final int REQUESTS = 300
+
+	TestReporter reporter = new TestReporter()
+	AtomicInteger spanNames = new AtomicInteger()
+
+	HttpTracing httpTracing(Sampler sampler) {
+		Tracing tracing = Tracing.newBuilder()
+				.currentTraceContext(new RatpackCurrentTraceContext())
+				.sampler(sampler)
+				.spanReporter(reporter)
+				.build()
+		return HttpTracing.newBuilder(tracing)
+				.serverParser(new RatpackHttpServerParser(new SpanNameProvider() {
+					@Override
+					String spanName(final ServerRequest request, final Optional<PathBinding> pathBinding) {
+						spanNames.incrementAndGet()
+						return request.method.name
+					}
+				}))
+				.build()
+	}
+
+	def "Should not parse unsampled requests"(Sampler sampler, String sampledHeader) {
+		given:
+			def handler = new DefaultServerTracingHandler(httpTracing(sampler))
+			def app = GroovyEmbeddedApp.of { server ->
+				server.handlers { chain ->
+					chain.all(handler)
+					chain.all { ctx -> ctx.response.send("foo") }
+				}
+			}
+		when:
+			app.test { t ->
+				t.request { spec ->
+					if (sampledHeader) {
+						spec.headers { h -> h.add(B3PropagationHeaders.SAMPLED.value, sampledHeader) }
+					}
+				}
+			}
+		then:
+			spanNames.get() == 0
+			reporter.spans.isEmpty()
+		where:
+			sampler              | sampledHeader
+			Sampler.NEVER_SAMPLE | null
+			Sampler.ALWAYS_SAMPLE| "0"
+	}
+
+	def "Should propagate the trace context of unsampled requests"() {
+		given:
+			def tracing = httpTracing(Sampler.ALWAYS_SAMPLE)
+			def handler = new DefaultServerTracingHandler(tracing)
+			EmbeddedApp app = GroovyEmbeddedApp.of { server ->
+				server.handlers { chain ->
+					chain.all(handler)
+					chain.all { ctx ->
+						def context = tracing.tracing().tracer().currentSpan().context()
+						ctx.response.send("${context.traceIdString()}:${context.sampled()}")
+					}
+				}
+			}
+		when:
+			def body = app.httpClient.requestSpec { spec ->
+				spec.headers { h ->
+					h.add(B3PropagationHeaders.TRACE_ID.value, "0000000000000001")
+					h.add(B3PropagationHeaders.SPAN_ID.value, "0000000000000002")
+					h.add(B3PropagationHeaders.SAMPLED.value, "0")
+				}
+			}.get().body.text
+		then:
+			body == "0000000000000001:false"
+			reporter.spans.isEmpty()
+	}
+
+	def "Unsampled requests should allocate less than sampled requests"() {
+		given: 'the bytes allocated on the handling thread by each handler, beyond a pass-through handler'
+			long passThrough = minAllocatedBytes({ ctx -> ctx.next() } as Handler, [:])
+			long unsampled = minAllocatedBytes(new DefaultServerTracingHandler(httpTracing(Sampler.ALWAYS_SAMPLE)),
+					[(B3PropagationHeaders.TRACE_ID.value): "0000000000000001",
+					 (B3PropagationHeaders.SPAN_ID.value) : "0000000000000002",
+					 (B3PropagationHeaders.SAMPLED.value) : "0"]) - passThrough
+			long notSampledByServer = minAllocatedBytes(new DefaultServerTracingHandler(httpTracing(Sampler.NEVER_SAMPLE)),
+					[:]) - passThrough
+			long sampled = minAllocatedBytes(new DefaultServerTracingHandler(httpTracing(Sampler.ALWAYS_SAMPLE)),
+					[(B3PropagationHeaders.TRACE_ID.value): "0000000000000001",
+					 (B3PropagationHeaders.SPAN_ID.value) : "0000000000000002",
+					 (B3PropagationHeaders.SAMPLED.value) : "1"]) - passThrough
+		expect:
+			unsampled < sampled
+			notSampledByServer < sampled
+	}
+
+	/**
+	 * Sends requests through the given handler and returns the smallest number of bytes
+	 * allocated by the handling thread while handling one request, which filters out
+	 * warm-up (class loading, call site caching) and other one-off allocations.
+	 */
+	long minAllocatedBytes(Handler handler, Map<String, String> headers) {
+		def threads = (com.sun.management.ThreadMXBean) ManagementFactory.threadMXBean
+		def allocations = new ConcurrentLinkedQueue<Long>()
+		EmbeddedApp app = GroovyEmbeddedApp.of { server ->
+			server.handlers { chain ->
+				chain.all { ctx ->
+					long threadId = Thread.currentThread().id
+					long before = threads.getThreadAllocatedBytes(threadId)
+					handler.handle(ctx)
+					allocations.add(threads.getThreadAllocatedBytes(threadId) - before)
+				}
+				chain.all { ctx -> ctx.response.send("foo") }
+			}
+		}
+		app.test { t ->
+			REQUESTS.times {
+				t.request { spec ->
+					spec.headers { h -> headers.each { name, value -> h.add(name, value) } }
+				}
+			}
+		}
+		return allocations.min()
+	}
+}
@@ -0,0 +1,167 @@
+package ratpack.zipkin.internal
+
+import brave.propagation.B3Propagation
+import brave.propagation.Propagation
+import brave.propagation.SamplingFlags
+import brave.propagation.TraceContext
+import brave.propagation.TraceContextOrSamplingFlags
+import io.netty.handler.codec.http.DefaultHttpHeaders
+import io.netty.handler.codec.http.HttpHeaders
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class HeaderPropagationSpec extends Specification {
+
+	static final TraceContext.Extractor<HttpHeaders> BRAVE = B3Propagation.FACTORY
+			.create(Propagation.KeyFactory.STRING)
+			.extractor({ HttpHeaders headers, String name -> headers.get(name) } as Propagation.Getter)
+
+	HeaderPropagation propagation = HeaderPropagation.b3(true)
+
+	static HttpHeaders headers(Map<String, String> values) {
+		def headers = new DefaultHttpHeaders()
+		values.each { name, value -> headers.set(name, value) }
+		return headers
+	}
+
+	@Unroll
+	def "Should extract multi-header B3 like Brave: #values"(Map<String, String> values) {
+		given:
+			def headers = headers(values)
+		expect:
+			propagation.extract(headers) == BRAVE.extract(headers)
+		where:
+			values << [
+					[:],
+					["X-B3-TraceId": "463ac35c9f6413ad", "X-B3-SpanId": "a2fb4a1d1a96d312"],
+					["x-b3-traceid": "463ac35c9f6413ad48485a3953bb6124", "x-b3-spanid": "a2fb4a1d1a96d312",
+					 "x-b3-parentspanid": "0020000000000001", "x-b3-sampled": "1"],
+					["X-B3-TraceId": "463ac35c9f6413ad", "X-B3-SpanId": "a2fb4a1d1a96d312", "X-B3-Flags": "1"],
+					["X-B3-TraceId": "463ac35c9f6413ad", "X-B3-SpanId": "a2fb4a1d1a96d312", "X-B3-Sampled": "true"],
+					["X-B3-Sampled": "0"],
+					["X-B3-Sampled": "1"],
+					["X-B3-Flags": "1"],
+					["X-B3-TraceId": "463ac35c9f6413ad"],
+			]
+	}
+
+	def "Should accept a 128-bit trace ID whose high bits are zero"() {
+		expect: 'Brave 5.1 mistakes the zero high bits for a parse failure'
+			propagation.extract(headers(["X-B3-TraceId": "0000000000000000463ac35c9f6413ad",
+										 "X-B3-SpanId": "a2fb4a1d1a96d312", "X-B3-Sampled": "0"])) ==
+					context(0L, 0x463ac35c9f6413adL, null, false, false)
+	}
+
+	@Unroll
+	def "Should ignore malformed IDs: #values"(Map<String, String> values) {
+		expect:
+			propagation.extract(headers(values)) == TraceContextOrSamplingFlags.EMPTY
+		where:
+			values << [
+					["X-B3-TraceId": "463AC35C9F6413AD", "X-B3-SpanId": "a2fb4a1d1a96d312"],
+					["X-B3-TraceId": "0000000000000000", "X-B3-SpanId": "a2fb4a1d1a96d312"],
+					["X-B3-TraceId": "463ac35c9f6413ad", "X-B3-SpanId": "a2fb4a1d1a96d312a"],
+					["X-B3-TraceId": "z63ac35c9f6413ad463ac35c9f6413ad", "X-B3-SpanId": "a2fb4a1d1a96d312"],
+					["b3": "463ac35c9f6413ad-a2fb4a1d1a96d31"],
+					["b3": "463ac35c9f6413ad-a2fb4a1d1a96d312-x"],
+					["b3": "x"],
+					["traceparent": "00-00000000000000000000000000000000-a2fb4a1d1a96d312-01"],
+					["traceparent": "00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01-extra"],
+					["traceparent": "ff-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01"],
+			]
+	}
+
+	def "Should extract single-header B3"() {
+		expect:
+			propagation.extract(headers(["b3": value])) == expected
+		where:
+			value                                                   | expected
+			"1"                                                     | TraceContextOrSamplingFlags.create(SamplingFlags.SAMPLED)
+			"0"                                                     | TraceContextOrSamplingFlags.create(SamplingFlags.NOT_SAMPLED)
+			"d"                                                     | TraceContextOrSamplingFlags.create(SamplingFlags.DEBUG)
+			"463ac35c9f6413ad-a2fb4a1d1a96d312"                     | context(0L, 0x463ac35c9f6413adL, null, null, false)
+			"463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-1"   | context(0x463ac35c9f6413adL, 0x48485a3953bb6124L, null, true, false)
+			"463ac35c9f6413ad-a2fb4a1d1a96d312-d-0020000000000001"  | context(0L, 0x463ac35c9f6413adL, 0x20000000000001L, null, true)
+	}
+
+	def "Should extract W3C trace context, keeping tracestate"() {
+		when:
+			def extracted = propagation.extract(headers([
+					"traceparent": "00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01",
+					"tracestate" : "vendor=value"]))
+		then:
+			extracted.context().traceIdString() == "463ac35c9f6413ad48485a3953bb6124"
+			extracted.context().spanId() == 0xa2fb4a1d1a96d312L
+			extracted.context().sampled()
+			extracted.context().extra()*.value == ["vendor=value"]
+	}
+
+	def "Should prefer B3 to W3C, and ignore W3C unless enabled"() {
+		given:
+			def both = headers(["b3": "0", "traceparent": "00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01"])
+			def w3c = headers(["traceparent": "00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01"])
+		expect:
+			!propagation.extract(both).sampled()
+			HeaderPropagation.b3(false).extract(w3c) == TraceContextOrSamplingFlags.EMPTY
+	}
+
+	def "Should inject what it extracts"() {
+		given:
+			def context = TraceContext.newBuilder()
+					.traceIdHigh(0x463ac35c9f6413adL).traceId(0x48485a3953bb6124L)
+					.parentId(1L).spanId(0xa2fb4a1d1a96d312L).sampled(true)
+					.extra([new HeaderPropagation.TraceState("vendor=value")])
+					.build()
+			def headers = new DefaultHttpHeaders()
+		when:
+			propagation.inject(context, headers)
+		then:
+			headers.get("X-B3-TraceId") == "463ac35c9f6413ad48485a3953bb6124"
+			headers.get("X-B3-SpanId") == "a2fb4a1d1a96d312"
+			headers.get("X-B3-ParentSpanId") == "0000000000000001"
+			headers.get("X-B3-Sampled") == "1"
+			headers.get("traceparent") == "00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01"
+			headers.get("tracestate") == "vendor=value"
+			BRAVE.extract(headers).context() == context
+	}
+
+	def "Should leave the sampling decision downstream unless told to inject it"() {
+		given:
+			def context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build()
+			def headers = new DefaultHttpHeaders()
+			def debugHeaders = new DefaultHttpHeaders()
+			def unsampled = HeaderPropagation.b3(true, false)
+		when:
+			unsampled.inject(context, headers)
+			unsampled.inject(context.toBuilder().debug(true).build(), debugHeaders)
+		then:
+			!headers.contains("X-B3-Sampled")
+			headers.get("traceparent").endsWith("-00")
+			propagation.extract(headers).context().sampled() == null
+		and: 'debug requests are still forced'
+			debugHeaders.get("X-B3-Flags") == "1"
+			debugHeaders.get("traceparent").endsWith("-01")
+	}
+
+	def "Should inject contexts without their sampled flag with any propagation"() {
+		given:
+			def injector = UnsampledPropagation.create(B3Propagation.FACTORY)
+					.create(Propagation.KeyFactory.STRING)
+					.injector({ HttpHeaders headers, String name, String value -> headers.set(name, value) } as Propagation.Setter)
+			def headers = new DefaultHttpHeaders()
+		when:
+			injector.inject(TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build(), headers)
+		then:
+			headers.get("X-B3-TraceId") == "0000000000000001"
+			!headers.contains("X-B3-Sampled")
+	}
+
+	static TraceContextOrSamplingFlags context(long traceIdHigh, long traceId, Long parentId, Boolean sampled, boolean debug) {
+		def builder = TraceContext.newBuilder().traceIdHigh(traceIdHigh).traceId(traceId).spanId(0xa2fb4a1d1a96d312L)
+				.parentId(parentId).sampled(sampled)
+		if (debug) {
+			builder.debug(true)
+		}
+		return TraceContextOrSamplingFlags.create(builder.build())
+	}
+}
@@ -0,0 +1,81 @@
+package ratpack.zipkin.internal
+
+import brave.SpanCustomizer
+import brave.http.HttpAdapter
+import brave.http.HttpServerParser
+import ratpack.exec.ExecInterceptor
+import ratpack.func.Block
+import spock.lang.Specification
+
+class OverheadBudgetSpec extends Specification {
+
+	OverheadBudget budget = new OverheadBudget(0.1f, Long.MAX_VALUE)
+	ExecInterceptor interceptor = new OverheadBudget.SegmentInterceptor(budget)
+
+	void spend(long tracingMillis, long segmentMillis) {
+		long start = budget.start()
+		Thread.sleep(tracingMillis)
+		budget.stop(start)
+		interceptor.intercept(null, ExecInterceptor.ExecType.COMPUTE, { Thread.sleep(segmentMillis) } as Block)
+		budget.update()
+	}
+
+	def "Should signal pressure over budget, and recover under half the budget"() {
+		when:
+			spend(20, 60)
+		then:
+			budget.fraction > 0.1f
+			budget.check() == Pressure.Level.HIGH
+			budget.skippingTags
+		when:
+			spend(0, 200)
+		then:
+			budget.fraction < 0.05f
+			budget.check() == Pressure.Level.LOW
+			!budget.skippingTags
+	}
+
+	def "Should only count compute segments"() {
+		when:
+			interceptor.intercept(null, ExecInterceptor.ExecType.BLOCKING, { Thread.sleep(50) } as Block)
+			long start = budget.start()
+			Thread.sleep(5)
+			budget.stop(start)
+			budget.update()
+		then: 'there was no compute time to compare with'
+			budget.check() == Pressure.Level.LOW
+	}
+
+	def "Should skip request tags while over budget"() {
+		given:
+			def parser = budget.serverParser(new HttpServerParser() {
+				@Override
+				def <Req> void request(HttpAdapter<Req, ?> adapter, Req req, SpanCustomizer customizer) {
+					customizer.name("get").tag("http.path", "/")
+				}
+
+				@Override
+				def <Resp> void response(HttpAdapter<?, Resp> adapter, Resp res, Throwable error, SpanCustomizer customizer) {
+					customizer.tag("http.status_code", "500")
+				}
+			})
+			def customizer = Mock(SpanCustomizer)
+		when:
+			spend(20, 60)
+			parser.request(null, "request", customizer)
+		then:
+			1 * customizer.name("get") >> customizer
+			0 * customizer.tag(_, _)
+		when:
+			parser.response(null, "response", null, customizer)
+		then: 'response tags are kept'
+			1 * customizer.tag("http.status_code", "500")
+	}
+
+	def "Should not time anything when disabled"() {
+		expect:
+			!OverheadBudget.disabled().enabled
+			OverheadBudget.disabled().start() == 0
+			OverheadBudget.disabled().serverParser(HttpServerParser.newInstance()).class == HttpServerParser
+	}
+}
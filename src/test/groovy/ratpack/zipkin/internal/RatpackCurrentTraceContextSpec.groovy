@@ -84,4 +84,28 @@ class RatpackCurrentTraceContextSpec extends Specification {
             traceContext.get() == null
     }
 
+    def 'Opening scopes should not grow the registry'() {
+        when:
+            100.times {
+                def outer = traceContext.newScope(dummyContext())
+                traceContext.newScope(dummyContext()).close()
+                outer.close()
+            }
+        then:
+            registry.getAll(Object).size() == 1
+            traceContext.get() == null
+    }
+
+    def 'Wrapped contexts should not share state'() {
+        given:
+            MutableRegistry other = Registry.mutable()
+            def otherTraceContext = new RatpackCurrentTraceContext({ -> other })
+            registry.add(RatpackCurrentTraceContext.wrap(null))
+            other.add(RatpackCurrentTraceContext.wrap(null))
+        when:
+            traceContext.newScope(dummyContext())
+        then:
+            otherTraceContext.get() == null
+    }
+
 }
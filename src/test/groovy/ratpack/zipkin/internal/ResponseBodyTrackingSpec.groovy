@@ -0,0 +1,105 @@
+package ratpack.zipkin.internal
+
+import brave.sampler.Sampler
+import ratpack.groovy.test.embed.GroovyEmbeddedApp
+import ratpack.guice.Guice
+import ratpack.http.ResponseChunks
+import ratpack.stream.Streams
+import ratpack.test.embed.EmbeddedApp
+import ratpack.zipkin.ServerTracingModule
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import zipkin2.Span
+
+import java.time.Duration
+
+class ResponseBodyTrackingSpec extends Specification {
+
+	TestReporter reporter = new TestReporter()
+	PollingConditions conditions = new PollingConditions(timeout: 5)
+
+	EmbeddedApp app(boolean finishAfterResponseBody) {
+		return GroovyEmbeddedApp.of { server ->
+			server.registry(Guice.registry { binding ->
+				binding.module(ServerTracingModule.class, { config ->
+					config
+							.serviceName("embedded")
+							.sampler(Sampler.ALWAYS_SAMPLE)
+							.finishAfterResponseBody(finishAfterResponseBody)
+							.spanReporterV2(reporter)
+				})
+			}).handlers { chain ->
+				chain.get("text") { ctx -> ctx.render("foo") }
+				chain.get("stream") { ctx ->
+					ctx.render(ResponseChunks.stringChunks(
+							Streams.periodically(ctx, Duration.ofMillis(100), { i -> i < 3 ? "chunk" + i : null })))
+				}
+				chain.get("endless") { ctx ->
+					ctx.render(ResponseChunks.stringChunks(
+							Streams.periodically(ctx, Duration.ofMillis(10), { i -> "chunk" + i })))
+				}
+			}
+		}
+	}
+
+	def "Should finish streamed responses after the last chunk"(boolean finishAfterResponseBody, boolean fullDuration) {
+		given:
+			def app = app(finishAfterResponseBody)
+		when:
+			def body = app.httpClient.getText("stream")
+		then:
+			body == "chunk0chunk1chunk2"
+			conditions.eventually {
+				assert reporter.getSpans().size() == 1
+			}
+			def span = reporter.getSpans()[0]
+			(span.duration() >= 250_000) == fullDuration
+			(span.tags()[ResponseBodyTracking.RESPONSE_SIZE] == "18") == fullDuration
+			(span.annotations()*.value() == [ResponseBodyTracking.FIRST_BYTE]) == fullDuration
+		cleanup:
+			app.close()
+		where:
+			finishAfterResponseBody | fullDuration
+			true                    | true
+			false                   | false
+	}
+
+	def "Should count the body of each response on a connection"() {
+		given:
+			def app = app(true)
+		when:
+			app.httpClient.getText("text")
+			app.httpClient.getText("stream")
+			app.httpClient.getText("text")
+		then:
+			conditions.eventually {
+				assert reporter.getSpans().size() == 3
+			}
+			reporter.getSpans().collect { it.tags()[ResponseBodyTracking.RESPONSE_SIZE] }.sort() == ["18", "3", "3"]
+		cleanup:
+			app.close()
+	}
+
+	def "Should finish the span when the client disconnects mid-stream"() {
+		given:
+			def app = app(true)
+			def socket = new Socket(app.address.host, app.address.port)
+		when:
+			socket.outputStream.write("GET /endless HTTP/1.1\r\nHost: localhost\r\n\r\n".bytes)
+			socket.outputStream.flush()
+			socket.inputStream.read(new byte[64])
+			sleep(50)
+			socket.close()
+		then:
+			conditions.eventually {
+				assert reporter.getSpans().size() == 1
+			}
+			def span = reporter.getSpans()[0]
+			span.kind() == Span.Kind.SERVER
+			span.tags()["error"] == "ClosedChannelException"
+			span.tags()[ResponseBodyTracking.RESPONSE_SIZE].toLong() > 0
+		cleanup:
+			app.close()
+	}
+}
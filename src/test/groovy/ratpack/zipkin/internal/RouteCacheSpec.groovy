@@ -0,0 +1,72 @@
+package ratpack.zipkin.internal
+
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class RouteCacheSpec extends Specification {
+
+	AtomicInteger computed = new AtomicInteger()
+
+	def "Should add a leading slash to routes"(String description, String expected) {
+		expect:
+			RouteCache.of(10).route(description) == expected
+			RouteCache.disabled().route(description) == expected
+		where:
+			description  | expected
+			""           | ""
+			"users/:id"  | "/users/:id"
+			"/users/:id" | "/users/:id"
+	}
+
+	def "Should share the route instance across requests"() {
+		given:
+			def cache = RouteCache.of(10)
+		expect:
+			cache.route("users/:id").is(cache.route(new String("users/:id")))
+	}
+
+	def "Should compute span names once per method and route"() {
+		given:
+			def cache = RouteCache.of(10)
+		when:
+			3.times {
+				cache.spanName("GET", "users/:id", { "get-user-" + computed.incrementAndGet() })
+				cache.spanName("PUT", "users/:id", { "put-user-" + computed.incrementAndGet() })
+			}
+		then:
+			computed.get() == 2
+			cache.spanName("GET", "users/:id", { "unused" }) == "get-user-1"
+			cache.spanName("PUT", "users/:id", { "unused" }) == "put-user-2"
+			cache.size() == 1
+	}
+
+	def "Should not cache span names for empty descriptions"() {
+		given:
+			def cache = RouteCache.of(10)
+		when:
+			3.times { cache.spanName("GET", "", { "name-" + computed.incrementAndGet() }) }
+		then:
+			computed.get() == 3
+			cache.size() == 0
+	}
+
+	def "Should not cache when disabled"() {
+		given:
+			def cache = RouteCache.of(0)
+		when:
+			3.times { cache.spanName("GET", "users/:id", { "name-" + computed.incrementAndGet() }) }
+		then:
+			!cache.isEnabled()
+			computed.get() == 3
+	}
+
+	def "Should evict routes beyond the maximum size"() {
+		given:
+			def cache = RouteCache.of(5)
+		when:
+			100.times { i -> cache.route("route/" + i) }
+		then:
+			cache.size() <= 5
+	}
+}
@@ -0,0 +1,80 @@
+package ratpack.zipkin.internal
+
+import com.google.common.net.HostAndPort
+import ratpack.handling.Context
+import ratpack.http.Headers
+import ratpack.http.Request
+import ratpack.server.PublicAddress
+import ratpack.util.MultiValueMap
+import spock.lang.Specification
+
+class ServerRequestImplSpec extends Specification {
+
+	Context ctx = Mock(Context)
+	Request request = Mock(Request)
+	Headers headers = Mock(Headers)
+
+	def setup() {
+		ctx.getRequest() >> request
+	}
+
+	def "Should not build the URL unless asked for"() {
+		given:
+			request.getPath() >> "foo"
+		when:
+			def serverRequest = new ServerRequestImpl(ctx)
+			serverRequest.getPath()
+			serverRequest.getNormalizedPath()
+		then:
+			0 * ctx.get(PublicAddress)
+			0 * request.getQueryParams()
+	}
+
+	def "Should build the URL once"() {
+		given:
+			def publicAddress = PublicAddress.of(URI.create("http://localhost:5050"))
+			request.getPath() >> "foo"
+			request.getQueryParams() >> Stub(MultiValueMap)
+		and:
+			def serverRequest = new ServerRequestImpl(ctx)
+		when:
+			def first = serverRequest.getUrl()
+			def second = serverRequest.getUrl()
+		then:
+			1 * ctx.get(PublicAddress) >> publicAddress
+			first == "http://localhost:5050/foo"
+			second.is(first)
+	}
+
+	def "Should normalize the path once"(String path, String expected) {
+		given:
+			def serverRequest = new ServerRequestImpl(ctx)
+		when:
+			def first = serverRequest.getNormalizedPath()
+			def second = serverRequest.getNormalizedPath()
+		then:
+			1 * request.getPath() >> path
+			first == expected
+			second.is(first)
+		where:
+			path   | expected
+			"foo"  | "/foo"
+			"/foo" | "/foo"
+			""     | "/"
+	}
+
+	def "Should prefer X-Forwarded-For for the client IP"(String forwardedFor, String expected) {
+		given:
+			request.getHeaders() >> headers
+			headers.get("X-Forwarded-For") >> forwardedFor
+			request.getRemoteAddress() >> HostAndPort.fromParts("1.2.3.4", 1234)
+		and:
+			def serverRequest = new ServerRequestImpl(ctx)
+		expect:
+			serverRequest.getClientIp() == expected
+		where:
+			forwardedFor | expected
+			null         | "1.2.3.4"
+			"5.6.7.8"    | "5.6.7.8"
+	}
+}
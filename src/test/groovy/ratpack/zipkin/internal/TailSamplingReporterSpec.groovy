@@ -0,0 +1,183 @@
+package ratpack.zipkin.internal
+
+import ratpack.zipkin.TailSamplingPolicy
+import ratpack.zipkin.support.TestReporter
+import spock.lang.Specification
+import spock.lang.Unroll
+import zipkin2.Span
+import zipkin2.codec.SpanBytesEncoder
+
+import java.time.Duration
+
+class TailSamplingReporterSpec extends Specification {
+
+	TestReporter delegate = new TestReporter()
+
+	static Span root(long traceId, Map<String, String> tags = [:], long durationMicros = 1000L) {
+		def builder = Span.newBuilder()
+				.traceId(0L, traceId).id(traceId)
+				.kind(Span.Kind.SERVER)
+				.name("get /users/:id")
+				.timestamp(1L).duration(durationMicros)
+		tags.each { key, value -> builder.putTag(key, value) }
+		return builder.build()
+	}
+
+	static Span child(long traceId, long id, Map<String, String> tags = [:]) {
+		def builder = Span.newBuilder()
+				.traceId(0L, traceId).parentId(traceId).id(id)
+				.name("query")
+				.timestamp(1L).duration(1L)
+		tags.each { key, value -> builder.putTag(key, value) }
+		return builder.build()
+	}
+
+	static Span server(long traceId, long id, Map<String, String> tags = [:]) {
+		def builder = Span.newBuilder()
+				.traceId(0L, traceId).parentId(1000L).id(id)
+				.kind(Span.Kind.SERVER)
+				.name("get /users/:id")
+				.timestamp(1L).duration(1000L)
+		tags.each { key, value -> builder.putTag(key, value) }
+		return builder.build()
+	}
+
+	static Span span(long traceId, long parentId, long id, Map<String, String> tags = [:]) {
+		def builder = Span.newBuilder()
+				.traceId(0L, traceId).parentId(parentId).id(id)
+				.name("query")
+				.timestamp(1L).duration(1L)
+		tags.each { key, value -> builder.putTag(key, value) }
+		return builder.build()
+	}
+
+	TailSamplingReporter reporter(TailSamplingPolicy.Builder policy) {
+		return new TailSamplingReporter(policy.baselineRate(0f).build(), delegate)
+	}
+
+	@Unroll
+	def "Should export the whole trace when #reason"(String reason, TailSamplingPolicy.Builder policy, Span localRoot, Span childSpan) {
+		given:
+			def tailSampling = reporter(policy)
+		when:
+			tailSampling.report(childSpan)
+		then:
+			delegate.spans.isEmpty()
+		when:
+			tailSampling.report(localRoot)
+		then:
+			delegate.spans == [childSpan, localRoot]
+			tailSampling.tracesExported == 1
+			tailSampling.bufferedSpans == 0
+		where:
+			reason                          | policy                                                                                   | localRoot                             | childSpan
+			"a span has an error"           | TailSamplingPolicy.newBuilder()                                                          | root(1L)                              | child(1L, 2L, [error: "timeout"])
+			"the status is 5xx"             | TailSamplingPolicy.newBuilder()                                                          | root(1L, ["http.status_code": "502"]) | child(1L, 2L)
+			"the root is slow"              | TailSamplingPolicy.newBuilder().latencyThreshold(Duration.ofMillis(1))                   | root(1L, [:], 2000L)                  | child(1L, 2L)
+			"the root is slow for its name" | TailSamplingPolicy.newBuilder().latencyThreshold("get /users/:id", Duration.ofMillis(1)) | root(1L, [:], 2000L)                  | child(1L, 2L)
+			"the request is debug"          | TailSamplingPolicy.newBuilder()                                                          | root(1L).toBuilder().debug(true).build()        | child(1L, 2L)
+			"the caller sampled the trace"  | TailSamplingPolicy.newBuilder()                                                          | server(1L, 1L).toBuilder().shared(true).build() | child(1L, 2L)
+	}
+
+	def "Should drop traces that no rule keeps, including spans finishing after the root"() {
+		given:
+			def tailSampling = reporter(TailSamplingPolicy.newBuilder()
+					.latencyThreshold(Duration.ofMillis(1))
+					.latencyThreshold("get /users/:id", Duration.ofSeconds(1)))
+		when:
+			tailSampling.report(child(1L, 2L))
+			tailSampling.report(root(1L, ["http.status_code": "404"], 2000L))
+			tailSampling.report(child(1L, 3L))
+		then:
+			delegate.spans.isEmpty()
+			tailSampling.tracesDropped == 1
+			tailSampling.bufferedSpans == 0
+	}
+
+	def "Should export spans finishing after the root of an exported trace"() {
+		given:
+			def tailSampling = reporter(TailSamplingPolicy.newBuilder())
+		when:
+			tailSampling.report(root(1L, ["http.status_code": "500"]))
+			tailSampling.report(child(1L, 2L))
+		then:
+			delegate.spans*.id() == [root(1L).id(), child(1L, 2L).id()]
+	}
+
+	def "Should export traces within the baseline rate"() {
+		given:
+			def tailSampling = new TailSamplingReporter(TailSamplingPolicy.newBuilder().baselineRate(rate).build(), delegate)
+		when:
+			(1..1000).each { tailSampling.report(root(new Random(it).nextLong())) }
+		then:
+			tailSampling.tracesExported == expected
+		where:
+			rate | expected
+			0f   | 0
+			1f   | 1000
+	}
+
+	def "Should evict the oldest spans when buffers are full"() {
+		given:
+			long failing = SpanBytesEncoder.JSON_V2.sizeInBytes(child(1L, 2L, [error: "true"]))
+			long passing = SpanBytesEncoder.JSON_V2.sizeInBytes(child(5L, 2L))
+			def tailSampling = new TailSamplingReporter(TailSamplingPolicy.newBuilder()
+					.baselineRate(0f)
+					.maxSpansPerTrace(2)
+					.maxBufferedBytes(2 * failing + passing)
+					.build(), delegate, 1)
+		when: 'a trace over its own limit loses its oldest span'
+			(2..4).each { tailSampling.report(child(1L, it, [error: "true"])) }
+		then:
+			tailSampling.spansEvicted == 1
+			tailSampling.bufferedSpans == 2
+			tailSampling.bufferedBytes == 2 * failing
+		when: 'the oldest trace is evicted when all buffers are full'
+			(2..3).each { tailSampling.report(child(5L, it)) }
+		then:
+			tailSampling.spansEvicted == 3
+			tailSampling.bufferedSpans == 2
+			tailSampling.bufferedBytes == 2 * passing
+		when:
+			tailSampling.report(root(1L))
+		then: 'the evicted trace is decided on its root alone'
+			delegate.spans.isEmpty()
+	}
+
+	def "Should decide each server span of a trace on its own"() {
+		given: 'a caller that sends two requests in the same trace'
+			def tailSampling = reporter(TailSamplingPolicy.newBuilder())
+			Span first = server(1L, 10L)
+			Span second = server(1L, 20L, ["http.status_code": "503"])
+		when:
+			tailSampling.report(span(1L, 10L, 11L))
+			tailSampling.report(first)
+			tailSampling.report(span(1L, 20L, 21L))
+			tailSampling.report(second)
+		then: 'only the failing request is exported, with its own spans'
+			delegate.spans*.id() == [span(1L, 20L, 21L).id(), second.id()]
+			tailSampling.tracesExported == 1
+			tailSampling.tracesDropped == 1
+	}
+
+	def "Should only take the spans under a local root when requests of a trace overlap"() {
+		given:
+			def tailSampling = reporter(TailSamplingPolicy.newBuilder())
+		when: 'the spans of two concurrent requests are buffered'
+			tailSampling.report(span(1L, 11L, 12L))
+			tailSampling.report(span(1L, 21L, 22L, [error: "true"]))
+			tailSampling.report(span(1L, 10L, 11L))
+			tailSampling.report(span(1L, 20L, 21L))
+		and: 'the request that went well finishes first'
+			tailSampling.report(server(1L, 10L))
+		then: 'it is dropped without the spans of the other'
+			delegate.spans.isEmpty()
+			tailSampling.bufferedSpans == 2
+		when:
+			tailSampling.report(server(1L, 20L))
+			tailSampling.report(span(1L, 22L, 23L))
+		then: 'the failing one is exported, as are its spans finishing late'
+			delegate.spans*.id() == ["0000000000000016", "0000000000000015", "0000000000000014", "0000000000000017"]
+			tailSampling.bufferedSpans == 0
+	}
+}
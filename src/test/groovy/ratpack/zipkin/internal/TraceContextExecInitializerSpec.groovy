@@ -0,0 +1,77 @@
+package ratpack.zipkin.internal
+
+import brave.propagation.CurrentTraceContext
+import brave.propagation.TraceContext
+import ratpack.exec.ExecInitializer
+import ratpack.test.exec.ExecHarness
+import ratpack.zipkin.TracedExecution
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class TraceContextExecInitializerSpec extends Specification {
+
+	@AutoCleanup
+	ExecHarness harness = ExecHarness.harness()
+
+	CurrentTraceContext currentTraceContext = new RatpackCurrentTraceContext(TraceContextMdc.disabled())
+	TraceContext parent = TraceContext.newBuilder().traceId(1L).spanId(2L).build()
+	TraceContext explicit = TraceContext.newBuilder().traceId(3L).spanId(4L).build()
+	def seen = new ArrayBlockingQueue<Optional<TraceContext>>(1)
+
+	/**
+	 * Starts an execution on an event loop from that event loop, outside of any execution,
+	 * while the given context is in scope there.
+	 */
+	void forkFromEventLoop(TraceContext inScope, TraceContext registered) {
+		def eventLoop = harness.controller.eventLoopGroup.next()
+		eventLoop.execute {
+			CurrentTraceContext.Scope scope = currentTraceContext.newScope(inScope)
+			try {
+				harness.controller.fork()
+						.eventLoop(eventLoop)
+						.register { r ->
+							r.add(ExecInitializer, new TraceContextExecInitializer())
+							if (registered) r.add(RatpackCurrentTraceContext.newHolder(registered))
+						}
+						.start { e -> seen.add(Optional.ofNullable(currentTraceContext.get())) }
+			} finally {
+				scope.close()
+			}
+		}
+	}
+
+	def "Should copy the context of the starting thread into the execution"() {
+		when:
+			forkFromEventLoop(parent, null)
+		then:
+			seen.poll(5, TimeUnit.SECONDS) == Optional.of(parent)
+	}
+
+	def "Should not add a context when there is none"() {
+		when:
+			forkFromEventLoop(null, null)
+		then:
+			seen.poll(5, TimeUnit.SECONDS) == Optional.empty()
+	}
+
+	def "Should prefer a context registered for the execution"() {
+		when:
+			forkFromEventLoop(parent, explicit)
+		then:
+			seen.poll(5, TimeUnit.SECONDS) == Optional.of(explicit)
+	}
+
+	def "Should fork with an explicit context from within an execution"() {
+		when:
+			harness.run { e ->
+				currentTraceContext.newScope(parent)
+				TracedExecution.fork(currentTraceContext)
+						.start { fork -> seen.add(Optional.ofNullable(currentTraceContext.get())) }
+			}
+		then:
+			seen.poll(5, TimeUnit.SECONDS) == Optional.of(parent)
+	}
+}
@@ -0,0 +1,97 @@
+package ratpack.zipkin.internal
+
+import brave.propagation.TraceContext
+import org.slf4j.MDC
+import org.slf4j.helpers.BasicMDCAdapter
+import org.slf4j.spi.MDCAdapter
+import ratpack.exec.Blocking
+import ratpack.exec.Execution
+import ratpack.registry.MutableRegistry
+import ratpack.registry.Registry
+import ratpack.test.exec.ExecHarness
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+class TraceContextMdcSpec extends Specification {
+
+	// the test classpath binds slf4j-nop, whose MDC doesn't store anything
+	MDCAdapter original
+	MutableRegistry registry = Registry.mutable()
+	@AutoCleanup
+	ExecHarness harness
+
+	TraceContext parent = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build()
+	TraceContext child = TraceContext.newBuilder().traceId(1L).parentId(2L).spanId(3L).sampled(true).build()
+
+	def setup() {
+		original = MDC.@mdcAdapter
+		MDC.@mdcAdapter = new BasicMDCAdapter()
+	}
+
+	def cleanup() {
+		MDC.@mdcAdapter = original
+	}
+
+	def "Should write the trace ID by default"() {
+		given:
+			def currentTraceContext = new RatpackCurrentTraceContext({ -> registry })
+		when:
+			def scope = currentTraceContext.newScope(parent)
+		then:
+			MDC.getCopyOfContextMap() == [TraceId: "0000000000000001"]
+		when:
+			scope.close()
+		then:
+			!MDC.getCopyOfContextMap()
+	}
+
+	def "Should write the configured keys and restore them when scopes close"() {
+		given:
+			def mdc = TraceContextMdc.of("traceId", "spanId", "parentId", "sampled")
+			def currentTraceContext = new RatpackCurrentTraceContext({ -> registry }, mdc)
+		when:
+			def outer = currentTraceContext.newScope(parent)
+			def inner = currentTraceContext.newScope(child)
+		then:
+			MDC.getCopyOfContextMap() == [traceId: "0000000000000001", spanId: "0000000000000003",
+										  parentId: "0000000000000002", sampled: "true"]
+		when:
+			inner.close()
+		then:
+			MDC.getCopyOfContextMap() == [traceId: "0000000000000001", spanId: "0000000000000002", sampled: "true"]
+		when:
+			outer.close()
+		then:
+			!MDC.getCopyOfContextMap()
+	}
+
+	def "Should not write to the MDC when disabled"() {
+		given:
+			def currentTraceContext = new RatpackCurrentTraceContext({ -> registry }, TraceContextMdc.disabled())
+		when:
+			currentTraceContext.newScope(parent)
+		then:
+			currentTraceContext.get() == parent
+			!MDC.getCopyOfContextMap()
+	}
+
+	def "Should set the MDC for each execution segment, on whichever thread runs it"() {
+		given:
+			def mdc = TraceContextMdc.traceIdOnly()
+			def currentTraceContext = new RatpackCurrentTraceContext({ -> Execution.current() }, mdc)
+			harness = ExecHarness.harness()
+			def seen = []
+		when:
+			harness.run({ spec -> spec.add(new MdcExecInterceptor(mdc)) }, { execution ->
+				currentTraceContext.newScope(parent)
+				Blocking.get { [Thread.currentThread(), MDC.get("TraceId")] }.then { blocking ->
+					seen << blocking
+					seen << [Thread.currentThread(), MDC.get("TraceId")]
+				}
+			})
+		then:
+			seen[0][0] != seen[1][0]
+			seen*.get(1) == ["0000000000000001", "0000000000000001"]
+			MDC.get("TraceId") == null
+	}
+}
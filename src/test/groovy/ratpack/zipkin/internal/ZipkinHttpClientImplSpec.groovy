@@ -3,12 +3,16 @@ package ratpack.zipkin.internal
 import brave.Tracing
 import brave.http.HttpTracing
 import brave.sampler.Sampler
+import io.netty.buffer.ByteBuf
 import io.netty.buffer.UnpooledByteBufAllocator
 import io.netty.handler.codec.http.HttpResponseStatus
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
 import okhttp3.mockwebserver.RecordedRequest
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
 import ratpack.exec.Execution
+import ratpack.exec.Promise
 import ratpack.func.Action
 import ratpack.http.HttpMethod
 import ratpack.http.client.HttpClient
@@ -20,8 +24,12 @@ import ratpack.zipkin.support.TestReporter
 import spock.lang.AutoCleanup
 import spock.lang.Specification
 import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
 import zipkin2.Span
 
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+
 import static org.assertj.core.api.Assertions.assertThat
 
 class ZipkinHttpClientImplSpec extends Specification {
@@ -48,6 +56,10 @@ class ZipkinHttpClientImplSpec extends Specification {
 	}
 
 	void harnessSetup(Execution e) {
+		harnessSetup(e, ResponseBodyTracking.disabled())
+	}
+
+	void harnessSetup(Execution e, ResponseBodyTracking responseBodyTracking) {
 		HttpTracing httpTracing = HttpTracing.create(Tracing.newBuilder()
 				.currentTraceContext(new RatpackCurrentTraceContext({ -> e}))
 				.spanReporter(reporter).sampler(Sampler.ALWAYS_SAMPLE)
@@ -57,7 +69,47 @@ class ZipkinHttpClientImplSpec extends Specification {
 		zipkinHttpClient = new ZipkinHttpClientImpl(HttpClient.of { s ->
 			s.poolSize(0)
 			 .byteBufAllocator(UnpooledByteBufAllocator.DEFAULT)
-			  .maxContentLength(ServerConfig.DEFAULT_MAX_CONTENT_LENGTH)}, httpTracing)
+			  .maxContentLength(ServerConfig.DEFAULT_MAX_CONTENT_LENGTH)}, httpTracing,
+				TracingOptions.newBuilder().responseBodyTracking(responseBodyTracking).build())
+	}
+
+	/**
+	 * Reads the body one buffer at a time, pausing before requesting the next, and cancels
+	 * after the first buffer if asked to.
+	 */
+	Promise<Integer> read(StreamedResponse response, Duration pause, boolean cancel) {
+		Promise.async { downstream ->
+			response.body.subscribe(new Subscriber<ByteBuf>() {
+				Subscription subscription
+				int buffers
+
+				void onSubscribe(Subscription s) {
+					subscription = s
+					s.request(1)
+				}
+
+				void onNext(ByteBuf buf) {
+					buf.release()
+					buffers++
+					if (cancel) {
+						subscription.cancel()
+						downstream.success(buffers)
+					} else {
+						// a slow reader, with no outstanding demand while it's busy
+						Thread.sleep(pause.toMillis())
+						subscription.request(1)
+					}
+				}
+
+				void onError(Throwable t) {
+					downstream.error(t)
+				}
+
+				void onComplete() {
+					downstream.success(buffers)
+				}
+			})
+		}
 	}
 
 	@Unroll
@@ -195,4 +247,81 @@ class ZipkinHttpClientImplSpec extends Specification {
 		and: "should contain method and path tags, but not status code tag"
 			assertThat(span.tags()).containsOnlyKeys("http.method", "http.path")
 	}
+
+	def "Should trace redirects, whose handler runs outside of the execution"() {
+		given:
+			webServer.enqueue(new MockResponse().setResponseCode(302).setHeader("Location", "/ok"))
+			webServer.enqueue(new MockResponse().setResponseCode(200))
+		and:
+			HttpTracing httpTracing = HttpTracing.create(Tracing.newBuilder()
+					.currentTraceContext(new RatpackCurrentTraceContext())
+					.spanReporter(reporter).sampler(Sampler.ALWAYS_SAMPLE)
+					.localServiceName("embedded")
+					.build())
+			zipkinHttpClient = new ZipkinHttpClientImpl(HttpClient.of { s ->
+				s.poolSize(0)
+				 .byteBufAllocator(UnpooledByteBufAllocator.DEFAULT)
+				 .maxContentLength(ServerConfig.DEFAULT_MAX_CONTENT_LENGTH)}, httpTracing)
+		when:
+			def status = harness.yield { e ->
+				zipkinHttpClient.get(uri)
+			}.valueOrThrow.statusCode
+		then:
+			status == 200
+			reporter.spans*.tags()*.get("http.status_code").contains("302")
+	}
+
+	def "Should finish streamed request spans once the body has been read"() {
+		given:
+			webServer.enqueue(new MockResponse().setResponseCode(200)
+				.setBody("x" * 64).throttleBody(16, 100, TimeUnit.MILLISECONDS))
+		when:
+			int buffers = harness.yield { e ->
+				harnessSetup(e, ResponseBodyTracking.of(true))
+				zipkinHttpClient.requestStream(uri, action.append({ RequestSpec s -> s.get() }))
+					.flatMap { response ->
+						assert reporter.spans.isEmpty()
+						read(response, Duration.ofMillis(50), false)
+					}
+			}.valueOrThrow
+		then:
+			Span span = reporter.spans.get(0)
+			span.duration() >= 300_000
+			span.annotations()*.value() == ["ttfb"]
+			span.tags().get("http.response.size") == "64"
+		and: "the reader paused before requesting each buffer after the first"
+			Long.parseLong(span.tags().get("http.response.stall_us")) >= (buffers - 1) * 50_000L
+	}
+
+	def "Should finish streamed request spans when the body is cancelled"() {
+		given:
+			webServer.enqueue(new MockResponse().setResponseCode(200)
+				.setBody("x" * 64).throttleBody(16, 100, TimeUnit.MILLISECONDS))
+		when:
+			harness.yield { e ->
+				harnessSetup(e, ResponseBodyTracking.of(true))
+				zipkinHttpClient.requestStream(uri, action.append({ RequestSpec s -> s.get() }))
+					.flatMap { response -> read(response, Duration.ZERO, true) }
+			}.valueOrThrow
+		then:
+			Span span = reporter.spans.get(0)
+			span.annotations()*.value() == ["ttfb", "cancel"]
+			span.tags().get("http.response.size") == "16"
+			!span.tags().containsKey("error")
+	}
+
+	def "Should finish streamed request spans when the body is never read"() {
+		given:
+			webServer.enqueue(new MockResponse().setResponseCode(200).setBody("ok"))
+		when:
+			harness.yield { e ->
+				harnessSetup(e, ResponseBodyTracking.of(true))
+				zipkinHttpClient.requestStream(uri, action.append({ RequestSpec s -> s.get() }))
+			}.valueOrThrow
+		then: 'the span is finished once the execution completes, which may be after yield returns'
+			new PollingConditions(timeout: 5).eventually {
+				assert reporter.spans.size() == 1
+			}
+			reporter.spans.get(0).tags().get("http.response.size") == "0"
+	}
 }
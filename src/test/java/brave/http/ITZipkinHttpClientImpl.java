@@ -13,7 +13,9 @@ import ratpack.http.client.HttpClient;
 import ratpack.server.ServerConfig;
 import ratpack.test.exec.ExecHarness;
 import ratpack.util.Exceptions;
+import ratpack.zipkin.internal.HeaderPropagation;
 import ratpack.zipkin.internal.RatpackCurrentTraceContext;
+import ratpack.zipkin.internal.TracingOptions;
 import ratpack.zipkin.internal.ZipkinHttpClientImpl;
 
 public class ITZipkinHttpClientImpl extends ITHttpAsyncClient<HttpClient> {
@@ -41,7 +43,8 @@ public class ITZipkinHttpClientImpl extends ITHttpAsyncClient<HttpClient> {
             .poolSize(0)
             .byteBufAllocator(UnpooledByteBufAllocator.DEFAULT)
             .maxContentLength(ServerConfig.DEFAULT_MAX_CONTENT_LENGTH)
-        ), httpTracing));
+        ), httpTracing,
+            TracingOptions.newBuilder().headerPropagation(HeaderPropagation.b3(false)).build()));
     }
 
     @Override protected void closeClient(HttpClient client) throws IOException {